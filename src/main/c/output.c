@@ -471,15 +471,22 @@ void show_help_window() {
 }
 
 int main(int argc, char** argv) {
-  if (argc != 2) {
-    fprintf(stderr, "Error: expects path to .vedebug folder as argument\n");
+  if (argc != 2 && argc != 3) {
+    fprintf(stderr, "Error: expects path to .vedebug folder and optionally a thread stream as arguments\n");
     exit(EXIT_FAILURE);
   }
   char file_buffer[PATH_BUFFER_SIZE];
 
-  // Get trace information
+  // Get trace information; every thread but the first one has its
+  // own trace-<stream>.txt
+  char trace_name[PATH_BUFFER_SIZE];
+  if (argc == 3 && strcmp(argv[2], "0") != 0) {
+    snprintf(trace_name, PATH_BUFFER_SIZE, "trace-%s.txt", argv[2]);
+  } else {
+    strcpy(trace_name, "trace.txt");
+  }
   strcpy(file_buffer, argv[1]);
-  concat_paths(file_buffer, "trace.txt");
+  concat_paths(file_buffer, trace_name);
   int trace_length;
   TraceElem** trace;
   get_trace(file_buffer, &trace_length, &trace);
@@ -0,0 +1,315 @@
+package vedebug.core;
+
+/**
+ * Finds a thread's records that repeat the ones right before them, so
+ * a loop that keeps running through the same blocks and calls is
+ * recorded as a single REPEAT record instead of once per iteration
+ * (see {@link Names#loops}).
+ * <p>
+ * A cycle is up to {@link Names#MAX_CYCLE_LENGTH} CALL, BLOCK and
+ * RETURN records that start and end in the same frame and never
+ * return out of it, so it's the body of a loop, including the methods
+ * it calls.  Any other record (exceptions, dropped values) ends it.
+ * Records that may be part of a cycle are held back until it's clear
+ * whether they are, then they are written as REPEAT(length, count),
+ * meaning the last length records happen count more times, followed
+ * by the records of the iteration that was cut short.
+ * <p>
+ * The values saved after the records of a cycle don't have to be the
+ * same in every iteration.  Only the ones that differ from the
+ * iteration before are kept, as a REPEAT_VALUES(iteration, index)
+ * record right after the REPEAT followed by the values of that record
+ * of that iteration.  The values of a record go to {@link #values()}
+ * first since they come after it, when it's not yet known where they
+ * belong.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class BlockCycles {
+
+    // Once the values held back take more bytes than this, the full
+    // iterations are written even though the cycle goes on.  It's a
+    // part of what a thread keeps before handing it to the writer (see
+    // SaveUtil.checkSizes()) so the buffers stay about as big as
+    // without loops.
+    private final long maxHeldValues =
+            Math.min(Names.MAX_SIZE, Names.budget / Names.MAX_IN_FLIGHT) / 4;
+
+    // The last records, whether they were written or held back, as a
+    // circular buffer; the newest is at head - 1.  A record is its
+    // tag and two ints: id and line for BLOCK, invocation line and id
+    // for CALL, and id for RETURN.
+    private final int[] tags = new int[2 * Names.MAX_CYCLE_LENGTH];
+    private final int[] firsts = new int[2 * Names.MAX_CYCLE_LENGTH];
+    private final int[] seconds = new int[2 * Names.MAX_CYCLE_LENGTH];
+    // Number of calls that hadn't returned before the record, counted
+    // from the first one after the last end()
+    private final int[] depths = new int[2 * Names.MAX_CYCLE_LENGTH];
+    // The value records saved after each record, and how many
+    private final byte[][] values = new byte[2 * Names.MAX_CYCLE_LENGTH][];
+    private final int[] valueLengths = new int[2 * Names.MAX_CYCLE_LENGTH];
+    private final int[] valueRecords = new int[2 * Names.MAX_CYCLE_LENGTH];
+    private int head = 0;
+    private int size = 0;
+    private int depth = 0;
+
+    // Length of the cycle being matched, 0 if there is none
+    private int length = 0;
+    // Full iterations held back
+    private int count = 0;
+    // Records of the current iteration held back
+    private int matched = 0;
+
+    // Values of the newest record saved so far, and whether they
+    // still have to be moved to where the record went
+    private final EventBuffer pending = new EventBuffer(1 << 6);
+    private boolean unsettled = false;
+    // Whether the newest record is held back, and which iteration
+    // (from 1) and record of the iteration (from 1) it is
+    private boolean newestHeld = false;
+    private int newestIteration;
+    private int newestIndex;
+    // REPEAT_VALUES records of the iterations held back, and where the
+    // ones of the current iteration start (in bytes and records)
+    private final EventBuffer heldValues = new EventBuffer(1 << 8);
+    private int iterationStart = 0;
+    private int iterationStartRecords = 0;
+
+    // Called instead of putting a CALL record.
+    void call(EventBuffer events, int invocationLine, int id) {
+        record(events, TraceFormat.CALL, invocationLine, id);
+    }
+
+    // Called instead of putting a BLOCK record.
+    void block(EventBuffer events, int id, int line) {
+        record(events, TraceFormat.BLOCK, id, line);
+    }
+
+    // Called instead of putting a RETURN record.
+    void ret(EventBuffer events, int id) {
+        record(events, TraceFormat.RETURN, id, 0);
+    }
+
+    // Where the values of the newest record are put, instead of the
+    // thread's events.
+    EventBuffer values() {
+        return pending;
+    }
+
+    // Writes whatever is held back and forgets the records so far;
+    // called before any record that can't be part of a cycle.
+    void end(EventBuffer events) {
+        settle(events);
+        writeHeld(events, 0);
+        size = 0;
+        depth = 0;
+    }
+
+    private void record(EventBuffer events, int tag, int first, int second) {
+        settle(events);
+        if (count > 0 && matched == 0
+                && (count == Names.MAX_REPEAT || heldValues.length() > maxHeldValues)) {
+            // A loop that runs long enough is written in parts so what
+            // is held back stays bounded, which matters in mmap mode
+            writeRepeat(events);
+        }
+
+        tags[head] = tag;
+        firsts[head] = first;
+        seconds[head] = second;
+        depths[head] = depth;
+        valueLengths[head] = 0;
+        valueRecords[head] = 0;
+        depth += change(tag);
+        head = (head + 1) % tags.length;
+        size = Math.min(size + 1, tags.length);
+        unsettled = true;
+
+        if (length > 0 && repeats(1, length)) {
+            hold();
+            return;
+        }
+        if (length > 0 && count == 0) {
+            // Maybe the held records are the start of a longer cycle
+            for (int longer = length + 1; longer <= Names.MAX_CYCLE_LENGTH; longer++) {
+                if (repeats(matched + 1, longer) && isFrame(matched + 2, longer)) {
+                    length = longer;
+                    holdValuesAgain();
+                    hold();
+                    return;
+                }
+            }
+        }
+        // The newest record isn't written yet, it may start a cycle
+        writeHeld(events, 1);
+        for (int shorter = 1; shorter <= Names.MAX_CYCLE_LENGTH; shorter++) {
+            if (repeats(1, shorter) && isFrame(2, shorter)) {
+                length = shorter;
+                hold();
+                return;
+            }
+        }
+        put(events, slot(1));
+        newestHeld = false;
+    }
+
+    // Moves the values of the newest record to where the record went:
+    // right after it if it was written, or to the values held back if
+    // they differ from the ones of the iteration before.
+    private void settle(EventBuffer events) {
+        if (!unsettled) {
+            // Values that don't belong to any record here
+            events.putRecords(pending.data(), 0, pending.length(), pending.records());
+            pending.clear();
+            return;
+        }
+        unsettled = false;
+        int newest = slot(1);
+        int bytes = pending.length();
+        if (values[newest] == null || values[newest].length < bytes) {
+            values[newest] = new byte[Math.max(bytes, 1 << 4)];
+        }
+        System.arraycopy(pending.data(), 0, values[newest], 0, bytes);
+        valueLengths[newest] = bytes;
+        valueRecords[newest] = pending.records();
+        pending.clear();
+        if (!newestHeld) {
+            putValues(events, newest);
+        } else if (!sameValues(newest, slot(1 + length))) {
+            heldValues.putRepeatValues(newestIteration, newestIndex);
+            putValues(heldValues, newest);
+        }
+    }
+
+    // Holds back the newest record as part of the cycle.
+    private void hold() {
+        if (matched == 0) {
+            iterationStart = heldValues.length();
+            iterationStartRecords = heldValues.records();
+        }
+        newestHeld = true;
+        newestIteration = count + 1;
+        newestIndex = matched + 1;
+        matched++;
+        if (matched == length) {
+            matched = 0;
+            count++;
+        }
+    }
+
+    // The cycle got longer before its first iteration was done, so the
+    // values of the records held back so far are compared again.
+    private void holdValuesAgain() {
+        heldValues.clear();
+        for (int index = 1; index <= matched; index++) {
+            int slot = slot(matched + 2 - index);
+            if (!sameValues(slot, slot(matched + 2 - index + length))) {
+                heldValues.putRepeatValues(1, index);
+                putValues(heldValues, slot);
+            }
+        }
+    }
+
+    // Writes the full iterations held back as a REPEAT record and the
+    // rest as they are, skipping the newest skip records.
+    private void writeHeld(EventBuffer events, int skip) {
+        if (count > 0) {
+            writeRepeat(events);
+        }
+        for (int i = matched + skip; i > skip; i--) {
+            int slot = slot(i);
+            put(events, slot);
+            putValues(events, slot);
+        }
+        heldValues.clear();
+        length = 0;
+        count = 0;
+        matched = 0;
+    }
+
+    // Writes the full iterations held back along with their values.
+    private void writeRepeat(EventBuffer events) {
+        events.putRepeat(length, count);
+        if (matched == 0) {
+            events.putRecords(heldValues.data(), 0, heldValues.length(), heldValues.records());
+        } else {
+            events.putRecords(heldValues.data(), 0, iterationStart, iterationStartRecords);
+        }
+        heldValues.clear();
+        iterationStart = 0;
+        iterationStartRecords = 0;
+        count = 0;
+    }
+
+    private void putValues(EventBuffer out, int slot) {
+        out.putRecords(values[slot], 0, valueLengths[slot], valueRecords[slot]);
+    }
+
+    private void put(EventBuffer events, int slot) {
+        switch (tags[slot]) {
+            case TraceFormat.CALL:
+                events.putCall(firsts[slot], seconds[slot]);
+                break;
+            case TraceFormat.BLOCK:
+                events.putBlock(firsts[slot], seconds[slot]);
+                break;
+            default:
+                events.putReturn(firsts[slot]);
+                break;
+        }
+    }
+
+    // Whether each of the newest records is the same as the one
+    // length records before it, apart from their values.
+    private boolean repeats(int records, int length) {
+        if (records + length > size) {
+            return false;
+        }
+        for (int i = 1; i <= records; i++) {
+            int slot = slot(i);
+            int before = slot(i + length);
+            if (tags[slot] != tags[before] || firsts[slot] != firsts[before]
+                    || seconds[slot] != seconds[before]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether the length records up to the last-th newest one end in
+    // the frame they started in and never return out of it.
+    private boolean isFrame(int last, int length) {
+        int frame = depths[slot(last + length - 1)];
+        for (int i = last; i < last + length; i++) {
+            int slot = slot(i);
+            if (depths[slot] + change(tags[slot]) < frame) {
+                return false;
+            }
+        }
+        return depths[slot(last)] + change(tags[slot(last)]) == frame;
+    }
+
+    private boolean sameValues(int slot, int other) {
+        int bytes = valueLengths[slot];
+        if (bytes != valueLengths[other]) {
+            return false;
+        }
+        for (int i = 0; i < bytes; i++) {
+            if (values[slot][i] != values[other][i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int change(int tag) {
+        return tag == TraceFormat.CALL ? 1 : tag == TraceFormat.RETURN ? -1 : 0;
+    }
+
+    // Slot of the i-th newest record.
+    private int slot(int i) {
+        return (head - i + tags.length) % tags.length;
+    }
+}
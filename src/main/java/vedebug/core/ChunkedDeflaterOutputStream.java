@@ -0,0 +1,113 @@
+package vedebug.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a text file into independent zlib chunks while it is
+ * written, so it never exists uncompressed on disk and readers can
+ * decompress any part of it without starting at the beginning.
+ * <p>
+ * The chunks are written to &lt;file&gt;.z and every chunk gets a line
+ * "uncompressedOffset compressedOffset" in &lt;file&gt;.idx, giving where
+ * the chunk starts in the original text and in the .z file.  A chunk
+ * holds at most {@link Names#COMPRESSION_CHUNK_SIZE} bytes of text; the
+ * last chunk of every write is finished when the stream is closed, so
+ * chunks may be smaller.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class ChunkedDeflaterOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final Writer index;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private final byte[] chunk = new byte[Names.COMPRESSION_CHUNK_SIZE];
+    private int chunkLength = 0;
+    private final byte[] compressed = new byte[1 << 16];
+
+    private long uncompressedOffset;
+    private long compressedOffset;
+
+    /**
+     * Constructor.
+     *
+     * @param file               the text file that is written compressed
+     * @param append             whether to add to what is already there
+     * @param uncompressedOffset length of the text already written when
+     *                           appending
+     */
+    ChunkedDeflaterOutputStream(File file, boolean append, long uncompressedOffset) throws IOException {
+        File data = Names.compressedFile(file);
+        this.compressedOffset = append && data.exists() ? data.length() : 0;
+        this.uncompressedOffset = append ? uncompressedOffset : 0;
+        this.out = new FileOutputStream(data, append);
+        this.index = new BufferedWriter(new FileWriter(Names.chunkIndexFile(file), append));
+    }
+
+    // Length of the text written so far, including earlier writes
+    // that were appended to.
+    long uncompressedOffset() {
+        return uncompressedOffset + chunkLength;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (chunkLength == chunk.length) {
+            writeChunk();
+        }
+        chunk[chunkLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (chunkLength == chunk.length) {
+                writeChunk();
+            }
+            int n = Math.min(len, chunk.length - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, n);
+            chunkLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (chunkLength > 0) {
+                writeChunk();
+            }
+        } finally {
+            deflater.end();
+            index.close();
+            out.close();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        index.write(uncompressedOffset + " " + compressedOffset + "\n");
+
+        deflater.reset();
+        deflater.setInput(chunk, 0, chunkLength);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(compressed);
+            out.write(compressed, 0, n);
+            compressedOffset += n;
+        }
+
+        uncompressedOffset += chunkLength;
+        chunkLength = 0;
+    }
+}
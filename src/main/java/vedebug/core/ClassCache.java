@@ -0,0 +1,435 @@
+package vedebug.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps instrumented classes in {@link Names#CACHE_DIR} so a class
+ * that didn't change since an earlier run is loaded without going
+ * through ASM again.
+ * <p>
+ * Classes are found by a hash of their original bytes, their name and
+ * everything that changes how they are instrumented: the agent itself
+ * and its configuration.  Instrumenting a class also saves its method
+ * ids and basic blocks, so while a class is transformed every call
+ * that does that is recorded in a journal (see the record methods),
+ * which is saved with the instrumented bytes and replayed when they
+ * are loaded from the cache.
+ * <p>
+ * Method ids are given out in the order methods are instrumented and
+ * are part of the instrumented bytes, so a cached class is only used
+ * if its ids are the ones it would get now.  That is the case when the
+ * program loads its classes in the same order as the run that cached
+ * them; otherwise the class is instrumented again and the cache entry
+ * replaced.
+ * <p>
+ * Every entry is its own file, written to a temporary file first and
+ * then renamed, so JVMs started at the same time can share the cache.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class ClassCache {
+
+    // Magic bytes and format version at the start of every entry,
+    // followed by the first method id, the number of methods, the
+    // journal and the instrumented class, the last two as a varint
+    // length followed by their bytes
+    private static final byte[] MAGIC = {'V', 'D', 'B', 'C'};
+    private static final int VERSION = 2;
+
+    // Journal records, with the arguments of the call they replay
+    // id, method string
+    private static final int METHOD_ID = 1;
+    // id, line (signed)
+    private static final int FIRST_LINE = 2;
+    // id, line (signed)
+    private static final int REPLACED_FIRST_LINE = 3;
+    // id, line (signed)
+    private static final int LAST_LINE = 4;
+    // id
+    private static final int ACTUAL_LAST_LINE = 5;
+    // source name
+    private static final int BASIC_BLOCK_FILE = 6;
+    // source name, number of lines, lines
+    private static final int BASIC_BLOCKS = 7;
+    // source name
+    private static final int SORTED_BASIC_BLOCKS = 8;
+    // id, internal class name, method name
+    private static final int SWITCH = 9;
+    // id, key (fixed long)
+    private static final int KEY = 10;
+
+    // Journal of the class being transformed on this thread, if it's
+    // being recorded
+    private static final ThreadLocal<EventBuffer> journal = new ThreadLocal<>();
+
+    private final File dir;
+    // Everything besides the class itself that goes into the hash
+    private final byte[] configuration;
+
+    ClassCache(File dir) {
+        this.dir = dir;
+        this.configuration = configuration().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the instrumented class from the cache, having replayed
+     * its journal, or null if it isn't there or its method ids are
+     * taken.  If it returns null the journal of the class is recorded
+     * until {@link #store} is called.
+     */
+    byte[] load(String className, byte[] original) {
+        File file = new File(dir, key(className, original));
+        if (file.exists()) {
+            try {
+                byte[] instrumented = replay(Files.readAllBytes(file.toPath()));
+                if (instrumented != null) {
+                    return instrumented;
+                }
+            } catch (IOException e) {
+                // Left over from another version or cut short; it's
+                // replaced below
+                e.printStackTrace();
+            }
+        }
+        journal.set(new EventBuffer(1 << 10));
+        return null;
+    }
+
+    /**
+     * Saves a class that was just instrumented, along with the journal
+     * recorded since {@link #load}.  Pass null if instrumenting it
+     * failed.
+     */
+    void store(String className, byte[] original, byte[] instrumented, int firstId, int nextId) {
+        EventBuffer calls = journal.get();
+        journal.remove();
+        if (calls == null || instrumented == null || !hasOnlyIds(calls, firstId, nextId)) {
+            // Other classes were instrumented at the same time and got
+            // some of the ids in between
+            return;
+        }
+        EventBuffer entry = new EventBuffer(instrumented.length + calls.length() + 32);
+        entry.putBytes(MAGIC, 0, MAGIC.length);
+        entry.putVarInt(VERSION);
+        entry.putVarInt(firstId);
+        entry.putVarInt(nextId - firstId);
+        entry.putVarInt(calls.length());
+        entry.putBytes(calls.data(), 0, calls.length());
+        entry.putVarInt(instrumented.length);
+        entry.putBytes(instrumented, 0, instrumented.length);
+
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        File file = new File(dir, key(className, original));
+        File temp = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            entry.writeTo(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    // Journal ********************************
+
+    static void recordMethodID(int id, String methodString) {
+        EventBuffer out = journal.get();
+        if (out != null) {
+            out.putTag(METHOD_ID);
+            out.putVarInt(id);
+            out.putString(methodString);
+        }
+    }
+
+    private static void recordLine(int tag, int id, int line) {
+        EventBuffer out = journal.get();
+        if (out != null) {
+            out.putTag(tag);
+            out.putVarInt(id);
+            out.putSignedVarInt(line);
+        }
+    }
+
+    static void recordFirstLine(int id, int line) {
+        recordLine(FIRST_LINE, id, line);
+    }
+
+    static void recordReplacedFirstLine(int id, int line) {
+        recordLine(REPLACED_FIRST_LINE, id, line);
+    }
+
+    static void recordLastLine(int id, int line) {
+        recordLine(LAST_LINE, id, line);
+    }
+
+    static void recordActualLastLine(int id) {
+        EventBuffer out = journal.get();
+        if (out != null) {
+            out.putTag(ACTUAL_LAST_LINE);
+            out.putVarInt(id);
+        }
+    }
+
+    static void recordBasicBlockFile(String source) {
+        recordSource(BASIC_BLOCK_FILE, source);
+    }
+
+    static void recordBasicBlocks(String source, Set<Integer> lines) {
+        EventBuffer out = journal.get();
+        if (out != null) {
+            out.putTag(BASIC_BLOCKS);
+            out.putString(source);
+            out.putVarInt(lines.size());
+            for (int line : lines) {
+                out.putSignedVarInt(line);
+            }
+        }
+    }
+
+    static void recordSortedBasicBlocks(String source) {
+        recordSource(SORTED_BASIC_BLOCKS, source);
+    }
+
+    static void recordSwitch(int id, String internalClassName, String methodName) {
+        EventBuffer out = journal.get();
+        if (out != null) {
+            out.putTag(SWITCH);
+            out.putVarInt(id);
+            out.putString(internalClassName);
+            out.putString(methodName);
+        }
+    }
+
+    static void recordKey(int id, long key) {
+        EventBuffer out = journal.get();
+        if (out != null) {
+            out.putTag(KEY);
+            out.putVarInt(id);
+            out.putFixedLong(key);
+        }
+    }
+
+    private static void recordSource(int tag, String source) {
+        EventBuffer out = journal.get();
+        if (out != null) {
+            out.putTag(tag);
+            out.putString(source);
+        }
+    }
+
+    // INTERNAL
+
+    // Replays the journal of a cache entry and returns its class, or
+    // returns null without doing anything if its ids are taken.
+    private static byte[] replay(byte[] entry) throws IOException {
+        EventReader reader = new EventReader(new ByteArrayInputStream(entry));
+        reader.readHeader(MAGIC, VERSION);
+        int firstId = reader.readVarInt();
+        int methods = reader.readVarInt();
+        byte[] calls = readBytes(reader);
+        byte[] instrumented = readBytes(reader);
+        if (!VideoMethodVisitor.reserveIDs(firstId, methods)) {
+            return null;
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(calls);
+        EventReader records = new EventReader(in);
+        int tag;
+        while ((tag = in.read()) != -1) {
+            switch (tag) {
+                case METHOD_ID: {
+                    int id = records.readVarInt();
+                    SaveUtil.insertMethodID(id, records.readString());
+                    break;
+                }
+                case FIRST_LINE: {
+                    int id = records.readVarInt();
+                    SaveUtil.insertLineNum(id, records.readSignedVarInt());
+                    break;
+                }
+                case REPLACED_FIRST_LINE: {
+                    int id = records.readVarInt();
+                    SaveUtil.replaceLineNum(id, records.readSignedVarInt());
+                    break;
+                }
+                case LAST_LINE: {
+                    int id = records.readVarInt();
+                    SaveUtil.insertLastLineNum(id, records.readSignedVarInt());
+                    break;
+                }
+                case ACTUAL_LAST_LINE:
+                    SaveUtil.setActualLastLineNum(records.readVarInt());
+                    break;
+                case BASIC_BLOCK_FILE:
+                    SaveUtil.createBasicBlockFile(records.readString());
+                    break;
+                case BASIC_BLOCKS: {
+                    String source = records.readString();
+                    Set<Integer> lines = new TreeSet<>();
+                    for (int i = records.readVarInt(); i > 0; i--) {
+                        lines.add(records.readSignedVarInt());
+                    }
+                    SaveUtil.printBasicBlocksToFile(source, lines);
+                    break;
+                }
+                case SORTED_BASIC_BLOCKS:
+                    SaveUtil.sortBasicBlocks(records.readString());
+                    break;
+                case SWITCH: {
+                    int id = records.readVarInt();
+                    String internalClassName = records.readString();
+                    MethodSwitches.add(id, internalClassName, records.readString());
+                    break;
+                }
+                case KEY: {
+                    int id = records.readVarInt();
+                    MethodKeys.add(id, records.readFixedLong());
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal record " + tag);
+            }
+        }
+        return instrumented;
+    }
+
+    private static byte[] readBytes(EventReader reader) throws IOException {
+        byte[] bytes = new byte[reader.readVarInt()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) reader.readByte();
+        }
+        return bytes;
+    }
+
+    // Whether every method id in the journal is in [firstId, nextId)
+    // and they are all there.
+    private static boolean hasOnlyIds(EventBuffer calls, int firstId, int nextId) {
+        ByteArrayInputStream in = new ByteArrayInputStream(calls.data(), 0, calls.length());
+        EventReader reader = new EventReader(in);
+        int methods = 0;
+        try {
+            int tag;
+            while ((tag = in.read()) != -1) {
+                switch (tag) {
+                    case METHOD_ID:
+                        int id = reader.readVarInt();
+                        if (id < firstId || id >= nextId) {
+                            return false;
+                        }
+                        methods++;
+                        reader.readString();
+                        break;
+                    case FIRST_LINE:
+                    case REPLACED_FIRST_LINE:
+                    case LAST_LINE:
+                        reader.readVarInt();
+                        reader.readSignedVarInt();
+                        break;
+                    case ACTUAL_LAST_LINE:
+                        reader.readVarInt();
+                        break;
+                    case BASIC_BLOCK_FILE:
+                    case SORTED_BASIC_BLOCKS:
+                        reader.readString();
+                        break;
+                    case BASIC_BLOCKS:
+                        reader.readString();
+                        for (int i = reader.readVarInt(); i > 0; i--) {
+                            reader.readSignedVarInt();
+                        }
+                        break;
+                    case SWITCH:
+                        reader.readVarInt();
+                        reader.readString();
+                        reader.readString();
+                        break;
+                    case KEY:
+                        reader.readVarInt();
+                        reader.readFixedLong();
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        } catch (IOException e) {
+            // Can't happen when reading from memory
+            throw new IllegalStateException(e);
+        }
+        return methods == nextId - firstId;
+    }
+
+    private String key(String className, byte[] original) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(configuration);
+            digest.update(className.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(original);
+            StringBuilder str = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                str.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return str.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Latest modification time of the file or anything in the
+    // directory, which is where the classes of a development build are.
+    private static long lastModified(File file) {
+        long modified = file.lastModified();
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                modified = Math.max(modified, lastModified(child));
+            }
+        }
+        return modified;
+    }
+
+    // Everything that changes how classes are instrumented: the
+    // agent's own classes (by the size and time of the jar or
+    // directory they are in) and the options the instrumentation
+    // depends on.
+    private static String configuration() {
+        String agent = "";
+        CodeSource source = ClassCache.class.getProtectionDomain().getCodeSource();
+        URL location = source == null ? null : source.getLocation();
+        if (location != null && location.getProtocol().equals("file")) {
+            File file = new File(location.getPath());
+            agent = file.getPath() + " " + file.length() + " " + lastModified(file);
+        }
+        return agent + "\n" + TraceFormat.VERSION
+                + "\n" + Names.pkg
+                + "\n" + VideoMethodVisitor.isSavingInvocationLineNums
+                + "\n" + Names.dumpClass + "." + Names.dumpMethod
+                + "\n" + Names.keepFrames + "\n";
+    }
+}
@@ -0,0 +1,230 @@
+package vedebug.core;
+
+import vedebug.asm.ClassReader;
+import vedebug.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The super class and interfaces of classes, read from their class
+ * files so computing frames doesn't have to load classes.
+ * <p>
+ * The class files are found through the class loader the class being
+ * transformed comes from, which is the one that sees the same classes
+ * it does.  What was read is kept by loader for every later class.
+ * Only a class whose file can't be found is loaded, without being
+ * initialized, as ASM would.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class ClassHierarchy {
+
+    private static final String OBJECT = "java/lang/Object";
+
+    // What was read by loader; the loaders are weak so they can still
+    // be collected.  The bootstrap loader's classes are kept with the
+    // system loader, which finds their files too.
+    private final Map<ClassLoader, Map<String, Info>> infos =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final class Info {
+        // Internal names, superName is null for java/lang/Object
+        final String superName;
+        final String[] interfaces;
+        final boolean isInterface;
+
+        Info(String superName, String[] interfaces, boolean isInterface) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+    }
+
+    // Adds the class that is being transformed, which may not be
+    // found by its loader yet.
+    void add(ClassLoader loader, ClassReader reader) {
+        infos(loader).put(reader.getClassName(), info(reader));
+    }
+
+    // Same as ClassWriter.getCommonSuperClass(), for classes seen by
+    // the given loader.
+    String getCommonSuperClass(ClassLoader loader, String type1, String type2) {
+        Map<String, Info> known = infos(loader);
+        Info info1 = info(loader, known, type1);
+        Info info2 = info(loader, known, type2);
+        if (isAssignableFrom(loader, known, type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(loader, known, type2, type1)) {
+            return type2;
+        }
+        if (info1.isInterface || info2.isInterface) {
+            return OBJECT;
+        }
+        String type = info1.superName;
+        while (type != null && !isAssignableFrom(loader, known, type, type2)) {
+            type = info(loader, known, type).superName;
+        }
+        return type == null ? OBJECT : type;
+    }
+
+    // Whether type is type2 or one of its super classes or interfaces.
+    private boolean isAssignableFrom(ClassLoader loader, Map<String, Info> known, String type, String type2) {
+        Set<String> seen = new HashSet<>();
+        Deque<String> todo = new ArrayDeque<>();
+        todo.push(type2);
+        while (!todo.isEmpty()) {
+            String current = todo.pop();
+            if (current.equals(type)) {
+                return true;
+            }
+            if (!seen.add(current)) {
+                continue;
+            }
+            Info info = info(loader, known, current);
+            if (info.superName != null) {
+                todo.push(info.superName);
+            }
+            for (String i : info.interfaces) {
+                todo.push(i);
+            }
+        }
+        return false;
+    }
+
+    private Map<String, Info> infos(ClassLoader loader) {
+        ClassLoader key = loader == null ? ClassLoader.getSystemClassLoader() : loader;
+        return infos.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+    }
+
+    private static Info info(ClassLoader loader, Map<String, Info> known, String type) {
+        Info info = known.get(type);
+        if (info == null) {
+            info = read(loader, type);
+            known.putIfAbsent(type, info);
+        }
+        return info;
+    }
+
+    private static Info info(ClassReader reader) {
+        return new Info(reader.getSuperName(), reader.getInterfaces(),
+                (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+    }
+
+    private static Info read(ClassLoader loader, String type) {
+        ClassLoader finder = loader == null ? ClassLoader.getSystemClassLoader() : loader;
+        try (InputStream in = finder.getResourceAsStream(type + ".class")) {
+            if (in != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1 << 12];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                return parse(bytes.toByteArray());
+            }
+        } catch (IOException e) {
+            // Not a class file we can read, so load the class instead
+        }
+        return load(finder, type);
+    }
+
+    // Reads the access flags, super class and interfaces from the start
+    // of a class file.  Unlike ClassReader this doesn't mind class
+    // files newer than the ASM we have, such as the JDK's own.
+    private static Info parse(byte[] classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file");
+        }
+        // Minor and major version
+        in.readInt();
+
+        // Only the names of classes are needed from the constant pool
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNames = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classNames[i] = in.readUnsignedShort();
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.skipBytes(8);
+                    // Takes two entries
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        int access = in.readUnsignedShort();
+        // This class
+        in.readUnsignedShort();
+        int superClass = in.readUnsignedShort();
+        String[] interfaces = new String[in.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = utf8[classNames[in.readUnsignedShort()]];
+        }
+        return new Info(superClass == 0 ? null : utf8[classNames[superClass]], interfaces,
+                (access & Opcodes.ACC_INTERFACE) != 0);
+    }
+
+    // For classes that only exist once they're loaded, e.g. the ones
+    // generated at runtime.
+    private static Info load(ClassLoader loader, String type) {
+        Class<?> clazz;
+        try {
+            clazz = Class.forName(type.replace('/', '.'), false, loader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            throw new TypeNotPresentException(type, e);
+        }
+        Class<?>[] interfaces = clazz.getInterfaces();
+        String[] interfaceNames = new String[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceNames[i] = interfaces[i].getName().replace('.', '/');
+        }
+        Class<?> superClass = clazz.getSuperclass();
+        return new Info(superClass == null ? null : superClass.getName().replace('.', '/'),
+                interfaceNames, clazz.isInterface());
+    }
+}
@@ -0,0 +1,275 @@
+package vedebug.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that the recorder encodes trace records into.
+ * See {@link TraceFormat} for the layout of each record.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class EventBuffer {
+
+    private byte[] data;
+    private int length;
+
+    // Number of records in the buffer, used in place of the old
+    // calls.size() when deciding whether to flush
+    private int records;
+
+    EventBuffer() {
+        this(1 << 16);
+    }
+
+    EventBuffer(int initialCapacity) {
+        this.data = new byte[initialCapacity];
+    }
+
+    int length() {
+        return length;
+    }
+
+    int records() {
+        return records;
+    }
+
+    byte[] data() {
+        return data;
+    }
+
+    void clear() {
+        length = 0;
+        records = 0;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    // Record level helpers *******************
+
+    void putMethod(int id, int firstLine, int lastLine, String methodString, long key) {
+        putTag(TraceFormat.METHOD);
+        putVarInt(id);
+        putSignedVarInt(firstLine);
+        putSignedVarInt(lastLine);
+        putString(methodString);
+        putFixedLong(key);
+    }
+
+    void putThread(int stream, long threadId, String threadName) {
+        putTag(TraceFormat.THREAD);
+        putVarInt(stream);
+        putVarLong(threadId);
+        putString(threadName);
+    }
+
+    void putChunk(int stream, long chunkSequence, long firstRecord) {
+        putTag(TraceFormat.CHUNK);
+        putVarInt(stream);
+        putVarLong(chunkSequence);
+        putVarLong(firstRecord);
+    }
+
+    void putCall(int invocationLine, int id) {
+        putTag(TraceFormat.CALL);
+        putSignedVarInt(invocationLine);
+        putVarInt(id);
+    }
+
+    void putBlock(int id, int line) {
+        putTag(TraceFormat.BLOCK);
+        putVarInt(id);
+        putVarInt(line);
+    }
+
+    void putReturn(int id) {
+        putTag(TraceFormat.RETURN);
+        putVarInt(id);
+    }
+
+    void putException(int tag, int id, int type) {
+        putTag(tag);
+        putVarInt(id);
+        putVarInt(type);
+    }
+
+    void putUnwind(int id) {
+        putTag(TraceFormat.UNWIND);
+        putVarInt(id);
+    }
+
+    void putDropped() {
+        putTag(TraceFormat.DROPPED);
+    }
+
+    void putRepeat(int length, int count) {
+        putTag(TraceFormat.REPEAT);
+        putVarInt(length);
+        putVarInt(count);
+    }
+
+    void putRepeatValues(int iteration, int index) {
+        putTag(TraceFormat.REPEAT_VALUES);
+        putVarInt(iteration);
+        putVarInt(index);
+    }
+
+    // The value's bits are the value itself for INT, LONG, CHAR and
+    // BOOLEAN (0 or 1) and its raw bits for FLOAT and DOUBLE.
+    void putPrimitive(int tag, int kind, long bits) {
+        putTag(tag);
+        putByte(kind);
+        putElement(kind, bits);
+    }
+
+    // Starts an ARRAY_ARG or ARRAY_RET record; the elements (or the
+    // component type) are put right after it with putElement().
+    void putArray(int tag, int kind, int length, int count) {
+        putTag(tag);
+        putByte(kind);
+        putVarInt(length);
+        putVarInt(count);
+    }
+
+    // Puts one element of an array the same way putPrimitive() puts
+    // the value.
+    void putElement(int kind, long bits) {
+        switch (kind) {
+            case GraphFormat.CHAR:
+                putVarInt((int) bits);
+                break;
+            case GraphFormat.FLOAT:
+                putFixedInt((int) bits);
+                break;
+            case GraphFormat.DOUBLE:
+                putFixedLong(bits);
+                break;
+            case GraphFormat.BOOLEAN:
+                putByte((int) bits);
+                break;
+            default:
+                putSignedVarLong(bits);
+                break;
+        }
+    }
+
+    void putFooter(int stream, long droppedValues, long droppedTraversals, long spilledBuffers) {
+        putTag(TraceFormat.FOOTER);
+        putVarInt(stream);
+        putVarLong(droppedValues);
+        putVarLong(droppedTraversals);
+        putVarLong(spilledBuffers);
+    }
+
+    void putValue(int tag, String value) {
+        putTag(tag);
+        putString(value);
+    }
+
+    void putPooledString(int id, String value) {
+        putTag(TraceFormat.STRING);
+        putVarInt(id);
+        putString(value);
+    }
+
+    void putStringValue(int tag, int id) {
+        putTag(tag);
+        putVarInt(id);
+    }
+
+    // Primitive helpers **********************
+
+    void putTag(int tag) {
+        records++;
+        putByte(tag);
+    }
+
+    void putByte(int b) {
+        ensureCapacity(1);
+        data[length++] = (byte) b;
+    }
+
+    // Copies records that were encoded somewhere else.
+    void putRecords(byte[] bytes, int offset, int count, int records) {
+        if (count > 0) {
+            putBytes(bytes, offset, count);
+            this.records += records;
+        }
+    }
+
+    void putBytes(byte[] bytes, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(bytes, offset, data, length, count);
+        length += count;
+    }
+
+    // Unsigned LEB128
+    void putVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            data[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+
+    void putVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            data[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+
+    void putSignedVarInt(int value) {
+        putVarInt((value << 1) ^ (value >> 31));
+    }
+
+    void putSignedVarLong(long value) {
+        putVarLong((value << 1) ^ (value >> 63));
+    }
+
+    // Big-endian, always 4 bytes
+    void putFixedInt(int value) {
+        ensureCapacity(4);
+        data[length++] = (byte) (value >>> 24);
+        data[length++] = (byte) (value >>> 16);
+        data[length++] = (byte) (value >>> 8);
+        data[length++] = (byte) value;
+    }
+
+    // Big-endian, always 8 bytes
+    void putFixedLong(long value) {
+        putFixedInt((int) (value >>> 32));
+        putFixedInt((int) value);
+    }
+
+    // Number of bytes putVarInt() takes for the value.
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarInt(bytes.length);
+        putBytes(bytes, 0, bytes.length);
+    }
+
+    private void ensureCapacity(int size) {
+        if (length + size > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + size));
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package vedebug.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming reader for the records written by {@link EventBuffer}.
+ * <p>
+ * Works like a cursor: {@link #next()} reads the next record and
+ * fills in the fields relevant to its tag.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class EventReader {
+
+    private final InputStream in;
+
+    // Payload of the last record read
+    int id;
+    int line;
+    int lastLine;
+    String text;
+    // Key of the method, see MethodKeys
+    long key;
+    int stream;
+    long threadId;
+    long chunkSequence;
+    long firstRecord;
+    long droppedValues;
+    long droppedTraversals;
+    long spilledBuffers;
+    int length;
+    int count;
+    // Which time of a REPEAT and which of its records, see
+    // TraceFormat.REPEAT_VALUES
+    int iteration;
+    int index;
+    // Kind and bits of a primitive value, see EventBuffer.putPrimitive()
+    int kind;
+    long bits;
+    // Table id of the exception's class name
+    int type;
+    // Elements of an array, the first count of them, see
+    // EventBuffer.putArray(); length and count are set too
+    long[] elements = new long[8];
+
+    EventReader(InputStream in) {
+        this.in = in;
+    }
+
+    // Checks the magic bytes and the version at the start of a
+    // binary trace file.
+    void readHeader() throws IOException {
+        readHeader(TraceFormat.MAGIC, TraceFormat.VERSION);
+    }
+
+    // Same for any of the binary files, see GraphFormat.
+    void readHeader(byte[] magic, int expectedVersion) throws IOException {
+        for (byte b : magic) {
+            if (in.read() != b) {
+                throw new IOException("Not a vedebug binary trace");
+            }
+        }
+        int version = readVarInt();
+        if (version != expectedVersion) {
+            throw new IOException("Unsupported trace format version " + version);
+        }
+    }
+
+    // Returns the tag of the next record, or -1 at the end of the
+    // stream.
+    int next() throws IOException {
+        int tag = in.read();
+        switch (tag) {
+            case -1:
+                break;
+            case TraceFormat.METHOD:
+                id = readVarInt();
+                line = readSignedVarInt();
+                lastLine = readSignedVarInt();
+                text = readString();
+                key = readFixedLong();
+                break;
+            case TraceFormat.CALL:
+                line = readSignedVarInt();
+                id = readVarInt();
+                break;
+            case TraceFormat.BLOCK:
+                id = readVarInt();
+                line = readVarInt();
+                break;
+            case TraceFormat.RETURN:
+            case TraceFormat.UNWIND:
+                id = readVarInt();
+                break;
+            case TraceFormat.THROW:
+            case TraceFormat.CATCH:
+                id = readVarInt();
+                type = readVarInt();
+                break;
+            case TraceFormat.ARG:
+            case TraceFormat.RET:
+                text = readString();
+                break;
+            case TraceFormat.PRIMITIVE_ARG:
+            case TraceFormat.PRIMITIVE_RET:
+                kind = readByte();
+                bits = readPrimitive(kind);
+                break;
+            case TraceFormat.STRING:
+                id = readVarInt();
+                text = readString();
+                break;
+            case TraceFormat.STRING_ARG:
+            case TraceFormat.STRING_RET:
+                id = readVarInt();
+                break;
+            case TraceFormat.ARRAY_ARG:
+            case TraceFormat.ARRAY_RET:
+                kind = readByte();
+                length = readVarInt();
+                count = readVarInt();
+                if (kind == GraphFormat.OBJECT) {
+                    text = readString();
+                } else {
+                    if (count > elements.length) {
+                        elements = new long[count];
+                    }
+                    for (int i = 0; i < count; i++) {
+                        elements[i] = readPrimitive(kind);
+                    }
+                }
+                break;
+            case TraceFormat.THREAD:
+                stream = readVarInt();
+                threadId = readVarLong();
+                text = readString();
+                break;
+            case TraceFormat.CHUNK:
+                stream = readVarInt();
+                chunkSequence = readVarLong();
+                firstRecord = readVarLong();
+                break;
+            case TraceFormat.DROPPED:
+                break;
+            case TraceFormat.REPEAT:
+                length = readVarInt();
+                count = readVarInt();
+                break;
+            case TraceFormat.REPEAT_VALUES:
+                iteration = readVarInt();
+                index = readVarInt();
+                break;
+            case TraceFormat.FOOTER:
+                stream = readVarInt();
+                droppedValues = readVarLong();
+                droppedTraversals = readVarLong();
+                spilledBuffers = readVarLong();
+                break;
+            default:
+                throw new IOException("Unknown record tag " + tag);
+        }
+        return tag;
+    }
+
+    private long readPrimitive(int kind) throws IOException {
+        switch (kind) {
+            case GraphFormat.CHAR:
+                return readVarInt();
+            case GraphFormat.FLOAT:
+                return readFixedInt();
+            case GraphFormat.DOUBLE:
+                return readFixedLong();
+            case GraphFormat.BOOLEAN:
+                return readByte();
+            default:
+                return readSignedVarLong();
+        }
+    }
+
+    int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    int readSignedVarInt() throws IOException {
+        int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    int readFixedInt() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    long readFixedLong() throws IOException {
+        return ((long) readFixedInt() << 32) | (readFixedInt() & 0xFFFFFFFFL);
+    }
+
+    String readString() throws IOException {
+        byte[] bytes = new byte[readVarInt()];
+        int read = 0;
+        while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
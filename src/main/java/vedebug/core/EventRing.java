@@ -0,0 +1,187 @@
+package vedebug.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fixed-size circular buffer of a thread's last events, used in
+ * flight-recorder mode (see {@link Names#ring}).  Old events are
+ * overwritten so recording costs the same however long the program
+ * runs; the window is only turned into a trace when it's dumped.
+ * <p>
+ * Every event takes one slot: CALL keeps the id and the invocation
+ * line, BLOCK the id and the line, RETURN the id, ARG and RET the
+ * rendered value, PRIMITIVE_ARG and PRIMITIVE_RET the kind and the
+ * bits of the value, THROW and CATCH the id and the exception's class
+ * name and UNWIND the id.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class EventRing {
+
+    private final byte[] tags;
+    private final int[] ids;
+    private final int[] lines;
+    private final String[] values;
+    private final long[] bits;
+
+    // Next slot to write
+    private int position = 0;
+    // Number of events ever put
+    private long written = 0;
+
+    EventRing(int capacity) {
+        this.tags = new byte[capacity];
+        this.ids = new int[capacity];
+        this.lines = new int[capacity];
+        this.values = new String[capacity];
+        this.bits = new long[capacity];
+    }
+
+    void putCall(int invocationLine, int id) {
+        put(TraceFormat.CALL, id, invocationLine, null);
+    }
+
+    void putBlock(int id, int line) {
+        put(TraceFormat.BLOCK, id, line, null);
+    }
+
+    void putReturn(int id) {
+        put(TraceFormat.RETURN, id, 0, null);
+    }
+
+    void putValue(int tag, String value) {
+        put(tag, 0, 0, value);
+    }
+
+    void putPrimitive(int tag, int kind, long bits) {
+        this.bits[position] = bits;
+        put(tag, kind, 0, null);
+    }
+
+    void putException(int tag, int id, String type) {
+        put(tag, id, 0, type);
+    }
+
+    void putUnwind(int id) {
+        put(TraceFormat.UNWIND, id, 0, null);
+    }
+
+    void putDropped() {
+        put(TraceFormat.DROPPED, 0, 0, null);
+    }
+
+    private void put(int tag, int id, int line, String value) {
+        int slot = position;
+        tags[slot] = (byte) tag;
+        ids[slot] = id;
+        lines[slot] = line;
+        values[slot] = value;
+        position = slot + 1 == tags.length ? 0 : slot + 1;
+        written++;
+    }
+
+    /**
+     * Turns the window into records that form a trace on their own.
+     * Only called by the owning thread or while it's paused, see
+     * {@link ThreadTrace#pause()}, so the window doesn't change while
+     * it's copied.
+     * The methods that were already running when the window starts
+     * are found by undoing the window's calls and returns on the
+     * stack the thread is in now, and are written as calls first.
+     *
+     * @param stack ids of the methods the thread is in now, outermost
+     *              first
+     * @return the records
+     */
+    EventBuffer dump(int[] stack) {
+        int capacity = tags.length;
+        int count = (int) Math.min(written, capacity);
+        int start = (int) ((written - count) % capacity);
+
+        byte[] windowTags = new byte[count];
+        int[] windowIds = new int[count];
+        int[] windowLines = new int[count];
+        String[] windowValues = new String[count];
+        long[] windowBits = new long[count];
+        for (int i = 0; i < count; i++) {
+            int slot = (start + i) % capacity;
+            windowTags[i] = tags[slot];
+            windowIds[i] = ids[slot];
+            windowLines[i] = lines[slot];
+            windowValues[i] = values[slot];
+            windowBits[i] = bits[slot];
+        }
+
+        // A window can't start in the middle of a call's values
+        int first = 0;
+        while (first < count && !TraceFormat.isControl(windowTags[first])) {
+            first++;
+        }
+
+        // Undo the window on the current stack.  A call that doesn't
+        // match the top of the stack belongs to a method that was left
+        // by an exception, so it was never on the stack that is left.
+        int[] frames = Arrays.copyOf(stack, Math.max(stack.length, 16));
+        int depth = stack.length;
+        for (int i = count - 1; i >= first; i--) {
+            if (windowTags[i] == TraceFormat.RETURN || windowTags[i] == TraceFormat.UNWIND) {
+                if (depth == frames.length) {
+                    frames = Arrays.copyOf(frames, depth * 2);
+                }
+                frames[depth++] = windowIds[i];
+            } else if (windowTags[i] == TraceFormat.CALL) {
+                if (depth > 0 && frames[depth - 1] == windowIds[i]) {
+                    depth--;
+                }
+            }
+        }
+
+        EventBuffer records = new EventBuffer();
+        // The window's exception class names get ids of their own
+        Map<String, Integer> types = new HashMap<>();
+        for (int i = 0; i < depth; i++) {
+            records.putCall(-1, frames[i]);
+        }
+        for (int i = first; i < count; i++) {
+            switch (windowTags[i]) {
+                case TraceFormat.CALL:
+                    records.putCall(windowLines[i], windowIds[i]);
+                    break;
+                case TraceFormat.BLOCK:
+                    records.putBlock(windowIds[i], windowLines[i]);
+                    break;
+                case TraceFormat.RETURN:
+                    records.putReturn(windowIds[i]);
+                    break;
+                case TraceFormat.UNWIND:
+                    records.putUnwind(windowIds[i]);
+                    break;
+                case TraceFormat.THROW:
+                case TraceFormat.CATCH:
+                    Integer type = types.get(windowValues[i]);
+                    if (type == null) {
+                        type = types.size();
+                        types.put(windowValues[i], type);
+                        records.putPooledString(type, windowValues[i]);
+                    }
+                    records.putException(windowTags[i], windowIds[i], type);
+                    break;
+                case TraceFormat.DROPPED:
+                    records.putDropped();
+                    break;
+                case TraceFormat.PRIMITIVE_ARG:
+                case TraceFormat.PRIMITIVE_RET:
+                    records.putPrimitive(windowTags[i], windowIds[i], windowBits[i]);
+                    break;
+                default:
+                    records.putValue(windowTags[i], windowValues[i]);
+                    break;
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,230 @@
+package vedebug.core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads the fields of one class that an object graph traversal
+ * prints, using method handles that are made once per class instead
+ * of calling {@link Field#get} on every object.
+ * <p>
+ * The fields are the class's own non-static, non-synthetic fields in
+ * alphabetical order, only the first few of them are ever printed.
+ * Primitive fields are read with getters of their own type and
+ * appended straight to the traversal so they are never boxed.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class FieldAccessors {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    // How every field is read, one of the kinds in GraphFormat
+    private final int[] kinds;
+    private final String[] names;
+    private final MethodHandle[] getters;
+    // Fields that can be read, the first size of kinds and getters
+    private final int size;
+    // Whether the class may have more fields than are read
+    private final boolean cutShort;
+
+    // Whether the fields are in the binary object graph store's type
+    // table yet, see ObjectGraphStore
+    volatile boolean described = false;
+
+    /**
+     * Constructor.
+     *
+     * @param clz the class whose fields are read
+     * @param max the most fields that are printed per object
+     */
+    FieldAccessors(Class<?> clz, int max) {
+        List<Field> fields = Stream.of(clz.getDeclaredFields())
+                .sorted(Comparator.comparing(Field::getName))
+                .filter(field -> !Modifier.isStatic(field.getModifiers()) && !field.isSynthetic())
+                .limit(max)
+                .collect(Collectors.toList());
+
+        int size = 0;
+        int[] kinds = new int[fields.size()];
+        String[] names = new String[fields.size()];
+        MethodHandle[] getters = new MethodHandle[fields.size()];
+        try {
+            for (Field field : fields) {
+                // Make the field accessible so that the getter can be
+                // made for it
+                field.setAccessible(true);
+                int kind = kindOf(field.getType());
+                getters[size] = LOOKUP.unreflectGetter(field).asType(getterType(kind));
+                kinds[size] = kind;
+                names[size] = field.getName();
+                size++;
+            }
+        } catch (Exception e) {
+            // Like the reflective loop did, print up to the field that
+            // can't be read
+            e.printStackTrace();
+        }
+        this.kinds = kinds;
+        this.names = names;
+        this.getters = getters;
+        this.size = size;
+        this.cutShort = size >= max;
+    }
+
+    // Number of fields that can be read
+    int size() {
+        return size;
+    }
+
+    boolean isCutShort() {
+        return cutShort;
+    }
+
+    int kind(int i) {
+        return kinds[i];
+    }
+
+    String name(int i) {
+        return names[i];
+    }
+
+    // Whether the i-th field is printed as a value rather than
+    // traversed as an object.
+    boolean isValue(int i) {
+        return kinds[i] != GraphFormat.OBJECT;
+    }
+
+    // Appends the value of the i-th field of object, which must not be
+    // an OBJECT field.
+    void appendValue(int i, Object object, StringBuilder str) throws Throwable {
+        MethodHandle getter = getters[i];
+        switch (kinds[i]) {
+            case GraphFormat.INT:
+                str.append((int) getter.invokeExact(object));
+                break;
+            case GraphFormat.LONG:
+                str.append((long) getter.invokeExact(object));
+                break;
+            case GraphFormat.CHAR:
+                str.append((char) getter.invokeExact(object));
+                break;
+            case GraphFormat.FLOAT:
+                str.append((float) getter.invokeExact(object));
+                break;
+            case GraphFormat.DOUBLE:
+                str.append((double) getter.invokeExact(object));
+                break;
+            case GraphFormat.BOOLEAN:
+                str.append((boolean) getter.invokeExact(object));
+                break;
+            default:
+                str.append((Object) getter.invokeExact(object));
+                break;
+        }
+    }
+
+    // Puts the value of the i-th field of object the way GraphFormat
+    // saves it, which must not be an OBJECT field.
+    void putValue(int i, Object object, EventBuffer out) throws Throwable {
+        MethodHandle getter = getters[i];
+        switch (kinds[i]) {
+            case GraphFormat.INT:
+                out.putSignedVarInt((int) getter.invokeExact(object));
+                break;
+            case GraphFormat.LONG:
+                out.putSignedVarLong((long) getter.invokeExact(object));
+                break;
+            case GraphFormat.CHAR:
+                out.putVarInt((char) getter.invokeExact(object));
+                break;
+            case GraphFormat.FLOAT:
+                out.putFixedInt(Float.floatToRawIntBits((float) getter.invokeExact(object)));
+                break;
+            case GraphFormat.DOUBLE:
+                out.putFixedLong(Double.doubleToRawLongBits((double) getter.invokeExact(object)));
+                break;
+            case GraphFormat.BOOLEAN:
+                out.putByte((boolean) getter.invokeExact(object) ? 1 : 0);
+                break;
+            default:
+                out.putString(String.valueOf((Object) getter.invokeExact(object)));
+                break;
+        }
+    }
+
+    // Puts the value a field of the given kind has when it can't be
+    // read.
+    static void putDefault(int kind, EventBuffer out) {
+        switch (kind) {
+            case GraphFormat.FLOAT:
+                out.putFixedInt(0);
+                break;
+            case GraphFormat.DOUBLE:
+                out.putFixedLong(0);
+                break;
+            case GraphFormat.STRING:
+                out.putString("null");
+                break;
+            default:
+                // Every varint kind, boolean and a null OBJECT
+                out.putByte(0);
+                break;
+        }
+    }
+
+    // Returns the value of the i-th field of object.
+    Object get(int i, Object object) throws Throwable {
+        return (Object) getters[i].invokeExact(object);
+    }
+
+    private static int kindOf(Class<?> type) {
+        if (type == long.class) {
+            return GraphFormat.LONG;
+        } else if (type == char.class) {
+            return GraphFormat.CHAR;
+        } else if (type == float.class) {
+            return GraphFormat.FLOAT;
+        } else if (type == double.class) {
+            return GraphFormat.DOUBLE;
+        } else if (type == boolean.class) {
+            return GraphFormat.BOOLEAN;
+        } else if (type.isPrimitive()) {
+            // byte, short and int are all printed as ints
+            return GraphFormat.INT;
+        } else if (type.getName().endsWith("String")) {
+            return GraphFormat.STRING;
+        }
+        return GraphFormat.OBJECT;
+    }
+
+    // Type every getter is adapted to so it can be called with
+    // invokeExact from an Object.
+    private static MethodType getterType(int kind) {
+        switch (kind) {
+            case GraphFormat.INT:
+                return MethodType.methodType(int.class, Object.class);
+            case GraphFormat.LONG:
+                return MethodType.methodType(long.class, Object.class);
+            case GraphFormat.CHAR:
+                return MethodType.methodType(char.class, Object.class);
+            case GraphFormat.FLOAT:
+                return MethodType.methodType(float.class, Object.class);
+            case GraphFormat.DOUBLE:
+                return MethodType.methodType(double.class, Object.class);
+            case GraphFormat.BOOLEAN:
+                return MethodType.methodType(boolean.class, Object.class);
+            default:
+                return MethodType.methodType(Object.class, Object.class);
+        }
+    }
+}
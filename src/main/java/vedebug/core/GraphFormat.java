@@ -0,0 +1,80 @@
+package vedebug.core;
+
+/**
+ * Constants describing the binary object graph store, which is where
+ * object graph traversals go when the trace is binary (see
+ * {@link ObjectGraphStore}).
+ * <p>
+ * The store is three files.  ObjectGraphTypes.bin and
+ * ObjectGraphTraversals.bin both start with the magic bytes followed
+ * by the format version as a varint and are then a flat sequence of
+ * records, a one byte tag followed by its payload, encoded the same way
+ * as in {@link TraceFormat}.  ObjectGraphTypes.bin has a TYPE record
+ * for every class that shows up in a traversal and a LAYOUT record for
+ * every class whose fields are saved, each written once, before any
+ * traversal that uses it.  ObjectGraphTraversals.bin has a TRAVERSAL
+ * record for every traversal.  ObjectGraphTraversals.idx has the
+ * traversal number and the offset of its record in
+ * ObjectGraphTraversals.bin, both as 8 byte big-endian longs, for every
+ * traversal.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public final class GraphFormat {
+
+    /**
+     * Header
+     */
+    public static final byte[] MAGIC = {'V', 'D', 'B', 'G'};
+    public static final int VERSION = 1;
+
+    /**
+     * Record tags
+     */
+
+    // type, class name
+    public static final int TYPE = 1;
+    // type, whether the object has more fields than are saved (byte),
+    // number of fields, and the name and kind (byte) of every field
+    public static final int LAYOUT = 2;
+    // traversal number, length of the rest of the record, stream,
+    // flags, number of objects, and then for every object its id, its
+    // type and the value of every field in its layout
+    public static final int TRAVERSAL = 3;
+
+    /**
+     * Traversal flags
+     */
+
+    // The traversed object was null
+    public static final int NULL_ROOT = 1;
+    // There were more objects than are saved
+    public static final int CUT_SHORT = 2;
+
+    /**
+     * Field kinds and how their values are saved
+     */
+
+    // byte, short and int; signed varint
+    public static final int INT = 0;
+    // Signed varint
+    public static final int LONG = 1;
+    // Varint
+    public static final int CHAR = 2;
+    // Raw int bits, 4 bytes big-endian
+    public static final int FLOAT = 3;
+    // Raw long bits, 8 bytes big-endian
+    public static final int DOUBLE = 4;
+    // One byte, 0 or 1
+    public static final int BOOLEAN = 5;
+    // A String, or any type whose name ends with it; its text
+    public static final int STRING = 6;
+    // Any other object; its id (0 for null) followed by its type if
+    // it's not null
+    public static final int OBJECT = 7;
+
+    private GraphFormat() {
+    }
+}
@@ -0,0 +1,67 @@
+package vedebug.core;
+
+/**
+ * Counts how long something took in buckets by powers of two of
+ * nanoseconds, which is precise enough to tell microseconds from
+ * milliseconds from seconds and costs one increment to record.
+ * <p>
+ * Not thread safe; every thread records into its own, see
+ * {@link ThreadStats}, and they are added up when read.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class LatencyHistogram {
+
+    // Bucket i counts the times that took less than 2^i nanoseconds
+    // and at least 2^(i-1)
+    private final long[] buckets = new long[64];
+    private long count = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    void record(long nanos) {
+        buckets[64 - Long.numberOfLeadingZeros(Math.max(nanos, 0))]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        count += other.count;
+        totalNanos += other.totalNanos;
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long totalNanos() {
+        return totalNanos;
+    }
+
+    long maxNanos() {
+        return maxNanos;
+    }
+
+    // Upper bound of the time the given fraction of the recorded
+    // times were under, or 0 if nothing was recorded.
+    long percentileNanos(double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                // The bound of the last bucket doesn't fit in a long
+                long bound = i == 0 ? 0 : i < 63 ? 1L << i : Long.MAX_VALUE;
+                return Math.min(bound, maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+}
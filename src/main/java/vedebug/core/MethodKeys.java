@@ -0,0 +1,74 @@
+package vedebug.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A key for every instrumented method that stays the same from one
+ * run to the next.
+ * <p>
+ * Method ids are handed out in the order the classes are loaded, so
+ * the same method usually gets a different id when the program runs
+ * again or loads its classes on more threads.  The key is a 64 bit
+ * FNV-1a hash of the class, name and descriptor of the method, which
+ * only changes when the method does.  It's saved as the last column
+ * of MethodIDs.txt so traces of different runs can be compared by
+ * key instead of by the names of the methods; the ids in the trace
+ * itself stay small and dense.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class MethodKeys {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Key of every method by id
+    private static final Map<Integer, Long> keys = new ConcurrentHashMap<>();
+
+    private MethodKeys() {
+    }
+
+    // Hash of a method from its internal class name, name and
+    // descriptor.
+    static long keyOf(String internalClassName, String methodName, String desc) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, internalClassName);
+        hash = hash(hash, ".");
+        hash = hash(hash, methodName);
+        return hash(hash, desc);
+    }
+
+    private static long hash(long hash, String s) {
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    // Adds a method that was just instrumented.
+    static void add(int id, long key) {
+        ClassCache.recordKey(id, key);
+        keys.put(id, key);
+    }
+
+    // Key of the method with the given id, or 0 if there's no such
+    // method.
+    static long get(int id) {
+        return keys.getOrDefault(id, 0L);
+    }
+
+    // The key as it's written to MethodIDs.txt: 16 hex digits.
+    static String format(long key) {
+        String hex = Long.toHexString(key);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    static void clear() {
+        keys.clear();
+    }
+}
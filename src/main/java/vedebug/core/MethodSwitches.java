@@ -0,0 +1,180 @@
+package vedebug.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Which instrumented methods are switched off, so the probes in them
+ * return right away and they are left out of the trace.
+ * <p>
+ * Every probe checks its method's bit first.  The bits are read with
+ * one volatile load and only written when the switches change, which
+ * is rare, so a probe of a method that is switched off costs about one
+ * load and a branch.  A thread may keep seeing the old bits for a
+ * little while after they change.
+ * <p>
+ * The switches are set by {@link Names#CONTROL_FILE}, which is read
+ * when the agent starts and again whenever it changes.  Every line is
+ * "on" or "off" followed by what it applies to: a package, a class, a
+ * method as &lt;class&gt;.&lt;method&gt; (every method of that name),
+ * or * for everything.  Lines further down win, so e.g.
+ * <pre>
+ *     off *
+ *     on com.example.server.RequestHandler
+ * </pre>
+ * only traces RequestHandler.  Lines starting with # are ignored and
+ * deleting the file switches everything back on.
+ * <p>
+ * A method that is switched off or on while it runs may show up in
+ * the trace with a call and no return or the other way around.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class MethodSwitches {
+
+    // One bit for every method id, set if the method is switched off.
+    // Ids past the end are on.  Replaced with a longer copy when more
+    // methods are added; the copy is only published once its bits are
+    // written.
+    private static volatile long[] off = new long[1 << 6];
+
+    // Class (with dots) and name of every method by id, guarded by
+    // the class
+    private static String[] classNames = new String[1 << 12];
+    private static String[] methodNames = new String[1 << 12];
+
+    // Lines of the control file as {on or off, what it applies to}
+    private static List<String[]> rules = Collections.emptyList();
+    // When the control file was last read, 0 if it doesn't exist
+    private static long lastModified = 0;
+
+    private MethodSwitches() {
+    }
+
+    // Whether the method with the given id is switched off.
+    static boolean isOff(int id) {
+        long[] bits = off;
+        int word = id >>> 6;
+        return word < bits.length && (bits[word] & (1L << id)) != 0;
+    }
+
+    // Adds a method that was just instrumented; called before any of
+    // its probes can run.
+    static synchronized void add(int id, String internalClassName, String methodName) {
+        ClassCache.recordSwitch(id, internalClassName, methodName);
+        if (id >= classNames.length) {
+            int length = Math.max(id + 1, classNames.length * 2);
+            classNames = Arrays.copyOf(classNames, length);
+            methodNames = Arrays.copyOf(methodNames, length);
+        }
+        classNames[id] = internalClassName.replace('/', '.');
+        methodNames[id] = methodName;
+        set(id, isSwitchedOff(classNames[id], methodNames[id]));
+    }
+
+    // Used in testing
+    static synchronized void clear() {
+        off = new long[off.length];
+        Arrays.fill(classNames, null);
+        Arrays.fill(methodNames, null);
+    }
+
+    // Reads the control file again if it changed since the last time.
+    static void update() {
+        File file = Names.CONTROL_FILE;
+        long modified = file.exists() ? file.lastModified() : 0;
+        if (modified == lastModified) {
+            return;
+        }
+        lastModified = modified;
+        List<String[]> rules = new ArrayList<>();
+        if (modified != 0) {
+            try {
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    String[] tokens = line.trim().split("\\s+");
+                    if (tokens.length == 0 || tokens[0].isEmpty() || tokens[0].startsWith("#")) {
+                        continue;
+                    }
+                    if (tokens.length != 2 || !(tokens[0].equals("on") || tokens[0].equals("off"))) {
+                        System.err.println("Ignoring \"" + line + "\" in " + file
+                                + ", lines must be on or off followed by a package, class, method or *");
+                        continue;
+                    }
+                    rules.add(tokens);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        apply(rules);
+    }
+
+    // Watches the control file until the program ends.
+    static void watch() {
+        while (true) {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            update();
+        }
+    }
+
+    private static synchronized void apply(List<String[]> newRules) {
+        rules = newRules;
+        long[] bits = new long[Math.max(off.length, (classNames.length >>> 6) + 1)];
+        for (int id = 0; id < classNames.length; id++) {
+            if (classNames[id] != null && isSwitchedOff(classNames[id], methodNames[id])) {
+                bits[id >>> 6] |= 1L << id;
+            }
+        }
+        off = bits;
+    }
+
+    private static void set(int id, boolean switchedOff) {
+        long[] bits = off;
+        int word = id >>> 6;
+        if (word >= bits.length) {
+            if (!switchedOff) {
+                return;
+            }
+            bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+        }
+        if (switchedOff) {
+            bits[word] |= 1L << id;
+        } else {
+            bits[word] &= ~(1L << id);
+        }
+        off = bits;
+    }
+
+    // Whether the last rule that applies to the method switches it
+    // off.
+    private static boolean isSwitchedOff(String className, String methodName) {
+        boolean switchedOff = false;
+        for (String[] rule : rules) {
+            if (appliesTo(rule[1], className, methodName)) {
+                switchedOff = rule[0].equals("off");
+            }
+        }
+        return switchedOff;
+    }
+
+    private static boolean appliesTo(String target, String className, String methodName) {
+        return target.equals("*")
+                || className.equals(target)
+                || className.startsWith(target + ".")
+                || className.startsWith(target + "$")
+                || (className + "." + methodName).equals(target);
+    }
+}
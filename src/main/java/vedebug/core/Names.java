@@ -19,6 +19,83 @@ public final class Names {
     // by sending -PagentArgs=t to the gradlew script.
     public static boolean traverse = false;
 
+    // If this is true, then the trace is written to MethodCalls.bin
+    // in the binary format described in TraceFormat instead of as
+    // text; set by sending -PagentArgs=b to the gradlew script.
+    public static boolean binary = false;
+
+    // If this is true, then every record is written straight into
+    // memory-mapped segments in SEGMENT_DIR as soon as it's recorded,
+    // so the trace survives the process being killed; set by sending
+    // -PagentArgs=m to the gradlew script.  Uses the binary format.
+    public static boolean mmap = false;
+
+    // If this is true, then MethodCalls.txt and ObjectGraphTraversals
+    // are written compressed in independent chunks with an index (see
+    // ChunkedDeflaterOutputStream); set by sending -PagentArgs=z to
+    // the gradlew script.
+    public static boolean compress = false;
+
+    // If this is true, then blocks and calls that repeat the ones
+    // before them (loops) are recorded once with a repeat count, see
+    // BlockCycles; set by sending -PagentArgs=l to the gradlew script.
+    public static boolean loops = false;
+
+    // If this is true, then an object that a thread traverses again
+    // is saved in ObjectGraphTraversals as only the fields that changed
+    // since the last time, with a full checkpoint every
+    // CHECKPOINT_INTERVAL traversals (see snapshots.py); set by
+    // sending -PagentArgs=d to the gradlew script.
+    public static boolean delta = false;
+
+    // If this is true, then instrumented classes are kept in CACHE_DIR
+    // and loaded from there by later runs as long as they don't change
+    // (see ClassCache); set by sending -PagentArgs=c to the gradlew
+    // script.
+    public static boolean cache = false;
+
+    // If this is true, then instrumented classes keep the stack map
+    // frames they were compiled with and only have their max stack
+    // recomputed, instead of having every frame computed again, which
+    // loads classes to find their common super classes; set by
+    // sending -PagentArgs=k to the gradlew script.
+    public static boolean keepFrames = false;
+
+    // Bytes of trace data that may be held in memory, counting both
+    // the buffers threads are still filling and the ones waiting to
+    // be written; set by sending -PagentArgs=M=<bytes>[k|m|g] to the
+    // gradlew script.  A buffer that is handed off when nothing else
+    // waits is always taken, so it may be overrun by one buffer.
+    public static long budget = 64L << 20;
+
+    // What a thread does when the buffer it hands off doesn't fit in
+    // the budget; set by sending -PagentArgs=O=block|spill|drop to the
+    // gradlew script.
+    //   block: waits until it fits
+    //   spill: writes the buffer to SPILL_DIR right away, the writer
+    //          thread reads it back when it gets to it
+    //   drop:  waits until it fits but stops recording argument and
+    //          return values and object graphs (keeping the control
+    //          flow) as long as it's over the budget
+    // The numbers of dropped values are saved in the footer.
+    public static final int OVERFLOW_BLOCK = 0;
+    public static final int OVERFLOW_SPILL = 1;
+    public static final int OVERFLOW_DROP = 2;
+    public static int overflow = OVERFLOW_BLOCK;
+
+    // If this is more than 0, then only the last ring events of every
+    // thread are kept and they are only saved when SaveUtil.dump() is
+    // triggered: by an uncaught exception, by DUMP_TRIGGER_FILE being
+    // created, or by entering dumpMethod; set by sending
+    // -PagentArgs=R=<events> to the gradlew script.
+    public static int ring = 0;
+
+    // Internal name of the class and name of the method whose entry
+    // triggers a dump; set by sending -PagentArgs=D=<class>.<method>
+    // to the gradlew script.
+    public static String dumpClass = null;
+    public static String dumpMethod = null;
+
     public static String pkg = null;
 
     // Eventually there will be input so the file name can be entered at
@@ -26,17 +103,88 @@ public final class Names {
     public static final File PARENT = new File(System.getProperty("user.dir") + "/.vedebug");
     public static final File METHOD_ID_FILE = new File(PARENT, "MethodIDs.txt");
     public static final File METHOD_CALL_FILE = new File(PARENT, "MethodCalls.txt");
+    public static final File METHOD_CALL_BINARY_FILE = new File(PARENT, "MethodCalls.bin");
     public static final File TRAVERSAL_FILE = new File(PARENT, "ObjectGraphTraversals");
+    // The binary object graph store used instead of TRAVERSAL_FILE
+    // when the trace is binary, see GraphFormat
+    public static final File GRAPH_TYPE_FILE = new File(PARENT, "ObjectGraphTypes.bin");
+    public static final File GRAPH_FILE = new File(PARENT, "ObjectGraphTraversals.bin");
+    public static final File GRAPH_INDEX_FILE = new File(PARENT, "ObjectGraphTraversals.idx");
+    // Lists the stream, id and name of every thread but the first one
+    public static final File THREADS_FILE = new File(PARENT, "Threads.txt");
+    // Segments written when mmap is set, see TraceSegments
+    public static final File SEGMENT_DIR = new File(PARENT, "segments");
+    public static final File SPILL_DIR = new File(PARENT, "spill");
+    // Creating this file triggers a dump in flight-recorder mode
+    public static final File DUMP_TRIGGER_FILE = new File(PARENT, "dump");
+    // Switches the probes of methods off and on while the program
+    // runs, see MethodSwitches
+    public static final File CONTROL_FILE = new File(PARENT, "control");
+    // What the recorder did and what it cost, saved when the program
+    // ends, see RecorderStats
+    public static final File STATS_FILE = new File(PARENT, "stats");
+    // Instrumented classes kept between runs, see ClassCache
+    public static final File CACHE_DIR = new File(PARENT, "cache");
+    // Lists what every stream dropped: stream, dropped values, dropped
+    // object graphs and spilled buffers
+    public static final File FOOTER_FILE = new File(PARENT, "Footer.txt");
+
+    // Whether the trace is saved in the binary format, which is also
+    // the case in mmap mode
+    public static boolean isBinary() {
+        return binary || mmap;
+    }
+
+    // The calls of the first thread that records anything go to
+    // MethodCalls.txt, those of every other thread to
+    // MethodCalls-<stream>.txt.
+    public static File methodCallFile(int stream) {
+        return stream == 0 ? METHOD_CALL_FILE : new File(PARENT, "MethodCalls-" + stream + ".txt");
+    }
+
+    // Where the chunks of a file and their index go when compress is
+    // set.
+    public static File compressedFile(File file) {
+        return new File(file.getPath() + ".z");
+    }
+
+    public static File chunkIndexFile(File file) {
+        return new File(file.getPath() + ".idx");
+    }
 
     // Indentation used for denoting object hierarchies
     public static final String SINGLE_INDENTATION = "  ";
     public static final String DOUBLE_INDENTATION = SINGLE_INDENTATION + SINGLE_INDENTATION;
 
-    // This is basically the max length of calls before stuff is
-    // printed to the file to avoid causing a stack overflow.  100,000
-    // seems to be the fastest number to keep it at though 75,000 was
-    // close, 150,000 was much slower.
-    public static final int MAX_SIZE = 100000;
+    // This is basically the max size in bytes of the calls and
+    // traversals a thread keeps before handing them to the writer
+    // thread.  It's never more than a MAX_IN_FLIGHT-th of the budget.
+    public static final int MAX_SIZE = 1 << 20;
+
+    // Number of full buffers that may wait for the writer thread
+    // before a thread handing off another one has to wait.
+    public static final int MAX_IN_FLIGHT = 4;
+
+    // Size of a memory-mapped segment
+    public static final int SEGMENT_SIZE = 8 << 20;
+
+    // Bytes of text in a compressed chunk
+    public static final int COMPRESSION_CHUNK_SIZE = 1 << 20;
+
+    // Most blocks, calls and returns in a loop that is recorded with
+    // a repeat count
+    public static final int MAX_CYCLE_LENGTH = 32;
+
+    // Most iterations of a loop held back before they are recorded
+    public static final int MAX_REPEAT = 1 << 16;
+
+    // Most String values, and characters in them, a thread keeps in
+    // its table of Strings, see StringPool
+    public static final int STRING_POOL_SIZE = 1 << 14;
+    public static final long STRING_POOL_CHARS = 1 << 22;
+
+    // Traversals of a thread between two checkpoints in delta mode
+    public static final int CHECKPOINT_INTERVAL = 64;
 
     /**
      * Classes
@@ -47,4 +195,11 @@ public final class Names {
      * Methods
      */
     public static final String SAVE_METHOD = "save";
+    public static final String SAVE_ARRAY_METHOD = "saveArray";
+    public static final String ENTER_METHOD = "enter";
+    public static final String BLOCK_METHOD = "block";
+    public static final String EXIT_METHOD = "exit";
+    public static final String THROW_METHOD = "throwing";
+    public static final String CATCH_METHOD = "caught";
+    public static final String UNWIND_METHOD = "unwind";
 }
@@ -0,0 +1,230 @@
+package vedebug.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the binary object graph store (see {@link GraphFormat}) back
+ * into traversals written exactly the way they are in the text
+ * ObjectGraphTraversals file.
+ * <p>
+ * Single traversals are found through the index without reading the
+ * ones before them, which is what the viewer needs; the whole store can
+ * also be rendered in order, which is what {@link TraceConverter} does.
+ * <p>
+ * Usage: java -cp vedebug.jar vedebug.core.ObjectGraphReader [dir
+ * [number...]] where dir defaults to .vedebug in the working directory
+ * and every traversal is printed if no numbers are given.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class ObjectGraphReader {
+
+    // A class from the type table and, if its fields are saved, its
+    // layout
+    private static final class Type {
+        final String name;
+        int[] kinds = new int[0];
+        boolean cutShort = false;
+
+        Type(String name) {
+            this.name = name;
+        }
+    }
+
+    private final File graphFile;
+    private final List<Type> types = new ArrayList<>();
+    // Traversal numbers and the offsets of their records, sorted by
+    // number
+    private final long[] numbers;
+    private final long[] offsets;
+
+    public ObjectGraphReader(File dir) throws IOException {
+        graphFile = new File(dir, Names.GRAPH_FILE.getName());
+        readTypes(new File(dir, Names.GRAPH_TYPE_FILE.getName()));
+
+        File indexFile = new File(dir, Names.GRAPH_INDEX_FILE.getName());
+        int entries = (int) (indexFile.length() / 16);
+        long[][] index = new long[entries][];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            for (int i = 0; i < entries; i++) {
+                index[i] = new long[]{in.readLong(), in.readLong()};
+            }
+        }
+        // Threads hand their traversals off in batches, so the numbers
+        // aren't in order in the file
+        Arrays.sort(index, (a, b) -> Long.compare(a[0], b[0]));
+        numbers = new long[entries];
+        offsets = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            numbers[i] = index[i][0];
+            offsets[i] = index[i][1];
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        File dir = args.length > 0 ? new File(args[0]) : Names.PARENT;
+        ObjectGraphReader reader = new ObjectGraphReader(dir);
+        if (args.length <= 1) {
+            try (Writer out = new OutputStreamWriter(System.out)) {
+                reader.renderAll(out);
+            }
+            return;
+        }
+        for (int i = 1; i < args.length; i++) {
+            int number = Integer.parseInt(args[i]);
+            String traversal = reader.read(number);
+            System.out.println(traversal == null ? "No traversal T#" + number : traversal);
+        }
+    }
+
+    /**
+     * Returns traversal T#number the way it's written in the text
+     * ObjectGraphTraversals file, or null if there is none.
+     */
+    public String read(int number) throws IOException {
+        int i = Arrays.binarySearch(numbers, number);
+        if (i < 0) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(graphFile, "r")) {
+            file.seek(offsets[i]);
+            InputStream in = new BufferedInputStream(Channels.newInputStream(file.getChannel()));
+            EventReader reader = new EventReader(in);
+            reader.readByte();
+            return render(reader);
+        }
+    }
+
+    /**
+     * Writes every traversal in the order they were saved, each on its
+     * own line the same as in the text ObjectGraphTraversals file.
+     */
+    public void renderAll(Writer out) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(graphFile), 1 << 16)) {
+            EventReader reader = new EventReader(in);
+            reader.readHeader(GraphFormat.MAGIC, GraphFormat.VERSION);
+            while (in.read() == GraphFormat.TRAVERSAL) {
+                out.write(render(reader));
+                out.write(System.lineSeparator());
+            }
+        }
+    }
+
+    // Reads the rest of a TRAVERSAL record, after its tag.
+    private String render(EventReader reader) throws IOException {
+        int number = reader.readVarInt();
+        reader.readVarInt(); // length
+        reader.readVarInt(); // stream
+        int flags = reader.readVarInt();
+        int objects = reader.readVarInt();
+        if ((flags & GraphFormat.NULL_ROOT) != 0) {
+            return "T#" + number + "O#1\nnull";
+        }
+
+        StringBuilder str = new StringBuilder("T#").append(number);
+        for (int i = 0; i < objects; i++) {
+            int id = reader.readVarInt();
+            Type type = type(reader.readVarInt());
+            str.append("\n").append(Names.SINGLE_INDENTATION).append("O#").append(id).append(" - ").append(type.name);
+            for (int kind : type.kinds) {
+                if (kind == GraphFormat.OBJECT) {
+                    str.append("\n").append(Names.DOUBLE_INDENTATION).append("O#");
+                    int fieldId = reader.readVarInt();
+                    if (fieldId != 0) {
+                        str.append(fieldId).append(" - ").append(type(reader.readVarInt()).name);
+                    } else {
+                        str.append("0 - null");
+                    }
+                } else {
+                    str.append("\n    ");
+                    appendValue(kind, reader, str);
+                }
+            }
+            if (type.cutShort) {
+                str.append("...");
+            }
+        }
+        if ((flags & GraphFormat.CUT_SHORT) != 0) {
+            str.append("...");
+        }
+        return str.toString();
+    }
+
+    private static void appendValue(int kind, EventReader reader, StringBuilder str) throws IOException {
+        switch (kind) {
+            case GraphFormat.INT:
+                str.append(reader.readSignedVarInt());
+                break;
+            case GraphFormat.LONG:
+                str.append(reader.readSignedVarLong());
+                break;
+            case GraphFormat.CHAR:
+                str.append((char) reader.readVarInt());
+                break;
+            case GraphFormat.FLOAT:
+                str.append(Float.intBitsToFloat(reader.readFixedInt()));
+                break;
+            case GraphFormat.DOUBLE:
+                str.append(Double.longBitsToDouble(reader.readFixedLong()));
+                break;
+            case GraphFormat.BOOLEAN:
+                str.append(reader.readByte() != 0);
+                break;
+            default:
+                str.append(reader.readString());
+                break;
+        }
+    }
+
+    private Type type(int index) throws IOException {
+        if (index < 0 || index >= types.size()) {
+            throw new IOException("Unknown type " + index);
+        }
+        return types.get(index);
+    }
+
+    private void readTypes(File typeFile) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(typeFile))) {
+            EventReader reader = new EventReader(in);
+            reader.readHeader(GraphFormat.MAGIC, GraphFormat.VERSION);
+            int tag;
+            while ((tag = in.read()) != -1) {
+                int index = reader.readVarInt();
+                switch (tag) {
+                    case GraphFormat.TYPE:
+                        if (index != types.size()) {
+                            throw new IOException("Type " + index + " out of order");
+                        }
+                        types.add(new Type(reader.readString()));
+                        break;
+                    case GraphFormat.LAYOUT:
+                        Type type = type(index);
+                        type.cutShort = reader.readByte() != 0;
+                        int[] kinds = new int[reader.readVarInt()];
+                        for (int i = 0; i < kinds.length; i++) {
+                            reader.readString(); // name
+                            kinds[i] = reader.readByte();
+                        }
+                        type.kinds = kinds;
+                        break;
+                    default:
+                        throw new IOException("Unknown record " + tag + " in " + typeFile);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package vedebug.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes object graph traversals to the binary store described in
+ * {@link GraphFormat} instead of ObjectGraphTraversals, which is what
+ * happens when the trace is binary.
+ * <p>
+ * Recording threads encode their traversals into their own buffers,
+ * referring to classes by the index this gives them; the type table
+ * records of new classes are kept here until the writer thread saves
+ * the next buffer, so they are always in the file before a traversal
+ * that uses them.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class ObjectGraphStore {
+
+    private final Map<Class<?>, Integer> types = new ConcurrentHashMap<>();
+    // TYPE and LAYOUT records that aren't saved yet; also guards
+    // giving out type indexes
+    private final EventBuffer pending = new EventBuffer(1 << 12);
+
+    // Length of ObjectGraphTraversals.bin so far
+    private long written = 0;
+
+    // Returns the index of the class in the type table, adding it if
+    // it's not there yet.
+    int typeOf(Class<?> clz) {
+        Integer type = types.get(clz);
+        if (type != null) {
+            return type;
+        }
+        synchronized (pending) {
+            type = types.get(clz);
+            if (type == null) {
+                type = types.size();
+                pending.putTag(GraphFormat.TYPE);
+                pending.putVarInt(type);
+                pending.putString(clz.getName());
+                types.put(clz, type);
+            }
+            return type;
+        }
+    }
+
+    // Adds the layout of the class's fields to the type table unless
+    // it's there already.
+    void describe(int type, FieldAccessors fields) {
+        if (fields.described) {
+            return;
+        }
+        synchronized (pending) {
+            if (fields.described) {
+                return;
+            }
+            pending.putTag(GraphFormat.LAYOUT);
+            pending.putVarInt(type);
+            pending.putByte(fields.isCutShort() ? 1 : 0);
+            pending.putVarInt(fields.size());
+            for (int i = 0; i < fields.size(); i++) {
+                pending.putString(fields.name(i));
+                pending.putByte(fields.kind(i));
+            }
+            fields.described = true;
+        }
+    }
+
+    // Starts the three files over; called before the first traversal.
+    void create() {
+        //noinspection ResultOfMethodCallIgnored
+        Names.PARENT.mkdirs();
+        EventBuffer header = new EventBuffer(16);
+        header.putBytes(GraphFormat.MAGIC, 0, GraphFormat.MAGIC.length);
+        header.putVarInt(GraphFormat.VERSION);
+        try (OutputStream typeFile = new FileOutputStream(Names.GRAPH_TYPE_FILE);
+             OutputStream graphFile = new FileOutputStream(Names.GRAPH_FILE)) {
+            header.writeTo(typeFile);
+            header.writeTo(graphFile);
+            // The index has no header, it's only emptied
+            new FileOutputStream(Names.GRAPH_INDEX_FILE).close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        written = header.length();
+    }
+
+    // Saves the traversals a thread encoded, see
+    // ThreadTrace.addGraph(), along with the new part of the type
+    // table; called on the writer thread.
+    void write(EventBuffer graphs) {
+        EventBuffer tables;
+        synchronized (pending) {
+            tables = new EventBuffer(Math.max(pending.length(), 1));
+            tables.putBytes(pending.data(), 0, pending.length());
+            pending.clear();
+        }
+        try (OutputStream typeFile = new FileOutputStream(Names.GRAPH_TYPE_FILE, true);
+             OutputStream graphFile = new BufferedOutputStream(
+                     new FileOutputStream(Names.GRAPH_FILE, true), 1 << 16);
+             DataOutputStream indexFile = new DataOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(Names.GRAPH_INDEX_FILE, true)))) {
+            tables.writeTo(typeFile);
+
+            // Every record says how long it is so the offsets can be
+            // found without decoding the objects
+            InputStream in = new ByteArrayInputStream(graphs.data(), 0, graphs.length());
+            EventReader reader = new EventReader(in);
+            int offset = 0;
+            while (offset < graphs.length()) {
+                reader.readByte();
+                int number = reader.readVarInt();
+                int length = reader.readVarInt();
+                indexFile.writeLong(number);
+                indexFile.writeLong(written + offset);
+                //noinspection ResultOfMethodCallIgnored
+                in.skip(length);
+                offset = graphs.length() - in.available();
+            }
+            graphs.writeTo(graphFile);
+            written += graphs.length();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package vedebug.core;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives every object an id that stays the same for the whole run, so
+ * the same object has the same O# in every object graph traversal.
+ * <p>
+ * Objects are compared by identity only, so none of their own
+ * hashCode() or equals() methods ever run.  They are held through weak
+ * references so having an id doesn't keep an object alive; entries of
+ * objects that were collected are removed as they show up in the
+ * reference queue.  The table uses open addressing with linear
+ * probing and keeps the ids in an int array.
+ * <p>
+ * The table is split into segments by identity hash, each with its
+ * own lock, so threads traversing different objects rarely wait on
+ * each other; only the next id is shared.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class ObjectIds {
+
+    // Number of segments, a power of two
+    private static final int SEGMENTS = 1 << 5;
+
+    // Weak reference that remembers the identity hash of its object,
+    // which is needed to find its slot once the object is gone
+    private static final class Key extends WeakReference<Object> {
+        final int hash;
+
+        Key(Object object, int hash, ReferenceQueue<Object> queue) {
+            super(object, queue);
+            this.hash = hash;
+        }
+    }
+
+    // Marks a slot whose entry was removed; probing goes on past it
+    private static final Key REMOVED = new Key(null, 0, null);
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    ObjectIds() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    // Returns the id of the object, giving it the next one if it
+    // doesn't have one yet.  Ids start at 1.
+    int idOf(Object object) {
+        int hash = System.identityHashCode(object);
+        // The high bits pick the segment and the low ones the slot
+        return segments[mix(hash) >>> (Integer.SIZE - Integer.numberOfTrailingZeros(SEGMENTS))]
+                .idOf(object, hash);
+    }
+
+    // Part of the table, guarded by itself
+    private final class Segment {
+
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+        private Key[] keys = new Key[1 << 5];
+        private int[] ids = new int[1 << 5];
+        // Live entries, and live plus removed ones
+        private int size = 0;
+        private int used = 0;
+
+        synchronized int idOf(Object object, int hash) {
+            expunge();
+            int mask = keys.length - 1;
+            int free = -1;
+            for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+                Key key = keys[slot];
+                if (key == null) {
+                    if (free < 0) {
+                        free = slot;
+                        used++;
+                    }
+                    break;
+                }
+                if (key == REMOVED) {
+                    if (free < 0) {
+                        free = slot;
+                    }
+                } else if (key.hash == hash && key.get() == object) {
+                    return ids[slot];
+                }
+            }
+            int id = nextId.getAndIncrement();
+            keys[free] = new Key(object, hash, queue);
+            ids[free] = id;
+            size++;
+            if (used * 2 > keys.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        // Removes the entries of objects that were collected.
+        private void expunge() {
+            Reference<?> ref;
+            while ((ref = queue.poll()) != null) {
+                Key dead = (Key) ref;
+                int mask = keys.length - 1;
+                for (int slot = mix(dead.hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                    if (keys[slot] == dead) {
+                        keys[slot] = REMOVED;
+                        size--;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Moves the live entries to a table where at most a quarter of
+        // the slots are used, dropping the removed ones.
+        private void rehash() {
+            int capacity = keys.length;
+            while (size * 4 > capacity) {
+                capacity *= 2;
+            }
+            Key[] oldKeys = keys;
+            int[] oldIds = ids;
+            keys = new Key[capacity];
+            ids = new int[capacity];
+            used = size;
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                Key key = oldKeys[i];
+                if (key == null || key == REMOVED) {
+                    continue;
+                }
+                int slot = mix(key.hash) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+
+    // Spreads identity hashes over the table, they may be sequential.
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
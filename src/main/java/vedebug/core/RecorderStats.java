@@ -0,0 +1,231 @@
+package vedebug.core;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Adds up the {@link ThreadStats} of every thread, along with what
+ * the writer thread did, whenever they are read.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class RecorderStats implements RecorderStatsMXBean {
+
+    static final String OBJECT_NAME = "vedebug:type=RecorderStats";
+
+    private final Iterable<ThreadTrace> traces;
+    private final long startNanos = System.nanoTime();
+
+    // Batches saved to the files; guarded by SaveUtil's print lock
+    final LatencyHistogram writes = new LatencyHistogram();
+
+    RecorderStats(Iterable<ThreadTrace> traces) {
+        this.traces = traces;
+    }
+
+    private ThreadStats total() {
+        ThreadStats total = new ThreadStats();
+        for (ThreadTrace trace : traces) {
+            total.add(trace.stats);
+        }
+        return total;
+    }
+
+    @Override
+    public long getCalls() {
+        return total().calls;
+    }
+
+    @Override
+    public long getBlocks() {
+        return total().blocks;
+    }
+
+    @Override
+    public long getReturns() {
+        return total().returns;
+    }
+
+    @Override
+    public long getThrows() {
+        return total().throwsCount;
+    }
+
+    @Override
+    public long getCatches() {
+        return total().catches;
+    }
+
+    @Override
+    public long getUnwinds() {
+        return total().unwinds;
+    }
+
+    @Override
+    public long getValues() {
+        return total().values;
+    }
+
+    @Override
+    public long getTraversals() {
+        return total().traversals;
+    }
+
+    @Override
+    public long getEvents() {
+        return total().events();
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        return eventsPerSecond(total());
+    }
+
+    @Override
+    public long getBytesEncoded() {
+        return total().bytes;
+    }
+
+    @Override
+    public long getFlushes() {
+        return total().flushes.count();
+    }
+
+    @Override
+    public double getFlushMillis() {
+        return millis(total().flushes.totalNanos());
+    }
+
+    @Override
+    public double getFlushLatencyP50Micros() {
+        return micros(total().flushes.percentileNanos(0.5));
+    }
+
+    @Override
+    public double getFlushLatencyP99Micros() {
+        return micros(total().flushes.percentileNanos(0.99));
+    }
+
+    @Override
+    public double getFlushLatencyMaxMicros() {
+        return micros(total().flushes.maxNanos());
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.count();
+    }
+
+    @Override
+    public double getWriteMillis() {
+        return millis(writes.totalNanos());
+    }
+
+    @Override
+    public double getWriteLatencyP99Micros() {
+        return micros(writes.percentileNanos(0.99));
+    }
+
+    @Override
+    public double getTraversalMillis() {
+        return millis(total().traversalNanos);
+    }
+
+    @Override
+    public long getStackWalks() {
+        return total().stackWalks;
+    }
+
+    @Override
+    public double getStackWalkMillis() {
+        return millis(total().stackWalkNanos);
+    }
+
+    @Override
+    public long getDroppedValues() {
+        long dropped = 0;
+        for (ThreadTrace trace : traces) {
+            dropped += trace.droppedValues;
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getDroppedTraversals() {
+        long dropped = 0;
+        for (ThreadTrace trace : traces) {
+            dropped += trace.droppedTraversals;
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getSpilledBuffers() {
+        long spilled = 0;
+        for (ThreadTrace trace : traces) {
+            spilled += trace.spilledBuffers;
+        }
+        return spilled;
+    }
+
+    @Override
+    public String getSummary() {
+        ThreadStats total = total();
+        LatencyHistogram flushes = total.flushes;
+        return "calls " + total.calls + "\n"
+                + "blocks " + total.blocks + "\n"
+                + "returns " + total.returns + "\n"
+                + "throws " + total.throwsCount + "\n"
+                + "catches " + total.catches + "\n"
+                + "unwinds " + total.unwinds + "\n"
+                + "values " + total.values + "\n"
+                + "traversals " + total.traversals + "\n"
+                + "events " + total.events() + "\n"
+                + "eventsPerSecond " + eventsPerSecond(total) + "\n"
+                + "bytesEncoded " + total.bytes + "\n"
+                + "flushes " + flushes.count() + "\n"
+                + "flushMillis " + millis(flushes.totalNanos()) + "\n"
+                + "flushLatencyP50Micros " + micros(flushes.percentileNanos(0.5)) + "\n"
+                + "flushLatencyP99Micros " + micros(flushes.percentileNanos(0.99)) + "\n"
+                + "flushLatencyMaxMicros " + micros(flushes.maxNanos()) + "\n"
+                + "writes " + writes.count() + "\n"
+                + "writeMillis " + millis(writes.totalNanos()) + "\n"
+                + "writeLatencyP99Micros " + micros(writes.percentileNanos(0.99)) + "\n"
+                + "traversalMillis " + millis(total.traversalNanos) + "\n"
+                + "stackWalks " + total.stackWalks + "\n"
+                + "stackWalkMillis " + millis(total.stackWalkNanos) + "\n"
+                + "droppedValues " + getDroppedValues() + "\n"
+                + "droppedTraversals " + getDroppedTraversals() + "\n"
+                + "spilledBuffers " + getSpilledBuffers() + "\n";
+    }
+
+    // Saves the summary to STATS_FILE; called when the program ends.
+    void save() {
+        //noinspection ResultOfMethodCallIgnored
+        Names.PARENT.mkdirs();
+        try (FileWriter fw = new FileWriter(Names.STATS_FILE);
+             BufferedWriter bw = new BufferedWriter(fw);
+             PrintWriter out = new PrintWriter(bw)) {
+            out.print(getSummary());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private double eventsPerSecond(ThreadStats total) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? total.events() / seconds : 0;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1e3;
+    }
+}
@@ -0,0 +1,72 @@
+package vedebug.core;
+
+/**
+ * What the agent has recorded so far and what it cost, registered
+ * with the platform MBean server as vedebug:type=RecorderStats.  The
+ * same numbers are saved to .vedebug/stats when the program ends.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public interface RecorderStatsMXBean {
+
+    long getCalls();
+
+    long getBlocks();
+
+    long getReturns();
+
+    long getThrows();
+
+    long getCatches();
+
+    long getUnwinds();
+
+    // Argument and return values
+    long getValues();
+
+    long getTraversals();
+
+    long getEvents();
+
+    // Events since the agent started, per second
+    double getEventsPerSecond();
+
+    long getBytesEncoded();
+
+    // Hand-offs of full buffers to the writer thread, and how long the
+    // recording thread waited for them
+    long getFlushes();
+
+    double getFlushMillis();
+
+    double getFlushLatencyP50Micros();
+
+    double getFlushLatencyP99Micros();
+
+    double getFlushLatencyMaxMicros();
+
+    // Batches the writer saved to the files, and how long that took
+    long getWrites();
+
+    double getWriteMillis();
+
+    double getWriteLatencyP99Micros();
+
+    double getTraversalMillis();
+
+    // Stack walks for the invocation line of static initializers
+    long getStackWalks();
+
+    double getStackWalkMillis();
+
+    long getDroppedValues();
+
+    long getDroppedTraversals();
+
+    long getSpilledBuffers();
+
+    // Everything above, one "name value" per line
+    String getSummary();
+}
@@ -2,17 +2,28 @@ package vedebug.core;
 
 import vedebug.util.Types;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -24,9 +35,18 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.management.ObjectName;
+
 /**
  * Util class to collect and then store data to a file.
  * <p>
@@ -41,87 +61,122 @@ public class SaveUtil {
 
     private static int ARRAY_ITEMS = 5;
 
-    // Doesn't add a newline to the start of the first line in MethodCalls.txt
-    private static boolean firstLine = true;
-    // Switches to append mode after print() is called once
+    // Switches MethodIDs.txt (and MethodCalls.bin) to append mode
+    // after they are printed once
     private static boolean firstPrint = true;
 
     // Variables used when traversing object graphs
     // These need to remain unchanged through method calls
-    private static int traversalNum = 1;
-    private static boolean firstObject = true;
-    // List of traversals to save, basically the traversal version of the
-    // calls list
-    private static final List<String> traversals = new ArrayList<>();
-
-    // These ones are used for traversing, too, but need to be reset at the
-    // start of certain methods in the object graph traversal
-    private static int objectIDCounter = 1;
-    // The stack of objects that still need to be traversed
-    private static final Queue<Object> toTraverse = new ArrayDeque<>();
-    // The map of objects and their object ids, needed for linking circular
-    // references
-    private static final Map<Object, Integer> objectIDs = new HashMap<>();
-    // The map of classes and their fields, this is used to make the program
-    // slightly more efficient
-    // It's very slight and this might not even be worth it...
-    private static final Map<Class<?>, List<Field>> classFields = new HashMap<>();
-    // The set of all the objects which have been visited already in the loop
-    private static final Set<Object> visited = new HashSet<>();
-    // Prevents stack overflows during object graph traversal
-    private static boolean inTraversal;
-
-    // ArrayList of strings which eventually is saved to the file when
-    // the shutdown hook is called.
-    private static final List<String> calls = new ArrayList<>();
-    // Current call is appended to this, once a newline is reached it
-    // gets added to the calls() list
-    private static final StringBuilder currentCall = new StringBuilder();
+    private static final AtomicInteger traversalNum = new AtomicInteger(1);
+    private static final AtomicBoolean firstObject = new AtomicBoolean(true);
+
+    // The map of classes and the getters of their fields, so the
+    // fields of a class are only looked up once
+    private static final Map<Class<?>, FieldAccessors> classFields = new ConcurrentHashMap<>();
+    // Ids of all the objects that were traversed or referenced by a
+    // traversed object, the same in every traversal
+    private static final ObjectIds objectIDs = new ObjectIds();
+    // Where traversals go when the trace is binary
+    private static final ObjectGraphStore graphStore = new ObjectGraphStore();
+
+    // Everything a thread records goes to its own ThreadTrace so the
+    // probes never need to synchronize.
+    private static final ThreadLocal<ThreadTrace> threadTrace = ThreadLocal.withInitial(SaveUtil::newThreadTrace);
+    // Every ThreadTrace created so far, used to save what is left in
+    // them when the program ends
+    private static final Queue<ThreadTrace> allThreadTraces = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger streamCounter = new AtomicInteger(0);
+    // Set by the shutdown hook; threads that start recording after
+    // that get a closed trace
+    private static volatile boolean shuttingDown = false;
+    // Adds up what every thread recorded, see RecorderStats
+    private static final RecorderStats stats = new RecorderStats(allThreadTraces);
+    // Orders the chunks of all the threads in MethodCalls.bin
+    private static final AtomicLong chunkSequence = new AtomicLong(0);
+
+    // Only one thread at a time may write the files; this is only
+    // taken when writing and never when recording.
+    private static final Object printLock = new Object();
+
+    // Writes the buffers that threads hand off when they are full
+    private static final TraceWriter writer = new TraceWriter(Names.MAX_IN_FLIGHT, Names.budget, SaveUtil::write);
+    // Names the files batches are spilled to
+    private static final AtomicLong spillCounter = new AtomicLong(0);
+
+    // In mmap mode the method ids go to their own segments as soon as
+    // a class is transformed
+    private static final TraceSegments methodSegments = new TraceSegments(Names.SEGMENT_DIR, "methods");
+    private static boolean segmentDirCreated = false;
+
+    // Length of the text written to ObjectGraphTraversals so far, used
+    // for the chunk index when compress is set
+    private static long traversalsWritten = 0;
 
     // Stores the IDs for each method
     // Only get printed to their file once since they're never changed during
     // runtime
-    private static final Map<Integer, String> ids = new TreeMap<>();
+    // These three maps are filled in while classes are transformed,
+    // possibly on many threads at once.  The ids of a class are kept
+    // in pendingIds until the class is done (see commitMethodIDs()),
+    // so its methods never get saved with only some of their lines.
+    private static final Map<Integer, String> ids = new ConcurrentSkipListMap<>();
+    private static final ThreadLocal<Map<Integer, String>> pendingIds = ThreadLocal.withInitial(TreeMap::new);
     // Used to keep track of the line number each method starts at
-    private static final Map<Integer, Integer> firstLineNums = new HashMap<>();
+    private static final Map<Integer, Integer> firstLineNums = new ConcurrentHashMap<>();
     // Used to keep track of the line number each method ends at
-    private static final Map<Integer, Integer> lastLineNums = new HashMap<>();
+    private static final Map<Integer, Integer> lastLineNums = new ConcurrentHashMap<>();
 
     // Used so that BB files don't get truncated midway through
-    private static final Set<String> visitedBBFiles = new HashSet<>();
-
-    // This is used mainly for formatting, otherwise a simple method
-    // call in VMV would have sufficed
-    private static int currentInvocationLine = 0;
-
-    // This is used to temporarily save the line number from which a
-    // static method is called (the value of previous
-    // currentInvocationLine). A call to the static initializing block
-    // happens between saving the invocation line number of a static
-    // method and a real call to the static method. This interrupts
-    // the normal call of the static method and overrides the value of
-    // currentInvocationLine. If we don't keep the value, we will lose
-    // it and thus get a wrong invocation line number when we go back
-    // from static initializing block and enter the static method.
-    private static int currentInvocationLineBackup = 0;
+    private static final Set<String> visitedBBFiles = ConcurrentHashMap.newKeySet();
+    // Every BB file is read and written by one thread at a time; the
+    // nested classes of a source file can be transformed at once
+    private static final Map<String, Object> bbFileLocks = new ConcurrentHashMap<>();
 
     // Only need to be saved in this class because this Set is needed
-    // in testing
-    private static Set<Integer> allBasicBlocks;
+    // in testing; the last ones saved on the thread
+    private static final ThreadLocal<Set<Integer>> allBasicBlocks = new ThreadLocal<>();
 
     public static Map<Integer, String> getIds() {
         return ids;
     }
 
+    // Returns the calls of the current thread that haven't been saved
+    // yet.
     public static List<String> getCalls() {
-        // This needs to be done because otherwise the closing line
-        // for main won't be inserted
-        flushCurrentCall();
-        return calls;
+        ThreadTrace trace = threadTrace.get();
+        EventBuffer events = trace.events;
+        try {
+            // Strings that got their ids before events was last saved
+            // are only in the table
+            List<String> strings = trace.strings == null
+                    ? new ArrayList<>() : new ArrayList<>(trace.strings.texts());
+            return TraceRenderer.renderLines(new EventReader(
+                    new ByteArrayInputStream(events.data(), 0, events.length())), strings);
+        } catch (IOException e) {
+            // Can't happen when reading from memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Returns the object graph traversals of the current thread that
+    // haven't been saved yet.
+    public static List<String> getTraversals() {
+        return new ArrayList<>(threadTrace.get().traversals);
+    }
+
+    // Returns what the recorder has done so far, the same numbers that
+    // are registered over JMX.
+    public static RecorderStatsMXBean getStats() {
+        return stats;
+    }
+
+    // Saves the stats to STATS_FILE the way the shutdown hook does.
+    public static void saveStats() {
+        stats.save();
     }
 
     public static Set<Integer> getBasicBlockLineNums() {
-        return allBasicBlocks;
+        return allBasicBlocks.get();
     }
 
     /**
@@ -134,26 +189,33 @@ public class SaveUtil {
     }
 
     public static void setActualLastLineNum(int id) {
-        int maxBB = allBasicBlocks.isEmpty() ? 0 : Collections.max(allBasicBlocks);
-
-        try {
-            if (lastLineNums.get(id) < maxBB) {
-                lastLineNums.put(id, maxBB);
-            }
-        } catch (NullPointerException e) {
-            // TODO: Correctly handle NullPointerException caused by
-            // methods without a line number table, since putting (id,
-            // 0) into the map would not solve this because it still
-            // crashes in the Python script.
-        }
+        ClassCache.recordActualLastLine(id);
+        Set<Integer> basicBlocks = allBasicBlocks.get();
+        int maxBB = basicBlocks.isEmpty() ? 0 : Collections.max(basicBlocks);
+
+        // TODO: Correctly handle methods without a line number table,
+        // since putting (id, 0) into the map would not solve this
+        // because it still crashes in the Python script.
+        lastLineNums.computeIfPresent(id, (k, last) -> Math.max(last, maxBB));
     }
 
     // Used to keep the current invocation line number
     // When this is set to a value != 0 it will be used the next time that
-    // save(String) is called
+    // enter(int) is called
     @SuppressWarnings("unused")
     public static void setCurrentInvocationLine(int currentInvocationLine) {
-        SaveUtil.currentInvocationLine = currentInvocationLine;
+        ThreadTrace trace = threadTrace.get();
+        trace.currentInvocationLine = currentInvocationLine;
+        trace.setLine(currentInvocationLine);
+    }
+
+    // Used to keep the line the current method is at up to date in
+    // the shadow call stack right before instructions that may enter
+    // an instrumented method without an instrumented call, i.e.
+    // static initializers and callbacks from library code.
+    @SuppressWarnings("unused")
+    public static void setCurrentLine(int currentLine) {
+        threadTrace.get().setLine(currentLine);
     }
 
     public static void setPkg(String pkg) {
@@ -163,115 +225,318 @@ public class SaveUtil {
     // Used in testing to clear all the important variables before
     // every test.
     public static void clear() {
-        firstLine = true;
         firstPrint = true;
 
-        calls.clear();
+        allThreadTraces.clear();
+        streamCounter.set(0);
+        threadTrace.remove();
         ids.clear();
+        pendingIds.remove();
         firstLineNums.clear();
         lastLineNums.clear();
-        currentCall.setLength(0);
-        traversals.clear();
+        MethodSwitches.clear();
+        MethodKeys.clear();
 
-        currentInvocationLine = 0;
         VideoMethodVisitor.resetIDCounter();
     }
 
-    // Called in the Method Visitor to save method calls and returns.
+    private static ThreadTrace newThreadTrace() {
+        ThreadTrace trace = new ThreadTrace(streamCounter.getAndIncrement(), Thread.currentThread());
+        allThreadTraces.add(trace);
+        if (shuttingDown) {
+            trace.close();
+        }
+        return trace;
+    }
+
+    // Every probe starts here with the id of the method it's in: it
+    // may only record if this returns the thread's trace, and then
+    // has to call end() on it.  Returns null if the method is switched
+    // off or the trace is closed, and waits while it's paused, see
+    // ThreadTrace.begin().
+    private static ThreadTrace begin(int id) {
+        if (MethodSwitches.isOff(id)) {
+            return null;
+        }
+        ThreadTrace trace = threadTrace.get();
+        return trace.begin() ? trace : null;
+    }
+
+    // Called at the start of every instrumented method with its id.
     // Used through ASM.
     @SuppressWarnings("unused")
-    public static void save(String str) {
-        // Labels with line zero exist so the basic block collection
-        // thinks they should be saved, this ignores those.
-        if (str.startsWith("@") || str.startsWith("-")) {
-            // Solves issues with implicit method calls right before a basic
-            // block change
-            // that would cause a line number to be placed before the basic
-            // block
-            currentInvocationLine = 0;
-
-            // If it's a "basic block" at line 0 it can be skipped
-            // since it doesn't actually exist
-            if (str.charAt(1) == '0') {
-                return;
+    public static void enter(int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            trace.stats.calls++;
+            checkSizes(trace);
+            int invocationLine = 0;
+            if (trace.currentInvocationLine != 0) {
+                invocationLine = trace.currentInvocationLine;
+                trace.currentInvocationLine = 0;
+            } else if (VideoMethodVisitor.isSavingInvocationLineNums) {
+                // Implicit calls, e.g. callbacks from library code
+                invocationLine = trace.callerLine();
             }
+            if (trace.ring != null) {
+                trace.ring.putCall(invocationLine, id);
+            } else if (trace.cycles != null) {
+                trace.cycles.call(trace.events, invocationLine, id);
+                commit(trace);
+            } else {
+                trace.events.putCall(invocationLine, id);
+                commit(trace);
+            }
+            trace.push(id);
+            trace.afterReturn = false;
+        } finally {
+            trace.end();
         }
+    }
 
-        // If this is the very first method being called, it should
-        // not start with a newline, otherwise it should
-        if (firstLine) {
-            firstLine = false;
-        } else {
-            appendCurrentCall("\n");
+    // Called at the start of every basic block with the method's id
+    // and the line of the block.  Used through ASM.
+    @SuppressWarnings("unused")
+    public static void block(int id, int line) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
         }
+        try {
+            trace.stats.blocks++;
+            // Solves issues with implicit method calls right before a
+            // basic block change that would cause a line number to be
+            // placed before the basic block
+            trace.currentInvocationLine = 0;
+            checkSizes(trace);
+            if (trace.ring != null) {
+                trace.ring.putBlock(id, line);
+            } else if (trace.cycles != null) {
+                trace.cycles.block(trace.events, id, line);
+                commit(trace);
+            } else {
+                trace.events.putBlock(id, line);
+                commit(trace);
+            }
+            trace.block(id, line);
+            trace.afterReturn = false;
+        } finally {
+            trace.end();
+        }
+    }
 
-        // The else-if branch of this may be broken ..?
-        if (currentInvocationLine != 0) {
-            appendCurrentCall(currentInvocationLine + " ");
-            currentInvocationLine = 0;
-        } else if (VideoMethodVisitor.isSavingInvocationLineNums && Character.isDigit(str.charAt(0))) {
-            appendCurrentCall(getInvocationLineNumNotFromStackWalker(false) + " ");
+    // Called right before every return instruction with the method's
+    // id.  Used through ASM.
+    @SuppressWarnings("unused")
+    public static void exit(int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            trace.stats.returns++;
+            trace.currentInvocationLine = 0;
+            checkSizes(trace);
+            if (trace.ring != null) {
+                trace.ring.putReturn(id);
+            } else if (trace.cycles != null) {
+                trace.cycles.ret(trace.events, id);
+                commit(trace);
+            } else {
+                trace.events.putReturn(id);
+                commit(trace);
+            }
+            trace.pop(id);
+            trace.afterReturn = true;
+        } finally {
+            trace.end();
         }
+    }
 
-        appendCurrentCall(str + " ");
+    // Called right before every throw instruction with the exception
+    // and the method's id.  Used through ASM.
+    @SuppressWarnings("unused")
+    public static void throwing(Throwable exception, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveException(trace, TraceFormat.THROW, id, exception);
+        } finally {
+            trace.end();
+        }
+    }
+
+    // Called at the start of every exception handler with the
+    // exception and the method's id.  Used through ASM.
+    @SuppressWarnings("unused")
+    public static void caught(Throwable exception, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            // Methods the exception left are normally unwound already;
+            // the ones that weren't are the constructors that hadn't
+            // called super() or this() yet
+            if (trace.contains(id)) {
+                while (trace.top() != id) {
+                    saveUnwind(trace, trace.top());
+                }
+            }
+            saveException(trace, TraceFormat.CATCH, id, exception);
+        } finally {
+            trace.end();
+        }
+    }
+
+    // Called by the handler that is put around the whole method when
+    // an exception leaves it, with the method's id.  Used through ASM.
+    @SuppressWarnings("unused")
+    public static void unwind(int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveUnwind(trace, id);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static void saveUnwind(ThreadTrace trace, int id) {
+        trace.stats.unwinds++;
+        trace.currentInvocationLine = 0;
+        checkSizes(trace);
+        if (trace.ring != null) {
+            trace.ring.putUnwind(id);
+        } else {
+            endCycles(trace);
+            trace.events.putUnwind(id);
+            commit(trace);
+        }
+        trace.pop(id);
+        trace.afterReturn = true;
     }
 
     // The rest of the save() methods are for saving actual argument
     // and returns values to the current call; There's one for every
     // primitive (aside from byte and short which use the int one)
-    // plus for objects.
+    // plus for objects.  Like every other probe they take the id of
+    // the method they're in and do nothing if it's switched off, see
+    // MethodSwitches.
 
     @SuppressWarnings("unused")
-    public static void save(int i) {
-        appendCurrentCall(i + " ");
+    public static void save(int i, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            savePrimitive(trace, GraphFormat.INT, i);
+        } finally {
+            trace.end();
+        }
     }
 
     @SuppressWarnings("unused")
-    public static void save(long l) {
-        appendCurrentCall(l + " ");
+    public static void save(long l, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            savePrimitive(trace, GraphFormat.LONG, l);
+        } finally {
+            trace.end();
+        }
     }
 
     @SuppressWarnings("unused")
-    public static void save(char c) {
-        appendCurrentCall(c + " ");
+    public static void save(char c, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            savePrimitive(trace, GraphFormat.CHAR, c);
+        } finally {
+            trace.end();
+        }
     }
 
     @SuppressWarnings("unused")
-    public static void save(float f) {
-        appendCurrentCall(f + " ");
+    public static void save(float f, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            savePrimitive(trace, GraphFormat.FLOAT, Float.floatToRawIntBits(f));
+        } finally {
+            trace.end();
+        }
     }
 
     @SuppressWarnings("unused")
-    public static void save(double d) {
-        appendCurrentCall(d + " ");
+    public static void save(double d, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            savePrimitive(trace, GraphFormat.DOUBLE, Double.doubleToRawLongBits(d));
+        } finally {
+            trace.end();
+        }
     }
 
     @SuppressWarnings("unused")
-    public static void save(boolean b) {
-        appendCurrentCall(b + " ");
+    public static void save(boolean b, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            savePrimitive(trace, GraphFormat.BOOLEAN, b ? 1 : 0);
+        } finally {
+            trace.end();
+        }
     }
 
     @SuppressWarnings("unused")
-    public static void save(Object o) {
-        if (o != null) {
-            // If it's a String then even though it's an object we can
-            // just appendCurrentCall it to the call StringBuilder on
-            // its own.
-            if (o instanceof String) {
-                appendCurrentCall("\"" + ((String) o).replace("\n", "\\n") + "\" ");
-            } else if (o.getClass().isArray()) {
-                // If the object is an array, then don't actually go
-                // through it; use this util method instead.
-                saveArray(o);
-            } else if (Names.traverse) {
-                if (Names.pkg != null && o.getClass().getPackage().getName().startsWith(Names.pkg)) {
-                    traverseObjectGraph(o);
-                } else if (!Types.isIgnoredClassName(o.getClass().getName().replaceAll("\\.", "/"))) {
-                    traverseObjectGraph(o);
+    public static void save(Object o, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            if (o != null) {
+                // If it's a String then even though it's an object we
+                // can just save it as a value on its own.
+                if (o instanceof String) {
+                    saveString(trace, (String) o);
+                } else if (o.getClass().isArray()) {
+                    // If the object is an array, then don't actually go
+                    // through it; use this util method instead.
+                    saveArray(trace, o);
+                } else if (Names.traverse) {
+                    if (Names.pkg != null && o.getClass().getPackage().getName().startsWith(Names.pkg)) {
+                        traverseObjectGraph(trace, o);
+                    } else if (!Types.isIgnoredClassName(o.getClass().getName().replaceAll("\\.", "/"))) {
+                        traverseObjectGraph(trace, o);
+                    }
                 }
+            } else {
+                saveNull(trace);
             }
-        } else {
-            appendCurrentCall("null ");
+        } finally {
+            trace.end();
         }
     }
 
@@ -280,111 +545,248 @@ public class SaveUtil {
     // script knows when to go to the location of clinit in the code.
     @SuppressWarnings("unused")
     public static void saveInvocationLineNumber() {
-        // Get the invocation line number of clinit from stack
-        currentInvocationLine = getInvocationLineNumNotFromStackWalker(true);
+        ThreadTrace trace = threadTrace.get();
+        // The class is initialized at the line the innermost
+        // instrumented method is at.  If there is none then it was
+        // initialized from code that isn't instrumented (e.g. through
+        // reflection) and only the real stack knows where.
+        if (trace.isStackEmpty()) {
+            long start = System.nanoTime();
+            trace.currentInvocationLine = getInvocationLineNumNotFromStackWalker();
+            trace.stats.stackWalks++;
+            trace.stats.stackWalkNanos += System.nanoTime() - start;
+        } else {
+            trace.currentInvocationLine = trace.callerLine();
+        }
     }
 
     // Backup the invocation line number of the previous called static method
     public static void backupInvocationLineNumber() {
-        currentInvocationLineBackup = currentInvocationLine;
+        ThreadTrace trace = threadTrace.get();
+        trace.currentInvocationLineBackup = trace.currentInvocationLine;
     }
 
     // Recover the invocation line number of the previous called static method
     public static void recoverInvocationLineNumber() {
-        currentInvocationLine = currentInvocationLineBackup;
+        ThreadTrace trace = threadTrace.get();
+        trace.currentInvocationLine = trace.currentInvocationLineBackup;
     }
 
     // Downgrade to Java 8. This is refactored method of
     // getInvocationLineNumFromStackWalker, but without using
-    // StackWalker(since Java 9).
-    private static int getInvocationLineNumNotFromStackWalker(boolean clinit) {
-        // Uses class StackTraceElement to get the line number where <clinit>
-        // was invoked.
-
-        List<StackTraceElement> preStackTrace =
-                new ArrayList<StackTraceElement>(Arrays.asList(Thread.currentThread().getStackTrace()));
-        List<StackTraceElement> stackTrace =
-                new ArrayList<StackTraceElement>();
-        for (int j = 0; j < preStackTrace.size(); j++) {
-            if (checkClassIsInPkg(preStackTrace.get(j).getClassName())) {
-                stackTrace.add(preStackTrace.get(j));
+    // StackWalker(since Java 9).  Only used for <clinit> when the
+    // shadow call stack is empty, so this walks up to the static
+    // initializer that is running and returns the line of the first
+    // frame after it that belongs to the package.
+    private static int getInvocationLineNumNotFromStackWalker() {
+        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
+
+        int i = 0;
+        while (i < stackTrace.length && !stackTrace[i].getMethodName().equals("<clinit>")) {
+            i++;
+        }
+        for (i++; i < stackTrace.length; i++) {
+            if (checkClassIsInPkg(stackTrace[i].getClassName())) {
+                return stackTrace[i].getLineNumber();
             }
         }
+        return -1;
+    }
 
-        /* i has to be declared outside of the loop because it's used once
-         * again after the loop ends
-         */
-        int i;
-        /* The magicNumber is based on the number of other methods (outside
-         * of those being instrumented) which are called while getting the
-         * stackTrace. The number is used so that those methods are ignored
-         * when collecting the invocation line number. It evidently varies
-         * based on the Java version being used and the method that is being
-         * used to get the stackTrace (i.e. StackWalker vs StackTraceElements)
-         */
-        int magicNumber = 2;
+    // Shutdown hook used to save whatever is left in events after the
+    // program ends; used through ASM.
+    @SuppressWarnings("unused")
+    public static void hook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(SaveUtil::onShutdown));
 
-        if (stackTrace.size() <= magicNumber) {
-            return stackTrace.get(stackTrace.size() - 1).getLineNumber();
-        }
+        // Methods may be switched off from the start, and then
+        // whenever the control file changes
+        MethodSwitches.update();
+        Thread controller = new Thread(MethodSwitches::watch, "vedebug-control");
+        controller.setDaemon(true);
+        controller.start();
+
+        registerStats();
+
+        if (Names.ring > 0) {
+            // Dump whenever a thread dies of an exception, then do
+            // whatever would have been done without the agent
+            Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+            Thread.setDefaultUncaughtExceptionHandler((thread, e) -> {
+                dump();
+                if (previous != null) {
+                    previous.uncaughtException(thread, e);
+                } else {
+                    System.err.print("Exception in thread \"" + thread.getName() + "\" ");
+                    e.printStackTrace(System.err);
+                }
+            });
 
-        for (i = magicNumber; i < stackTrace.size(); i++) {
+            // Dump whenever the trigger file shows up
+            Thread watcher = new Thread(SaveUtil::watchDumpTrigger, "vedebug-dump-trigger");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
 
-            if (checkClassIsInPkg(stackTrace.get(i).getClassName())) {
-                break;
-            }
+    // Makes the stats readable over JMX as RecorderStats.OBJECT_NAME.
+    // Fails if the name is taken, e.g. by another copy of the agent,
+    // which is only printed.
+    static void registerStats() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(RecorderStats.OBJECT_NAME));
+        } catch (Exception e) {
+            // The trace doesn't need it
+            e.printStackTrace();
+        }
+    }
 
-            if (i == stackTrace.size() - 1) {
-                return -1;
+    // Flight-recorder mode only: saves the last events of every
+    // thread, replacing whatever was dumped before.  Used through ASM
+    // when a method is set with -PagentArgs=D=..., and by the other
+    // triggers set up in hook().
+    public static void dump() {
+        if (Names.ring <= 0) {
+            return;
+        }
+        Map<Integer, String> allIds;
+        Map<Integer, Integer> allFirstLineNums;
+        Map<Integer, Integer> allLastLineNums;
+        allIds = new TreeMap<>(ids);
+        allFirstLineNums = new HashMap<>(firstLineNums);
+        allLastLineNums = new HashMap<>(lastLineNums);
+
+        synchronized (printLock) {
+            // Start every file over
+            firstPrint = true;
+            //noinspection ResultOfMethodCallIgnored
+            Names.THREADS_FILE.delete();
+            boolean first = true;
+            for (ThreadTrace trace : allThreadTraces) {
+                // The other threads keep running, each one only stops
+                // while its own window is taken
+                if (!trace.pause()) {
+                    System.err.println("Left thread " + trace.threadName
+                            + " out of the dump, it didn't stop recording");
+                    continue;
+                }
+                TraceWriter.Batch batch;
+                try {
+                    batch = new TraceWriter.Batch(trace, trace.ring.dump(trace.stack()),
+                            Collections.emptyList(), null, 0,
+                            first ? allIds : Collections.emptyMap(), allFirstLineNums, allLastLineNums);
+                } finally {
+                    trace.resume();
+                }
+                trace.firstPrint = true;
+                trace.firstLine = true;
+                printCalls(batch);
+                first = false;
             }
         }
-
-        return stackTrace.get(clinit ? i - 1 : i).getLineNumber();
     }
 
-    // Shutdown hook used to save whatever is left in calls after the
-    // program ends; used through ASM.
-    @SuppressWarnings("unused")
-    public static void hook() {
-        Runtime.getRuntime().addShutdownHook(new Thread(SaveUtil::onShutdown));
+    // Polls for DUMP_TRIGGER_FILE, which is deleted again once the
+    // dump is done.
+    private static void watchDumpTrigger() {
+        while (true) {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (Names.DUMP_TRIGGER_FILE.exists()) {
+                dump();
+                //noinspection ResultOfMethodCallIgnored
+                Names.DUMP_TRIGGER_FILE.delete();
+            }
+        }
     }
 
     // Adds a method id and its starting line number to the lineNum
     // HashMap.
     public static void insertLineNum(int id, int lineNum) {
+        ClassCache.recordFirstLine(id, lineNum);
         firstLineNums.put(id, lineNum);
     }
 
     // Replace a line number, which is used when handling constructors
     // that include super() or this().
     public static void replaceLineNum(int id, int lineNum) {
+        ClassCache.recordReplacedFirstLine(id, lineNum);
         firstLineNums.replace(id, lineNum);
     }
 
     // Adds a method id and its ending line number to the lastLineNum
     // HashMap.
     public static void insertLastLineNum(int id, int lineNum) {
+        ClassCache.recordLastLine(id, lineNum);
         lastLineNums.put(id, lineNum);
     }
 
     // Adds the method ids and their respective "method strings" to
-    // the ids map.
+    // the ids of the class being transformed on this thread.
     public static void insertMethodID(int id, String methodString) {
-        ids.put(id, methodString);
+        ClassCache.recordMethodID(id, methodString);
+        pendingIds.get().put(id, methodString);
     }
 
     // Wipes and then creates a new file for saving the basic blocks
     // for each .java file.
     public static void createBasicBlockFile(String fullSourceSplitByDash) {
+        ClassCache.recordBasicBlockFile(fullSourceSplitByDash);
         //noinspection ResultOfMethodCallIgnored
         Names.PARENT.mkdirs();
 
-        if (!visitedBBFiles.contains(fullSourceSplitByDash)) {
-            visitedBBFiles.add(fullSourceSplitByDash);
+        synchronized (bbFileLock(fullSourceSplitByDash)) {
+            if (visitedBBFiles.add(fullSourceSplitByDash)) {
+                try (FileWriter fw = new FileWriter(new File(Names.PARENT, fullSourceSplitByDash + "BB"));
+                     BufferedWriter bw = new BufferedWriter(fw);
+                     PrintWriter out = new PrintWriter(bw)) {
+                    out.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static Object bbFileLock(String fullSourceSplitByDash) {
+        return bbFileLocks.computeIfAbsent(fullSourceSplitByDash, k -> new Object());
+    }
+
+    // This is called in VMV's visitEnd() method.  Saves all the BB
+    // line numbers for each method instrumented.
+    public static void printBasicBlocksToFile(String fullSourceSplitByDash, Set<Integer> basicBlockLineNums) {
+        ClassCache.recordBasicBlocks(fullSourceSplitByDash, basicBlockLineNums);
+        synchronized (bbFileLock(fullSourceSplitByDash)) {
+            // This prevents duplicate line numbers from being written to the BB file by reading in all previously written nums
+            Path pathToBBFile = Paths.get(Names.PARENT + "/" + fullSourceSplitByDash + "BB");
+            if (Files.exists(pathToBBFile)) {
+                // Reads all the lines already in the file and then puts them in a List<Integer>
+                Set<Integer> oldNums = null;
+                try {
+                    oldNums = Files.lines(pathToBBFile)
+                            .map(String::trim)
+                            .mapToInt(Integer::parseInt)
+                            .boxed()
+                            .collect(Collectors.toSet());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                if (oldNums != null) {
+                    basicBlockLineNums.addAll(oldNums);
+                }
 
-            try (FileWriter fw = new FileWriter(new File(Names.PARENT, fullSourceSplitByDash + "BB"));
+            }
+
+            allBasicBlocks.set(basicBlockLineNums);
+
+            try (FileWriter fw = new FileWriter(new File(Names.PARENT, fullSourceSplitByDash + "BB"), false);
                  BufferedWriter bw = new BufferedWriter(fw);
                  PrintWriter out = new PrintWriter(bw)) {
+                basicBlockLineNums.forEach(out::println);
                 out.flush();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -392,193 +794,349 @@ public class SaveUtil {
         }
     }
 
-    // This is called in VMV's visitEnd() method.  Saves all the BB
-    // line numbers for each method instrumented.
-    public static void printBasicBlocksToFile(String fullSourceSplitByDash, Set<Integer> basicBlockLineNums) {
-        // This prevents duplicate line numbers from being written to the BB file by reading in all previously written nums
-        Path pathToBBFile = Paths.get(Names.PARENT + "/" + fullSourceSplitByDash + "BB");
-        if (Files.exists(pathToBBFile)) {
-            // Reads all the lines already in the file and then puts them in a List<Integer>
-            Set<Integer> oldNums = null;
+    // Sorts the basic blocks for a source file at the end of every
+    // class.  This is really only necessary when there are nested
+    // classes, otherwise it doesn't actually change anything.
+    public static void sortBasicBlocks(String classNameSplitByDash) {
+        ClassCache.recordSortedBasicBlocks(classNameSplitByDash);
+        synchronized (bbFileLock(classNameSplitByDash)) {
+            Path path = Paths.get(Names.PARENT + "/" + classNameSplitByDash + "BB");
+
+            List<Integer> basicBlocks = new ArrayList<>();
             try {
-                oldNums = Files.lines(pathToBBFile)
-                        .map(String::trim)
-                        .mapToInt(Integer::parseInt)
-                        .boxed()
-                        .collect(Collectors.toSet());
+                basicBlocks =
+                        Files.lines(path).map(Integer::parseInt).sorted().collect(Collectors.toList());
             } catch (IOException e) {
                 e.printStackTrace();
             }
 
-            if (oldNums != null) {
-                basicBlockLineNums.addAll(oldNums);
+            try (FileWriter fw = new FileWriter(new File(Names.PARENT, classNameSplitByDash + "BB"));
+                 BufferedWriter bw = new BufferedWriter(fw);
+                 PrintWriter out = new PrintWriter(bw)) {
+
+                basicBlocks.forEach(out::println);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }
+    }
 
+    // Used to ignore certain classes
+    private static boolean checkClassIsInPkg(String className) {
+        className = className.replace(".", "/");
+        if (Names.pkg != null && !className.startsWith(Names.pkg)) {
+            return false;
         }
+        return Names.pkg != null || !Types.isIgnoredClassName(className);
+    }
 
-        SaveUtil.allBasicBlocks = basicBlockLineNums;
+    // Used as a util method on-top of save(Object) when the object is
+    // an array; for arrays we only get the first N items in them.
+    // Arrays that reach save() weren't declared as arrays, so their
+    // type is only known now; they're saved by the same code as the
+    // saveArray() probes, inside the probe that is running.
+    private static void saveArray(ThreadTrace trace, Object o) {
+        if (o instanceof Object[]) {
+            saveArray(trace, (Object[]) o);
+        } else if (o instanceof int[]) {
+            saveArray(trace, (int[]) o);
+        } else if (o instanceof byte[]) {
+            saveArray(trace, (byte[]) o);
+        } else if (o instanceof char[]) {
+            saveArray(trace, (char[]) o);
+        } else if (o instanceof long[]) {
+            saveArray(trace, (long[]) o);
+        } else if (o instanceof double[]) {
+            saveArray(trace, (double[]) o);
+        } else if (o instanceof float[]) {
+            saveArray(trace, (float[]) o);
+        } else if (o instanceof short[]) {
+            saveArray(trace, (short[]) o);
+        } else if (o instanceof boolean[]) {
+            saveArray(trace, (boolean[]) o);
+        }
+    }
 
-        try (FileWriter fw = new FileWriter(new File(Names.PARENT, fullSourceSplitByDash + "BB"), false);
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-            basicBlockLineNums.forEach(out::println);
-            out.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    // The saveArray() methods save the first N elements of an array
+    // argument or return value, or only their type for arrays of
+    // objects; VideoMethodVisitor calls the one for the declared type
+    // of the array.  Used through ASM.  Each one only begins the probe,
+    // the private overload that takes the trace saves the array.
+
+    @SuppressWarnings("unused")
+    public static void saveArray(byte[] a, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveArray(trace, a);
+        } finally {
+            trace.end();
         }
     }
 
-    // Sorts the basic blocks for a source file at the end of every
-    // class.  This is really only necessary when there are nested
-    // classes, otherwise it doesn't actually change anything.
-    public static void sortBasicBlocks(String classNameSplitByDash) {
-        Path path = Paths.get(Names.PARENT + "/" + classNameSplitByDash + "BB");
+    private static void saveArray(ThreadTrace trace, byte[] a) {
+        if (a == null) {
+            saveNull(trace);
+            return;
+        }
+        EventBuffer out = startArray(trace, GraphFormat.INT, a.length);
+        if (out != null) {
+            for (int i = 0; i < ARRAY_ITEMS && i < a.length; i++) {
+                out.putElement(GraphFormat.INT, a[i]);
+            }
+            endArray(trace);
+        }
+    }
 
-        List<Integer> basicBlocks = new ArrayList<>();
+    @SuppressWarnings("unused")
+    public static void saveArray(short[] a, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
         try {
-            basicBlocks =
-                    Files.lines(path).map(Integer::parseInt).sorted().collect(Collectors.toList());
-        } catch (IOException e) {
-            e.printStackTrace();
+            saveArray(trace, a);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static void saveArray(ThreadTrace trace, short[] a) {
+        if (a == null) {
+            saveNull(trace);
+            return;
+        }
+        EventBuffer out = startArray(trace, GraphFormat.INT, a.length);
+        if (out != null) {
+            for (int i = 0; i < ARRAY_ITEMS && i < a.length; i++) {
+                out.putElement(GraphFormat.INT, a[i]);
+            }
+            endArray(trace);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static void saveArray(int[] a, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveArray(trace, a);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static void saveArray(ThreadTrace trace, int[] a) {
+        if (a == null) {
+            saveNull(trace);
+            return;
+        }
+        EventBuffer out = startArray(trace, GraphFormat.INT, a.length);
+        if (out != null) {
+            for (int i = 0; i < ARRAY_ITEMS && i < a.length; i++) {
+                out.putElement(GraphFormat.INT, a[i]);
+            }
+            endArray(trace);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static void saveArray(long[] a, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveArray(trace, a);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static void saveArray(ThreadTrace trace, long[] a) {
+        if (a == null) {
+            saveNull(trace);
+            return;
+        }
+        EventBuffer out = startArray(trace, GraphFormat.LONG, a.length);
+        if (out != null) {
+            for (int i = 0; i < ARRAY_ITEMS && i < a.length; i++) {
+                out.putElement(GraphFormat.LONG, a[i]);
+            }
+            endArray(trace);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static void saveArray(char[] a, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveArray(trace, a);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static void saveArray(ThreadTrace trace, char[] a) {
+        if (a == null) {
+            saveNull(trace);
+            return;
+        }
+        EventBuffer out = startArray(trace, GraphFormat.CHAR, a.length);
+        if (out != null) {
+            for (int i = 0; i < ARRAY_ITEMS && i < a.length; i++) {
+                out.putElement(GraphFormat.CHAR, a[i]);
+            }
+            endArray(trace);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static void saveArray(float[] a, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveArray(trace, a);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static void saveArray(ThreadTrace trace, float[] a) {
+        if (a == null) {
+            saveNull(trace);
+            return;
+        }
+        EventBuffer out = startArray(trace, GraphFormat.FLOAT, a.length);
+        if (out != null) {
+            for (int i = 0; i < ARRAY_ITEMS && i < a.length; i++) {
+                out.putElement(GraphFormat.FLOAT, Float.floatToRawIntBits(a[i]));
+            }
+            endArray(trace);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static void saveArray(double[] a, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveArray(trace, a);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static void saveArray(ThreadTrace trace, double[] a) {
+        if (a == null) {
+            saveNull(trace);
+            return;
+        }
+        EventBuffer out = startArray(trace, GraphFormat.DOUBLE, a.length);
+        if (out != null) {
+            for (int i = 0; i < ARRAY_ITEMS && i < a.length; i++) {
+                out.putElement(GraphFormat.DOUBLE, Double.doubleToRawLongBits(a[i]));
+            }
+            endArray(trace);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static void saveArray(boolean[] a, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveArray(trace, a);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static void saveArray(ThreadTrace trace, boolean[] a) {
+        if (a == null) {
+            saveNull(trace);
+            return;
+        }
+        EventBuffer out = startArray(trace, GraphFormat.BOOLEAN, a.length);
+        if (out != null) {
+            for (int i = 0; i < ARRAY_ITEMS && i < a.length; i++) {
+                out.putElement(GraphFormat.BOOLEAN, a[i] ? 1 : 0);
+            }
+            endArray(trace);
         }
+    }
 
-        try (FileWriter fw = new FileWriter(new File(Names.PARENT, classNameSplitByDash + "BB"));
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-
-            basicBlocks.forEach(out::println);
-        } catch (IOException e) {
-            e.printStackTrace();
+    @SuppressWarnings("unused")
+    public static void saveArray(Object[] a, int id) {
+        ThreadTrace trace = begin(id);
+        if (trace == null) {
+            return;
+        }
+        try {
+            saveArray(trace, a);
+        } finally {
+            trace.end();
         }
     }
 
-    // Used to ignore certain classes
-    private static boolean checkClassIsInPkg(String className) {
-        className = className.replace(".", "/");
-        if (Names.pkg != null && !className.startsWith(Names.pkg)) {
-            return false;
+    private static void saveArray(ThreadTrace trace, Object[] a) {
+        if (a == null) {
+            saveNull(trace);
+            return;
+        }
+        EventBuffer out = startArray(trace, GraphFormat.OBJECT, a.length);
+        if (out != null) {
+            // [ATTENTION] We cannot implicitly call toString() of the
+            // elements except when they are Strings themselves, which
+            // is the root cause of the problem of agentdemo.  For now
+            // just save the name of the component type.
+            out.putString(a.getClass().getComponentType().getName());
+            endArray(trace);
         }
-        return Names.pkg != null || !Types.isIgnoredClassName(className);
     }
 
-    // Used as a util method on-top of save(Object) when the object is
-    // an array; for arrays we only get the first N items in them.
-    private static void saveArray(Object o) {
-        if (o.getClass().getComponentType().isPrimitive()) {
-            // If it's primitive it needs to be cast to the exact
-            // right type.
-            savePrimitiveArray(o);
-        } else if (o instanceof String) {
-            // if it's an array of String, we record the first N
-            // elements of the array.
-            Object[] oAsArray = (Object[]) o;
-            StringBuilder arrAsString = new StringBuilder("[");
-
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                arrAsString.append(", ").append(oAsArray[i]);
-            }
-            if (oAsArray.length > ARRAY_ITEMS) {
-                arrAsString.append(", ...");
-            }
-            appendCurrentCall(arrAsString.append("]").toString().replaceFirst(", ", ""));
+    // Starts the record of an array value and returns the buffer its
+    // elements go to, or null if the value is dropped.
+    private static EventBuffer startArray(ThreadTrace trace, int kind, int length) {
+        trace.stats.values++;
+        if (isDropping(trace)) {
+            trace.droppedValues++;
+            return null;
+        }
+        int tag = trace.afterReturn ? TraceFormat.ARRAY_RET : TraceFormat.ARRAY_ARG;
+        EventBuffer out;
+        if (trace.ring != null) {
+            // The ring only keeps rendered values
+            out = trace.ringValue;
+            out.clear();
         } else {
-            // Otherwise we can use our methods that are designed for
-            // the Object type.
-            Object[] oAsArray = (Object[]) o;
-            StringBuilder arrAsString = new StringBuilder("[");
-
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                // [ATTENTION] We cannot implicitly call toString() of
-                // oAsArray[i] except it is a String itself, which is
-                // the root cause of the problem of agentdemo. I
-                // don't know what we can do except to print
-                // toString(). For now just print the class name.
-                arrAsString.append(", ").append(o.getClass().getComponentType().toString().split(" ")[1]);
-                // arrAsString.append(", ").append(oAsArray[i]);
-            }
-
-            if (oAsArray.length > ARRAY_ITEMS) {
-                arrAsString.append(", ...");
-            }
-            appendCurrentCall(arrAsString.append("]").toString().replaceFirst(", ", ""));
-        }
-        appendCurrentCall(" ");
-    }
-
-    // Used even more on top of saveArray() for saving primitive
-    // arrays specifically.
-    private static void savePrimitiveArray(Object o) {
-        // This will never be null because the only time this method
-        // should be called is after already determining that the
-        // object is an array.
-        Class<?> clz = o.getClass().getComponentType();
-        StringBuilder arrAsString = new StringBuilder("[");
-        int length = -1;
-
-        // This is pretty gross because of Java typing making it
-        // complicated to deal with an array where you're not sure
-        // what primitive type it is.  Basically, if the array is N or
-        // less elements long it just prints its toString otherwise it
-        // prints its toString with a ... as the (N+1)th element.
-        if (clz.equals(byte.class)) {
-            byte[] oAsArray = (byte[]) o;
-            length = oAsArray.length;
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                arrAsString.append(", ").append(oAsArray[i]);
-            }
-        } else if (clz.equals(char.class)) {
-            char[] oAsArray = (char[]) o;
-            length = oAsArray.length;
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                if (oAsArray[i] == '\n') {
-                    arrAsString.append(", ").append("\\n");
-                } else {
-                    arrAsString.append(", ").append(oAsArray[i]);
-                }
-            }
-        } else if (clz.equals(short.class)) {
-            short[] oAsArray = (short[]) o;
-            length = oAsArray.length;
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                arrAsString.append(", ").append(oAsArray[i]);
-            }
-        } else if (clz.equals(int.class)) {
-            int[] oAsArray = (int[]) o;
-            length = oAsArray.length;
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                arrAsString.append(", ").append(oAsArray[i]);
-            }
-        } else if (clz.equals(long.class)) {
-            long[] oAsArray = (long[]) o;
-            length = oAsArray.length;
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                arrAsString.append(", ").append(oAsArray[i]);
-            }
-        } else if (clz.equals(float.class)) {
-            float[] oAsArray = (float[]) o;
-            length = oAsArray.length;
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                arrAsString.append(", ").append(oAsArray[i]);
-            }
-        } else if (clz.equals(double.class)) {
-            double[] oAsArray = (double[]) o;
-            length = oAsArray.length;
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                arrAsString.append(", ").append(oAsArray[i]);
-            }
-        } else if (clz.equals(boolean.class)) {
-            boolean[] oAsArray = (boolean[]) o;
-            length = oAsArray.length;
-            for (int i = 0; i < ARRAY_ITEMS && i < oAsArray.length; i++) {
-                arrAsString.append(", ").append(oAsArray[i]);
-            }
+            checkSizes(trace);
+            out = valuesOf(trace);
         }
+        out.putArray(tag, kind, length, Math.min(length, ARRAY_ITEMS));
+        return out;
+    }
 
-        if (length > ARRAY_ITEMS) {
-            arrAsString.append(", ...");
+    private static void endArray(ThreadTrace trace) {
+        if (trace.ring != null) {
+            trace.ring.putValue(trace.afterReturn ? TraceFormat.RET : TraceFormat.ARG,
+                    TraceRenderer.renderValue(trace.ringValue));
+        } else {
+            commit(trace);
         }
-
-        appendCurrentCall(arrAsString.append("]").toString().replaceFirst(", ", ""));
     }
 
     @SuppressWarnings("unused")
@@ -649,49 +1207,77 @@ public class SaveUtil {
     // Traverse the object graph with recursion.  This is the
     // preferred method to use (with a different output format than
     // the recursive method).
-    private static void traverseObjectGraph(Object object) {
-        if (inTraversal) {
+    private static void traverseObjectGraph(ThreadTrace trace, Object object) {
+        if (trace.inTraversal) {
+            return;
+        }
+        trace.stats.traversals++;
+        if (isDropping(trace)) {
+            trace.droppedTraversals++;
             return;
         }
         // If this is the first object whose graph is being traversed, the
         // file needs to be created
-        if (firstObject) {
-            firstObject = false;
+        if (firstObject.compareAndSet(true, false)) {
             createObjectGraphTraversalFile();
         }
 
         // Append the traversal number to the calls str so it can be linked
         // to the traversal file
-        appendCurrentCall("T#" + traversalNum + " ");
+        int num = traversalNum.getAndIncrement();
+        saveValue(trace, "T#" + num);
 
         // If the object is null, don't bother going into the other method
         if (object == null) {
-            traversals.add("T#" + traversalNum++ + "O#1\nnull");
+            if (Names.isBinary()) {
+                trace.graphObjects.clear();
+                trace.addGraph(num, GraphFormat.NULL_ROOT, 0);
+            } else if (Names.delta) {
+                trace.addTraversal("T#" + num + " " + trace.stream + "\nnull");
+            } else {
+                trace.addTraversal("T#" + num + "O#1\nnull");
+            }
             return;
         }
 
-        inTraversal = true;
-        traverseObjectGraphNotNull(object);
-        inTraversal = false;
+        trace.inTraversal = true;
+        long start = System.nanoTime();
+        traverseObjectGraphNotNull(trace, object, num);
+        trace.stats.traversalNanos += System.nanoTime() - start;
+        trace.inTraversal = false;
     }
 
     // The rest of the traversal which happens when objects are not
     // nulls.
-    private static void traverseObjectGraphNotNull(Object object) {
-        checkSizes();
+    private static void traverseObjectGraphNotNull(ThreadTrace trace, Object object, int num) {
+        checkSizes(trace);
 
         // Reset all the variables for this run-through of the method
-        objectIDCounter = 1;
+        Queue<Object> toTraverse = trace.toTraverse;
         toTraverse.clear();
-        objectIDs.clear();
-        visited.clear();
-
-        // The string which eventually gets saved to the traversal file
-        StringBuilder str = new StringBuilder("T#" + traversalNum++);
+        trace.clearVisited();
+
+        // The string which eventually gets saved to the traversal file,
+        // or the objects encoded when the trace is binary
+        boolean binary = Names.isBinary();
+        StringBuilder str = binary ? null : new StringBuilder("T#" + num);
+        EventBuffer objects = trace.graphObjects;
+        int objectCount = 0;
+        int flags = 0;
+        if (binary) {
+            objects.clear();
+        } else if (Names.delta) {
+            // Every so often the thread forgets what it has saved so
+            // readers can start from there
+            boolean checkpoint = trace.snapshotCount++ % Names.CHECKPOINT_INTERVAL == 0;
+            if (checkpoint) {
+                trace.snapshots.clear();
+            }
+            str.append(' ').append(trace.stream).append(checkpoint ? " checkpoint" : "");
+        }
 
-        // Add the initial object to the stack and set its ID
+        // Add the initial object to the stack
         toTraverse.add(object);
-        objectIDs.put(object, objectIDCounter++);
 
         int count = 0;
 
@@ -700,7 +1286,7 @@ public class SaveUtil {
         while (!toTraverse.isEmpty()) {
             count++; // Add 1 to the count of objects that have been traversed
 
-            checkSizes(); // Make sure the variables on the heap haven't
+            checkSizes(trace); // Make sure the variables on the heap haven't
             // grown too big, if they have then print them
 
             // The object to be traversed for this iteration through the loop
@@ -711,47 +1297,151 @@ public class SaveUtil {
             if (current == null ||
                     current.getClass().getPackage().getName().startsWith("java") ||
                     current.getClass().getPackage().getName().startsWith("jdk") ||
-                    current.getClass().getPackage().getName().startsWith("com.google") ||
-                    // If the object has already been visited, skip to the
-                    // next object in the stack
-                    visited.contains(current)) {
+                    current.getClass().getPackage().getName().startsWith("com.google")) {
+                continue;
+            }
+            int currentID = objectIDs.idOf(current);
+            // Add the object to visited so this method won't get here on it
+            // again; if it has already been visited, skip to the next
+            // object in the stack
+            if (!trace.visit(currentID)) {
                 continue;
             }
-            // Add the object to visited so this method own't get here on it
-            // again
-            visited.add(current);
-
-            // Add the object id and type to str
-            //noinspection ConstantConditions
-            str.append("\n").append(Names.SINGLE_INDENTATION).append("O#").append(objectIDs.get(current)).append(" - ").append(current.getClass().getName());
 
-            // Get the object's fields in alphabetical order by name
+            // Get the getters of the object's fields in alphabetical order
+            // by name
             // If the same type of object has already been visited, it just
-            // needs to get a reference to the list from the map
-            List<Field> fields = classFields.get(current.getClass());
+            // needs to get a reference to them from the map
+            FieldAccessors fields = classFields.get(current.getClass());
             if (fields == null) {
-                fields = Stream.of(current.getClass().getDeclaredFields())
-                        .sorted(Comparator.comparing(Field::getName))
-                        .filter(field -> !Modifier.isStatic(field.getModifiers()) && !field.isSynthetic())
-                        .collect(Collectors.toList());
-
+                fields = new FieldAccessors(current.getClass(), ARRAY_ITEMS);
                 classFields.put(current.getClass(), fields);
             }
 
-            // Traverse any fields which the object may have
-            traverseFields(current, fields, str);
+            if (binary) {
+                int type = graphStore.typeOf(current.getClass());
+                graphStore.describe(type, fields);
+                objects.putVarInt(currentID);
+                objects.putVarInt(type);
+                putFields(trace, current, fields, objects);
+                objectCount++;
+            } else if (Names.delta) {
+                appendSnapshot(trace, current, currentID, fields, str);
+            } else {
+                // Add the object id and type to str
+                str.append("\n").append(Names.SINGLE_INDENTATION).append("O#").append(currentID).append(" - ").append(current.getClass().getName());
+
+                // Traverse any fields which the object may have
+                traverseFields(trace, current, fields, str);
+            }
 
             // If this is the 5th object to be traversed, break from the loop
             if (count >= ARRAY_ITEMS) {
-                str.append("...");
+                if (binary) {
+                    flags |= GraphFormat.CUT_SHORT;
+                } else {
+                    // In delta mode it goes on its own line so it isn't
+                    // mistaken for part of a field
+                    str.append(Names.delta ? "\n..." : "...");
+                }
                 break;
             }
         }
 
-        traversals.add(str.toString());
+        if (binary) {
+            trace.addGraph(num, flags, objectCount);
+        } else {
+            trace.addTraversal(str.toString());
+        }
+    }
+
+    // The binary version of traverseFields(): puts the value of every
+    // field the way GraphFormat saves it.
+    private static void putFields(ThreadTrace trace, Object current, FieldAccessors fields, EventBuffer objects) {
+        for (int i = 0; i < fields.size(); i++) {
+            try {
+                if (fields.isValue(i)) {
+                    fields.putValue(i, current, objects);
+                } else {
+                    // Referenced objects are traversed later the same
+                    // way as in traverseFields()
+                    Object temp = fields.get(i, current);
+                    if (temp != null) {
+                        objects.putVarInt(objectIDs.idOf(temp));
+                        objects.putVarInt(graphStore.typeOf(temp.getClass()));
+                        trace.toTraverse.add(temp);
+                    } else {
+                        objects.putVarInt(0);
+                    }
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+                FieldAccessors.putDefault(fields.kind(i), objects);
+            }
+        }
+    }
+
+    // Delta mode only: appends the object the same way as the other
+    // mode if the thread hasn't saved it since the last checkpoint,
+    // otherwise only the lines of the fields that changed since it was
+    // last saved:
+    //   O#id ~
+    //     index:<the field's line>
+    // or just "O#id =" if nothing did.  What was saved is remembered
+    // as a hash of every field's line.
+    private static void appendSnapshot(ThreadTrace trace, Object current, int currentID,
+                                       FieldAccessors fields, StringBuilder str) {
+        StringBuilder fieldsStr = trace.snapshotFields;
+        fieldsStr.setLength(0);
+        traverseFields(trace, current, fields, fieldsStr);
+
+        // Every field's line starts with a newline
+        int lines = 0;
+        for (int i = 0; i < fieldsStr.length(); i++) {
+            if (fieldsStr.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        int[] starts = new int[lines + 1];
+        long[] fingerprint = new long[lines];
+        for (int i = 0, line = 0; i < fieldsStr.length(); i++) {
+            if (fieldsStr.charAt(i) == '\n') {
+                starts[line++] = i;
+            }
+        }
+        starts[lines] = fieldsStr.length();
+        for (int line = 0; line < lines; line++) {
+            fingerprint[line] = hash(fieldsStr, starts[line] + 1, starts[line + 1]);
+        }
+
+        long[] previous = trace.snapshots.put(currentID, fingerprint);
+        str.append("\n").append(Names.SINGLE_INDENTATION).append("O#").append(currentID);
+        if (previous == null || previous.length != lines) {
+            str.append(" - ").append(current.getClass().getName()).append(fieldsStr);
+        } else if (Arrays.equals(previous, fingerprint)) {
+            str.append(" =");
+        } else {
+            str.append(" ~");
+            for (int line = 0; line < lines; line++) {
+                if (previous[line] != fingerprint[line]) {
+                    str.append("\n").append(Names.DOUBLE_INDENTATION).append(line).append(':')
+                            .append(fieldsStr, starts[line] + 1, starts[line + 1]);
+                }
+            }
+        }
+    }
+
+    // 64-bit FNV-1a hash of part of a string.
+    private static long hash(CharSequence s, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 
-    private static void traverseFields(Object current, List<Field> fields, StringBuilder str) {
+    private static void traverseFields(ThreadTrace trace, Object current, FieldAccessors fields, StringBuilder str) {
         try {
             // Same purpose as the count in traverseObjectGraphNotNull but
             // for the number of fields in each object
@@ -759,41 +1449,29 @@ public class SaveUtil {
 
             // Do this for each (well the first five) fields in the list of
             // fields for current's type
-            for (Field field : fields) {
+            for (int i = 0; i < fields.size(); i++) {
                 count++;
 
-                // Make the field accessible so that reflection can be done
-                // on it
-                field.setAccessible(true);
-
-                if (field.getType().isPrimitive() || field.getType().getName().endsWith("String")) {
+                if (fields.isValue(i)) {
                     // If the field is primitive or a String, we can just add
                     // it to str
-                    str.append("\n    ").append(field.get(current));
+                    str.append("\n    ");
+                    fields.appendValue(i, current, str);
                 } else {
                     // Otherwise it's an object and we must add it to the
                     // stack of objects left to traverse
-                    Object temp = field.get(current);
-                    int tempID;
-
-                    // If temp has already been visited, then just get its id
-                    // that has already been established
-                    // Else give it an ID and use that
-                    if (visited.contains(temp)) {
-                        tempID = objectIDs.get(temp);
-                    } else {
-                        tempID = objectIDCounter++;
-                    }
+                    Object temp = fields.get(i, current);
 
-                    // These needs to get added even for null objects
-                    str.append("\n").append(Names.DOUBLE_INDENTATION).append("O#").append(tempID).append(" - ");
-                    // If null, add that, otherwise add the class's name
+                    // These needs to get added even for null objects,
+                    // which have the id 0
+                    str.append("\n").append(Names.DOUBLE_INDENTATION).append("O#");
+                    // If null, add that, otherwise add the object's id and
+                    // the class's name
                     if (temp != null) {
-                        str.append(temp.getClass().getName());
-                        toTraverse.add(temp);
-                        objectIDs.put(temp, tempID);
+                        str.append(objectIDs.idOf(temp)).append(" - ").append(temp.getClass().getName());
+                        trace.toTraverse.add(temp);
                     } else {
-                        str.append("null");
+                        str.append("0 - null");
                     }
                 }
 
@@ -804,47 +1482,402 @@ public class SaveUtil {
                     break;
                 }
             }
-        } catch (Exception e) {
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Exceptions are saved with the id of their class's name in the
+    // thread's table of Strings.  Like calls they are never dropped.
+    private static void saveException(ThreadTrace trace, int tag, int id, Throwable exception) {
+        // throw null throws a NullPointerException
+        Class<?> type = exception == null ? NullPointerException.class : exception.getClass();
+        if (tag == TraceFormat.THROW) {
+            trace.stats.throwsCount++;
+        } else {
+            trace.stats.catches++;
+        }
+        if (trace.ring != null) {
+            trace.ring.putException(tag, id, type.getName());
+            return;
+        }
+        checkSizes(trace);
+        endCycles(trace);
+        int typeId = trace.strings.idOf(type);
+        if (typeId < 0) {
+            typeId = trace.strings.add(type);
+            trace.events.putPooledString(typeId, type.getName());
+        }
+        trace.events.putException(tag, id, typeId);
+        commit(trace);
+    }
+
+    // Adds an argument or return value to the current call.
+    // Primitive values are put into the buffer as they are and only
+    // turned into text when the buffer is rendered, see
+    // EventBuffer.putPrimitive().
+    private static void savePrimitive(ThreadTrace trace, int kind, long bits) {
+        trace.stats.values++;
+        if (isDropping(trace)) {
+            trace.droppedValues++;
+            return;
+        }
+        int tag = trace.afterReturn ? TraceFormat.PRIMITIVE_RET : TraceFormat.PRIMITIVE_ARG;
+        if (trace.ring != null) {
+            trace.ring.putPrimitive(tag, kind, bits);
+            return;
+        }
+        // No checkSizes(): a value is at most 11 bytes and the call or
+        // return it belongs to already made room
+        valuesOf(trace).putPrimitive(tag, kind, bits);
+        commit(trace);
+    }
+
+    // String values are saved the first time as an entry of the
+    // thread's table of Strings and then as the entry's id.
+    private static void saveString(ThreadTrace trace, String value) {
+        trace.stats.values++;
+        StringPool strings = trace.strings;
+        if (strings == null) {
+            saveValue(trace, render(value));
+            return;
+        }
+        if (isDropping(trace)) {
+            trace.droppedValues++;
+            return;
+        }
+        int id = strings.idOf(value);
+        String text = null;
+        if (id < 0) {
+            text = render(value);
+            id = strings.add(value, text);
+            if (id < 0) {
+                // The table is full
+                saveValue(trace, text);
+                return;
+            }
+            checkSizes(trace);
+        }
+        EventBuffer out = valuesOf(trace);
+        if (text != null) {
+            out.putPooledString(id, text);
+        }
+        out.putStringValue(trace.afterReturn ? TraceFormat.STRING_RET : TraceFormat.STRING_ARG, id);
+        commit(trace);
+    }
+
+    private static String render(String value) {
+        return "\"" + value.replace("\n", "\\n") + "\"";
+    }
+
+    private static void saveNull(ThreadTrace trace) {
+        trace.stats.values++;
+        saveValue(trace, "null");
+    }
+
+    private static void saveValue(ThreadTrace trace, String value) {
+        if (isDropping(trace)) {
+            trace.droppedValues++;
+            return;
+        }
+        int tag = trace.afterReturn ? TraceFormat.RET : TraceFormat.ARG;
+        if (trace.ring != null) {
+            trace.ring.putValue(tag, value);
+            return;
+        }
+        checkSizes(trace);
+        valuesOf(trace).putValue(tag, value);
+        commit(trace);
+    }
+
+    // In mmap mode every record is moved to the thread's segment as
+    // soon as it's recorded, so events only ever holds one record.
+    private static void commit(ThreadTrace trace) {
+        if (!Names.mmap || trace.events.length() == 0) {
+            return;
+        }
+        EventBuffer records = trace.events;
+        try {
+            if (trace.segments == null) {
+                trace.segments = new TraceSegments(createSegmentDir(), String.valueOf(trace.stream));
+            }
+            if (records.length() > trace.segments.remaining()) {
+                // Every segment starts with a chunk so it can be read
+                // on its own; the first one also names the thread
+                EventBuffer header = new EventBuffer(1 << 8);
+                if (!trace.segments.isOpen()) {
+                    header.putThread(trace.stream, trace.threadId, trace.threadName);
+                }
+                header.putChunk(trace.stream, chunkSequence.getAndIncrement(), trace.sequence);
+                trace.segments.next(header.length() + records.length());
+                trace.segments.append(header);
+            }
+            trace.segments.append(records);
+        } catch (IOException e) {
             e.printStackTrace();
         }
+        trace.sequence += records.records();
+        trace.stats.bytes += records.length();
+        records.clear();
+    }
+
+    // Called after every class is transformed, on the thread that
+    // transformed it, to hand the ids of its methods over to be
+    // saved.  In mmap mode they are written to the segments right
+    // away instead of with the next batch.
+    public static void commitMethodIDs() {
+        Map<Integer, String> pending = pendingIds.get();
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (!Names.mmap) {
+            ids.putAll(pending);
+            pending.clear();
+            return;
+        }
+        EventBuffer records = new EventBuffer(1 << 12);
+        pending.forEach((k, v) -> records.putMethod(k,
+                firstLineNums.get(k) == null ? -1 : firstLineNums.get(k),
+                lastLineNums.get(k) == null ? -1 : lastLineNums.get(k),
+                v, MethodKeys.get(k)));
+        pending.clear();
+        appendToMethodSegments(records);
+    }
+
+    private static void appendToMethodSegments(EventBuffer records) {
+        synchronized (methodSegments) {
+            try {
+                createSegmentDir();
+                if (records.length() > methodSegments.remaining()) {
+                    methodSegments.next(records.length());
+                }
+                methodSegments.append(records);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Empties the segment directory the first time it's used so no
+    // segments of an earlier run are left in it.
+    private static synchronized File createSegmentDir() {
+        if (!segmentDirCreated) {
+            segmentDirCreated = true;
+            //noinspection ResultOfMethodCallIgnored
+            Names.SEGMENT_DIR.mkdirs();
+            File[] old = Names.SEGMENT_DIR.listFiles();
+            if (old != null) {
+                for (File file : old) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        return Names.SEGMENT_DIR;
     }
 
-    // Appends messages to the end of the currentCall StringBuilder.
-    // When the message is a '\n', the currentCall is flushed
-    private static void appendCurrentCall(String msg) {
-        checkSizes();
-        // this looks sorta weird but it will still work if msg is null for
-        // whatever reason
-        if ("\n".equals(msg)) {
-            currentCall.append(msg);
-            flushCurrentCall();
+    // Once the records and traversals of a thread combined take more
+    // than MAX_SIZE bytes (or their share of the budget if that's
+    // less), they are handed off to be written to clear up heap space.
+    // Until then they are counted in the budget every sixteenth of
+    // that, and handed off early once the budget is used up so the
+    // writer can free them.
+    private static void checkSizes(ThreadTrace trace) {
+        long limit = Math.min(Names.MAX_SIZE, Names.budget / Names.MAX_IN_FLIGHT);
+        long bytes = trace.bytes();
+        if (bytes > limit) {
+            flush(trace);
+        } else if (bytes - trace.charged > limit / 16) {
+            writer.charge(bytes - trace.charged);
+            trace.charged = bytes;
+            if (writer.isOverBudget()) {
+                flush(trace);
+            }
+        }
+    }
+
+    // Where the values of the last call, block or return go.  With
+    // loops they are held back along with the record they belong to.
+    private static EventBuffer valuesOf(ThreadTrace trace) {
+        return trace.cycles != null ? trace.cycles.values() : trace.events;
+    }
+
+    // Writes the records held back to find loops before any record
+    // that can't be part of one.
+    private static void endCycles(ThreadTrace trace) {
+        if (trace.cycles != null) {
+            trace.cycles.end(trace.events);
+        }
+    }
+
+    // With the drop policy, values aren't recorded while the thread is
+    // over the memory budget.  The first one dropped leaves a DROPPED
+    // record in the stream.
+    private static boolean isDropping(ThreadTrace trace) {
+        if (Names.overflow != Names.OVERFLOW_DROP || !writer.isOverBudget()) {
+            trace.dropping = false;
+            return false;
+        }
+        if (!trace.dropping) {
+            trace.dropping = true;
+            if (trace.ring != null) {
+                trace.ring.putDropped();
+            } else {
+                endCycles(trace);
+                trace.events.putDropped();
+                commit(trace);
+            }
+        }
+        return true;
+    }
+
+    // Hands everything a thread has recorded so far to the writer
+    // thread; the thread keeps recording into empty buffers.
+    private static void flush(ThreadTrace trace) {
+        long start = System.nanoTime();
+        TraceWriter.Batch batch = takeBatch(trace);
+        if (Names.overflow == Names.OVERFLOW_SPILL) {
+            if (!writer.trySubmit(batch)) {
+                spill(batch);
+                writer.submit(batch);
+            }
         } else {
-            currentCall.append(msg);
+            writer.submit(batch);
         }
+        trace.stats.flushes.record(System.nanoTime() - start);
     }
 
-    // Adds the currentCall StringBuilder to the calls list and then
-    // clears the currentCall StringBuilder.
-    private static void flushCurrentCall() {
-        calls.add(currentCall.toString());
-        currentCall.setLength(0);
+    // Writes a batch that doesn't fit in the memory budget to
+    // SPILL_DIR so the thread's buffer can be reused right away.
+    private static void spill(TraceWriter.Batch batch) {
+        //noinspection ResultOfMethodCallIgnored
+        Names.SPILL_DIR.mkdirs();
+        File file = new File(Names.SPILL_DIR, spillCounter.getAndIncrement() + ".spill");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(batch.events.length());
+            batch.events.writeTo(out);
+            out.writeInt(batch.traversals.size());
+            for (String traversal : batch.traversals) {
+                byte[] bytes = traversal.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(batch.graphs == null ? -1 : batch.graphs.length());
+            if (batch.graphs != null) {
+                batch.graphs.writeTo(out);
+            }
+        } catch (IOException e) {
+            // It stays in memory then
+            e.printStackTrace();
+            return;
+        }
+        batch.trace.recycle(batch.events);
+        batch.events = null;
+        batch.traversals = null;
+        batch.graphs = null;
+        batch.bytes = 0;
+        batch.spill = file;
+        batch.trace.spilledBuffers++;
+    }
+
+    // Reads a spilled batch back in; called on the writer thread.
+    private static void unspill(TraceWriter.Batch batch) {
+        List<String> traversals = new ArrayList<>();
+        EventBuffer events = new EventBuffer(1 << 4);
+        EventBuffer graphs = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(batch.spill), 1 << 16))) {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            events.putBytes(data, 0, data.length);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                traversals.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            int length = in.readInt();
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                graphs = new EventBuffer(Math.max(length, 1));
+                graphs.putBytes(bytes, 0, length);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        batch.spill.delete();
+        batch.events = events;
+        batch.traversals = traversals;
+        batch.graphs = graphs;
+    }
+
+    // Takes the full buffers of a thread along with the method ids
+    // that haven't been saved yet.
+    private static TraceWriter.Batch takeBatch(ThreadTrace trace) {
+        Map<Integer, String> newIds;
+        Map<Integer, Integer> newFirstLineNums = new HashMap<>();
+        Map<Integer, Integer> newLastLineNums = new HashMap<>();
+        if (Names.mmap || Names.ring > 0) {
+            // Already in the segments (see commitMethodIDs()), or kept
+            // for every dump
+            newIds = new TreeMap<>();
+        } else {
+            // Taken one at a time since classes may be committing
+            // theirs at the same time
+            newIds = new TreeMap<>();
+            for (Integer id : ids.keySet()) {
+                String methodString = ids.remove(id);
+                if (methodString != null) {
+                    newIds.put(id, methodString);
+                    newFirstLineNums.put(id, firstLineNums.get(id));
+                    newLastLineNums.put(id, lastLineNums.get(id));
+                }
+            }
+        }
+        trace.stats.bytes += trace.bytes();
+        // The batch is counted as waiting to be written instead
+        writer.charge(-trace.charged);
+        trace.charged = 0;
+        long sequence = trace.sequence;
+        return new TraceWriter.Batch(trace, trace.swapEvents(), trace.swapTraversals(), trace.swapGraphs(),
+                sequence, newIds, newFirstLineNums, newLastLineNums);
     }
 
-    // Once calls and traversals combined have more than MAX_SIZE
-    // elements, the files are all updated to clear up heap space.
-    private static void checkSizes() {
-        if (calls.size() + traversals.size() > Names.MAX_SIZE) {
-            print();
-            printTraversalsToFile();
-            calls.clear();
-            ids.clear();
-            traversals.clear();
+    // Saves a batch to the files; called on the writer thread, and on
+    // the shutdown hook's thread once the writer is done.
+    private static void write(TraceWriter.Batch batch) {
+        if (batch.spill != null) {
+            unspill(batch);
+        }
+        synchronized (printLock) {
+            long start = System.nanoTime();
+            print(batch);
+            printTraversalsToFile(batch.traversals);
+            if (batch.graphs != null && batch.graphs.length() > 0) {
+                graphStore.write(batch.graphs);
+            }
+            batch.trace.recycle(batch.events);
+            stats.writes.record(System.nanoTime() - start);
         }
     }
 
     private static void createObjectGraphTraversalFile() {
+        if (Names.isBinary()) {
+            graphStore.create();
+            return;
+        }
         //noinspection ResultOfMethodCallIgnored
         Names.PARENT.mkdirs();
+        if (Names.compress) {
+            //noinspection ResultOfMethodCallIgnored
+            Names.compressedFile(Names.TRAVERSAL_FILE).delete();
+            //noinspection ResultOfMethodCallIgnored
+            Names.chunkIndexFile(Names.TRAVERSAL_FILE).delete();
+            return;
+        }
         try (FileWriter fw = new FileWriter(new File(Names.PARENT, "ObjectGraphTraversals"));
              BufferedWriter bw = new BufferedWriter(fw);
              PrintWriter out = new PrintWriter(bw)) {
@@ -856,7 +1889,22 @@ public class SaveUtil {
 
     // Saves a single traversal string to the ObjectGraphTraversals
     // file.
-    private static void printTraversalsToFile() {
+    private static void printTraversalsToFile(List<String> traversals) {
+        if (Names.compress) {
+            if (traversals.isEmpty()) {
+                return;
+            }
+            try (Writer fw = openChunked(Names.TRAVERSAL_FILE, true, traversalsWritten,
+                    written -> traversalsWritten = written);
+                 BufferedWriter bw = new BufferedWriter(fw);
+                 PrintWriter out = new PrintWriter(bw)) {
+                traversals.forEach(out::println);
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
         try (FileWriter fw = new FileWriter(Names.TRAVERSAL_FILE, true);
              BufferedWriter bw = new BufferedWriter(fw);
              PrintWriter out = new PrintWriter(bw)) {
@@ -867,10 +1915,56 @@ public class SaveUtil {
         }
     }
 
+    // Opens the MethodCalls file of a stream for writing, as chunks if
+    // compress is set.
+    private static Writer openMethodCallFile(ThreadTrace trace) throws IOException {
+        File file = Names.methodCallFile(trace.stream);
+        if (Names.compress) {
+            return openChunked(file, !trace.firstPrint, trace.callsWritten,
+                    written -> trace.callsWritten = written);
+        }
+        return new FileWriter(file, !trace.firstPrint);
+    }
+
+    // Opens a file that is written compressed in chunks.  The length
+    // of the text written to it so far is needed for the chunk index
+    // and is handed back when the writer is closed.
+    private static Writer openChunked(File file, boolean append, long written, LongConsumer setWritten)
+            throws IOException {
+        ChunkedDeflaterOutputStream chunks = new ChunkedDeflaterOutputStream(file, append, written);
+        return new OutputStreamWriter(chunks) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                setWritten.accept(chunks.uncompressedOffset());
+            }
+        };
+    }
+
     // Prints all the various information that is collected to its
     // respective file.
-    private static void print() {
-        flushCurrentCall();
+    private static void print(TraceWriter.Batch batch) {
+        if (Names.mmap) {
+            // The records are in the segments already
+            return;
+        }
+        if (Names.ring > 0) {
+            // Only dump() saves the records
+            return;
+        }
+        printCalls(batch);
+    }
+
+    // Prints the method ids and calls of a batch as text or binary.
+    private static void printCalls(TraceWriter.Batch batch) {
+        if (Names.binary) {
+            printBinary(batch);
+            return;
+        }
+
+        ThreadTrace trace = batch.trace;
+        Map<Integer, Integer> firstLineNums = batch.firstLineNums;
+        Map<Integer, Integer> lastLineNums = batch.lastLineNums;
 
         // First print the method ids
         try (FileWriter fw = new FileWriter(Names.METHOD_ID_FILE, !firstPrint);
@@ -879,30 +1973,146 @@ public class SaveUtil {
             // TODO: Find a better approach to fix Python script crash
             // due to "null" in MethodIDs.txt ( -1 here avoids crash
             // but do nothing meaningful)
-            ids.forEach((k, v) -> out.println(k + " "
+            batch.ids.forEach((k, v) -> out.println(k + " "
                     + (firstLineNums.get(k) == null ? -1 : firstLineNums.get(k)) + " "
                     + (lastLineNums.get(k) == null ? -1 : lastLineNums.get(k)) + " "
-                    + v));
+                    + v + " " + MethodKeys.format(MethodKeys.get(k))));
             out.flush();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        firstPrint = false;
+
+        // Every thread other than the first one gets its own file,
+        // which is listed in Threads.txt
+        if (trace.firstPrint && trace.stream != 0) {
+            try (FileWriter fw = new FileWriter(Names.THREADS_FILE, true);
+                 BufferedWriter bw = new BufferedWriter(fw);
+                 PrintWriter out = new PrintWriter(bw)) {
+                out.println(trace.stream + " " + trace.threadId + " " + trace.threadName);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
         // Then print the method calls
-        try (FileWriter fw = new FileWriter(Names.METHOD_CALL_FILE, !firstPrint);
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-            calls.forEach(out::print);
-            out.flush();
+        try (Writer fw = openMethodCallFile(trace);
+             BufferedWriter bw = new BufferedWriter(fw)) {
+            TraceRenderer renderer = new TraceRenderer(bw, trace.firstLine, trace.renderedStrings);
+            renderer.render(new EventReader(new ByteArrayInputStream(
+                    batch.events.data(), 0, batch.events.length())));
+            trace.firstLine = renderer.isFirstLine();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        trace.firstPrint = false;
+    }
+
+    // Binary version of print(); the method ids are written as
+    // METHOD records right before the records which use them and the
+    // records of each thread are written as a chunk.  The header and
+    // the method ids known at that point are only written on the
+    // first print.
+    private static void printBinary(TraceWriter.Batch batch) {
+        ThreadTrace trace = batch.trace;
+        Map<Integer, Integer> firstLineNums = batch.firstLineNums;
+        Map<Integer, Integer> lastLineNums = batch.lastLineNums;
+        Names.PARENT.mkdirs();
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(Names.METHOD_CALL_BINARY_FILE, !firstPrint), 1 << 16)) {
+            EventBuffer header = new EventBuffer(1 << 12);
+            if (firstPrint) {
+                header.putBytes(TraceFormat.MAGIC, 0, TraceFormat.MAGIC.length);
+                header.putVarInt(TraceFormat.VERSION);
+            }
+            batch.ids.forEach((k, v) -> header.putMethod(k,
+                    firstLineNums.get(k) == null ? -1 : firstLineNums.get(k),
+                    lastLineNums.get(k) == null ? -1 : lastLineNums.get(k),
+                    v, MethodKeys.get(k)));
+            if (trace.firstPrint) {
+                header.putThread(trace.stream, trace.threadId, trace.threadName);
+            }
+            header.putChunk(trace.stream, chunkSequence.getAndIncrement(), batch.sequence);
+            header.writeTo(out);
+            batch.events.writeTo(out);
         } catch (IOException e) {
             e.printStackTrace();
         }
         firstPrint = false;
+        trace.firstPrint = false;
+    }
+
+    // Saves what every stream left out to stay in the memory budget:
+    // as FOOTER records in binary and mmap mode, otherwise to
+    // Footer.txt.
+    private static void printFooter() {
+        if (allThreadTraces.isEmpty() || Names.ring > 0) {
+            return;
+        }
+        EventBuffer footer = new EventBuffer(1 << 8);
+        for (ThreadTrace trace : allThreadTraces) {
+            footer.putFooter(trace.stream, trace.droppedValues, trace.droppedTraversals, trace.spilledBuffers);
+        }
+
+        if (Names.mmap) {
+            appendToMethodSegments(footer);
+            return;
+        }
+        synchronized (printLock) {
+            if (Names.binary) {
+                try (OutputStream out = new FileOutputStream(Names.METHOD_CALL_BINARY_FILE, true)) {
+                    footer.writeTo(out);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            try (FileWriter fw = new FileWriter(Names.FOOTER_FILE);
+                 BufferedWriter bw = new BufferedWriter(fw);
+                 PrintWriter out = new PrintWriter(bw)) {
+                for (ThreadTrace trace : allThreadTraces) {
+                    out.println(trace.stream + " " + trace.droppedValues + " "
+                            + trace.droppedTraversals + " " + trace.spilledBuffers);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     // Used to simplify the shutdown hook
     private static void onShutdown() {
-        printTraversalsToFile();
-        print();
+        // Threads that are still running (e.g. daemon threads) must
+        // stop adding to the buffers before they are saved
+        shuttingDown = true;
+        List<ThreadTrace> closed = new ArrayList<>();
+        for (ThreadTrace trace : allThreadTraces) {
+            if (trace.close()) {
+                closed.add(trace);
+            } else {
+                System.err.println("Left the last records of thread " + trace.threadName
+                        + " out of the trace, it didn't stop recording");
+            }
+        }
+        // Let the writer finish what was handed off first so every
+        // stream stays in order
+        writer.drain();
+        for (ThreadTrace trace : closed) {
+            endCycles(trace);
+            commit(trace);
+            write(takeBatch(trace));
+        }
+        printFooter();
+        if (Names.mmap) {
+            for (ThreadTrace trace : allThreadTraces) {
+                if (trace.segments != null) {
+                    trace.segments.force();
+                }
+            }
+            synchronized (methodSegments) {
+                methodSegments.force();
+            }
+        }
+        stats.save();
     }
 }
@@ -0,0 +1,90 @@
+package vedebug.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A thread's table of the String values it has saved, so a String that
+ * is passed or returned again is saved as the id it got the first time
+ * instead of its whole text (see {@link TraceFormat#STRING}).
+ * <p>
+ * The same String object is usually passed over and over, so lookups
+ * first try a small cache keyed by identity and only then compare the
+ * contents.  The table keeps the Strings alive, so it stops taking new
+ * ones once it holds {@link Names#STRING_POOL_SIZE} of them or
+ * {@link Names#STRING_POOL_CHARS} characters; anything new after that
+ * is saved inline, which is what happens to programs that hardly ever
+ * repeat a String.
+ * <p>
+ * The names of exception classes go in the same table, see
+ * {@link TraceFormat#THROW}; a program only has so many of them so
+ * they are always added.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class StringPool {
+
+    // Direct-mapped cache of the last Strings looked up, by identity
+    // hash
+    private final String[] recent = new String[1 << 8];
+    private final int[] recentIds = new int[1 << 8];
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<Class<?>, Integer> classIds = new HashMap<>();
+    // Rendered text of every String by id
+    private final List<String> texts = new ArrayList<>();
+    private long chars = 0;
+
+    // Returns the id of the String, or -1 if it isn't in the table.
+    int idOf(String value) {
+        int slot = System.identityHashCode(value) & (recent.length - 1);
+        if (recent[slot] == value) {
+            return recentIds[slot];
+        }
+        Integer id = ids.get(value);
+        if (id == null) {
+            return -1;
+        }
+        recent[slot] = value;
+        recentIds[slot] = id;
+        return id;
+    }
+
+    // Adds the String and the text it's rendered as, returning its id,
+    // or -1 if the table is full.
+    int add(String value, String text) {
+        if (ids.size() >= Names.STRING_POOL_SIZE
+                || chars + value.length() + text.length() > Names.STRING_POOL_CHARS) {
+            return -1;
+        }
+        int id = texts.size();
+        ids.put(value, id);
+        texts.add(text);
+        chars += value.length() + text.length();
+        return id;
+    }
+
+    // Returns the id of the class's name, or -1 if it isn't in the
+    // table.
+    int idOf(Class<?> clz) {
+        Integer id = classIds.get(clz);
+        return id == null ? -1 : id;
+    }
+
+    // Adds the name of the class, returning its id.
+    int add(Class<?> clz) {
+        int id = texts.size();
+        classIds.put(clz, id);
+        texts.add(clz.getName());
+        return id;
+    }
+
+    // Rendered text of every String so far, by id.
+    List<String> texts() {
+        return texts;
+    }
+}
@@ -0,0 +1,60 @@
+package vedebug.core;
+
+/**
+ * What the recorder did on one thread, for {@link RecorderStats}.
+ * <p>
+ * Every ThreadTrace has its own so counting never needs a lock or an
+ * atomic; only the owning thread writes the fields and readers add
+ * them up, possibly seeing counts that are a little behind.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class ThreadStats {
+
+    // Events by type, as the probes saw them: blocks are counted even
+    // when they're recorded as part of a loop, and values and
+    // traversals even when they're dropped
+    long calls = 0;
+    long blocks = 0;
+    long returns = 0;
+    long throwsCount = 0;
+    long catches = 0;
+    long unwinds = 0;
+    long values = 0;
+    long traversals = 0;
+
+    // Bytes of records and traversals encoded
+    long bytes = 0;
+
+    // Hand-offs of full buffers to the writer thread, including the
+    // time spent waiting for room in the memory budget
+    final LatencyHistogram flushes = new LatencyHistogram();
+
+    long traversalNanos = 0;
+    // Calls to Thread.getStackTrace() for the invocation line of a
+    // static initializer, see SaveUtil.saveInvocationLineNumber()
+    long stackWalks = 0;
+    long stackWalkNanos = 0;
+
+    void add(ThreadStats other) {
+        calls += other.calls;
+        blocks += other.blocks;
+        returns += other.returns;
+        throwsCount += other.throwsCount;
+        catches += other.catches;
+        unwinds += other.unwinds;
+        values += other.values;
+        traversals += other.traversals;
+        bytes += other.bytes;
+        flushes.add(other.flushes);
+        traversalNanos += other.traversalNanos;
+        stackWalks += other.stackWalks;
+        stackWalkNanos += other.stackWalkNanos;
+    }
+
+    long events() {
+        return calls + blocks + returns + throwsCount + catches + unwinds + values + traversals;
+    }
+}
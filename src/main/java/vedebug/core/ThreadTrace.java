@@ -0,0 +1,397 @@
+package vedebug.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Recorder state of a single thread.
+ * <p>
+ * Every thread that runs instrumented code gets its own instance
+ * (through a ThreadLocal in SaveUtil), so recording never needs a
+ * lock.  Each thread's records form one logical stream: in text mode
+ * stream 0 goes to MethodCalls.txt and stream n to
+ * MethodCalls-n.txt; in binary mode all of them go to MethodCalls.bin
+ * in chunks tagged with their stream.
+ * <p>
+ * Records are numbered per thread: the sequence number of a record is
+ * {@link #sequence} plus its index in {@link #events}.  Chunks
+ * additionally get a global sequence number when they are flushed so
+ * the streams can be merged in order.
+ * <p>
+ * Other threads only read the buffers after stopping the owner, see
+ * {@link #pause()} and {@link #close()}: every probe runs between
+ * {@link #begin()} and {@link #end()}, and a thread that stops the
+ * trace waits until the probe that is running (if any) is done.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class ThreadTrace {
+
+    private static final int OPEN = 0;
+    private static final int PAUSED = 1;
+    private static final int CLOSED = 2;
+    // How long pause() and close() wait for the probe that is running
+    private static final long HOLD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Dense index of the thread, in the order threads first recorded
+    // something
+    final int stream;
+    final long threadId;
+    final String threadName;
+
+    // Records which eventually are saved to the file.  They are only
+    // turned into text when the stream's file is written.
+    EventBuffer events = new EventBuffer();
+    // Sequence number of the first record in events
+    long sequence = 0;
+    // Records go here instead of events in flight-recorder mode
+    final EventRing ring = Names.ring > 0 ? new EventRing(Names.ring) : null;
+    // Where array values are put before they are rendered for the ring
+    final EventBuffer ringValue = Names.ring > 0 ? new EventBuffer(1 << 8) : null;
+    // Finds loops in the blocks of the current frame
+    final BlockCycles cycles = Names.loops ? new BlockCycles() : null;
+    // String values saved so far; the ring keeps them itself
+    final StringPool strings = Names.ring > 0 ? null : new StringPool();
+    // Part of bytes() that is counted in the writer's budget, see
+    // TraceWriter.charge()
+    long charged = 0;
+    // Buffer the writer thread hands back once it has been saved, so
+    // a thread keeps swapping between two buffers
+    private final AtomicReference<EventBuffer> spare = new AtomicReference<>();
+    // Segments the records are written to in mmap mode, null until
+    // the first record
+    TraceSegments segments;
+
+    // Values saved after a return are return values, anything else is
+    // an argument
+    boolean afterReturn = false;
+
+    // This is used mainly for formatting, otherwise a simple method
+    // call in VMV would have sufficed
+    int currentInvocationLine = 0;
+
+    // This is used to temporarily save the line number from which a
+    // static method is called (the value of previous
+    // currentInvocationLine). A call to the static initializing block
+    // happens between saving the invocation line number of a static
+    // method and a real call to the static method. This interrupts
+    // the normal call of the static method and overrides the value of
+    // currentInvocationLine. If we don't keep the value, we will lose
+    // it and thus get a wrong invocation line number when we go back
+    // from static initializing block and enter the static method.
+    int currentInvocationLineBackup = 0;
+
+    // Shadow call stack of the instrumented methods this thread is
+    // in: the method id and the line the method is currently at
+    // (updated on basic blocks and right before calls), which is where
+    // invocation lines are read from.
+    private int[] frameIds = new int[64];
+    private int[] frameLines = new int[64];
+    private int depth = 0;
+
+    // List of traversals to save, basically the traversal version of
+    // the events buffer
+    List<String> traversals = new ArrayList<>();
+    private long traversalBytes = 0;
+    // Used instead of traversals when the trace is binary: encoded
+    // TRAVERSAL records, and the objects of the traversal being
+    // encoded (see GraphFormat)
+    EventBuffer graphs = Names.isBinary() ? new EventBuffer(1 << 12) : null;
+    final EventBuffer graphObjects = Names.isBinary() ? new EventBuffer(1 << 12) : null;
+
+    // What was left out of the trace because of the memory budget,
+    // see Names.overflow; saved in the footer
+    long droppedValues = 0;
+    long droppedTraversals = 0;
+    long spilledBuffers = 0;
+    // Whether values are being dropped right now; a DROPPED record
+    // marks where it started
+    boolean dropping = false;
+    // What was recorded and what it cost, see RecorderStats
+    final ThreadStats stats = new ThreadStats();
+
+    // These ones are used for traversing, too, but need to be reset at
+    // the start of certain methods in the object graph traversal
+    // The stack of objects that still need to be traversed
+    final Queue<Object> toTraverse = new ArrayDeque<>();
+    // The ids of the objects which have been visited already in the
+    // loop; a traversal only visits a few objects so it's searched
+    // linearly
+    private int[] visited = new int[8];
+    private int visitedCount = 0;
+    // Prevents stack overflows during object graph traversal
+    boolean inTraversal = false;
+    // Delta mode only: hashes of the field lines of every object last
+    // saved since the last checkpoint, by object id, and the number of
+    // traversals so far
+    final Map<Integer, long[]> snapshots = new HashMap<>();
+    int snapshotCount = 0;
+    final StringBuilder snapshotFields = new StringBuilder();
+
+    // Used when rendering the stream to text: doesn't add a newline to
+    // the start of the first line, and switches to append mode after
+    // the first print.  Only the writer thread uses these.
+    boolean firstLine = true;
+    boolean firstPrint = true;
+    final List<String> renderedStrings = new ArrayList<>();
+    // Length of the text written to the stream's file so far, used for
+    // the chunk index when compress is set
+    long callsWritten = 0;
+
+    // Number of probes of the owner that are running, counting nested
+    // ones; only the owner writes it
+    private volatile int recording = 0;
+    // OPEN, or PAUSED or CLOSED by another thread
+    private volatile int state = OPEN;
+
+    ThreadTrace(int stream, Thread thread) {
+        this.stream = stream;
+        this.threadId = thread.getId();
+        this.threadName = thread.getName();
+    }
+
+    // Stopping the owner ********************
+
+    // Called by the owner at the start of every probe, which may only
+    // record if this returns true; it then has to call end().  Waits
+    // while the trace is paused and returns false once it's closed.
+    boolean begin() {
+        while (true) {
+            recording++;
+            // If a probe is already running nobody holds the trace
+            // yet, and whoever wants it waits for that probe
+            if (state == OPEN || recording > 1) {
+                return true;
+            }
+            recording--;
+            if (state == CLOSED) {
+                return false;
+            }
+            while (state == PAUSED) {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+    }
+
+    void end() {
+        recording--;
+    }
+
+    // Stops the owner from recording until resume() is called, so its
+    // buffers and shadow call stack can be read.  Returns false (and
+    // leaves the trace open) if the owner is stuck in a probe.
+    synchronized boolean pause() {
+        if (state != OPEN) {
+            return false;
+        }
+        if (hold(PAUSED)) {
+            return true;
+        }
+        state = OPEN;
+        return false;
+    }
+
+    synchronized void resume() {
+        if (state == PAUSED) {
+            state = OPEN;
+        }
+    }
+
+    // Stops the owner from recording anything ever again, so what it
+    // recorded can be saved one last time.  Returns false if the owner
+    // is stuck in a probe; its buffers must not be touched then.
+    synchronized boolean close() {
+        return hold(CLOSED);
+    }
+
+    // Sets the state and waits for the probe that is running.
+    private boolean hold(int newState) {
+        state = newState;
+        if (Thread.currentThread().getId() == threadId) {
+            // The owner itself, which is never inside a probe here
+            return true;
+        }
+        long start = System.nanoTime();
+        while (recording != 0) {
+            if (System.nanoTime() - start > HOLD_NANOS) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    // Shadow call stack ********************
+
+    void push(int id) {
+        if (depth == frameIds.length) {
+            frameIds = Arrays.copyOf(frameIds, depth * 2);
+            frameLines = Arrays.copyOf(frameLines, depth * 2);
+        }
+        frameIds[depth] = id;
+        frameLines[depth] = 0;
+        depth++;
+    }
+
+    // Pops the frame of the method with the given id.  Frames above it
+    // belong to methods that were left by an exception.
+    void pop(int id) {
+        int frame = find(id);
+        if (frame >= 0) {
+            depth = frame;
+        }
+    }
+
+    // Id of the method on top of the shadow call stack, or -1 if it's
+    // empty.
+    int top() {
+        return depth == 0 ? -1 : frameIds[depth - 1];
+    }
+
+    boolean contains(int id) {
+        return find(id) >= 0;
+    }
+
+    // The method with the given id reached a basic block.  Frames
+    // above it belong to methods that were left by an exception.
+    void block(int id, int line) {
+        int frame = find(id);
+        if (frame >= 0) {
+            depth = frame + 1;
+            frameLines[frame] = line;
+        }
+    }
+
+    // Sets the line the innermost method is at.
+    void setLine(int line) {
+        if (depth > 0) {
+            frameLines[depth - 1] = line;
+        }
+    }
+
+    // Line the innermost method is at, which is where a method that
+    // is entered now gets called from.  -1 if unknown.
+    int callerLine() {
+        if (depth == 0 || frameLines[depth - 1] == 0) {
+            return -1;
+        }
+        return frameLines[depth - 1];
+    }
+
+    boolean isStackEmpty() {
+        return depth == 0;
+    }
+
+    // Ids of the methods on the shadow call stack, outermost first.
+    int[] stack() {
+        return Arrays.copyOf(frameIds, depth);
+    }
+
+    private int find(int id) {
+        for (int i = depth - 1; i >= 0; i--) {
+            if (frameIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Object graph traversal ****************
+
+    void clearVisited() {
+        visitedCount = 0;
+    }
+
+    // Marks the object with the given id as visited, returns false if
+    // it already was.
+    boolean visit(int objectID) {
+        for (int i = 0; i < visitedCount; i++) {
+            if (visited[i] == objectID) {
+                return false;
+            }
+        }
+        if (visitedCount == visited.length) {
+            visited = Arrays.copyOf(visited, visitedCount * 2);
+        }
+        visited[visitedCount++] = objectID;
+        return true;
+    }
+
+    // Buffers ********************************
+
+    // Replaces events with an empty buffer and returns the full one.
+    EventBuffer swapEvents() {
+        EventBuffer full = events;
+        EventBuffer empty = spare.getAndSet(null);
+        events = empty != null ? empty : new EventBuffer();
+        sequence += full.records();
+        return full;
+    }
+
+    // Replaces traversals with an empty list and returns the full one.
+    List<String> swapTraversals() {
+        List<String> full = traversals;
+        traversals = new ArrayList<>();
+        traversalBytes = 0;
+        return full;
+    }
+
+    void addTraversal(String traversal) {
+        traversals.add(traversal);
+        traversalBytes += traversal.length();
+    }
+
+    // Replaces graphs with an empty buffer and returns the full one,
+    // or null if the trace isn't binary.
+    EventBuffer swapGraphs() {
+        EventBuffer full = graphs;
+        if (full != null) {
+            graphs = new EventBuffer(1 << 12);
+        }
+        return full;
+    }
+
+    // Adds a TRAVERSAL record whose objects are in graphObjects.
+    void addGraph(int number, int flags, int objects) {
+        int length = EventBuffer.varIntSize(stream) + EventBuffer.varIntSize(flags)
+                + EventBuffer.varIntSize(objects) + graphObjects.length();
+        graphs.putTag(GraphFormat.TRAVERSAL);
+        graphs.putVarInt(number);
+        graphs.putVarInt(length);
+        graphs.putVarInt(stream);
+        graphs.putVarInt(flags);
+        graphs.putVarInt(objects);
+        graphs.putBytes(graphObjects.data(), 0, graphObjects.length());
+    }
+
+    // Roughly how many bytes the thread holds that haven't been
+    // handed off yet.
+    long bytes() {
+        return events.length() + traversalBytes + (graphs == null ? 0 : graphs.length());
+    }
+
+    static long bytesOf(List<String> traversals) {
+        long bytes = 0;
+        for (String traversal : traversals) {
+            bytes += traversal.length();
+        }
+        return bytes;
+    }
+
+    // Called by the writer thread once a buffer returned by
+    // swapEvents() has been saved.
+    void recycle(EventBuffer buffer) {
+        buffer.clear();
+        spare.set(buffer);
+    }
+}
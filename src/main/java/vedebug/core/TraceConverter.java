@@ -0,0 +1,197 @@
+package vedebug.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a binary trace (MethodCalls.bin) into the text files
+ * MethodCalls.txt and MethodIDs.txt so trace_completion.py and the
+ * viewer can be used on it.  The trace is streamed, so it never has
+ * to fit in memory.  Every thread gets its own MethodCalls file the
+ * same way as when the trace is recorded as text, see
+ * {@link Names#methodCallFile(int)}.
+ * <p>
+ * If there is no MethodCalls.bin but there are memory-mapped segments
+ * (see {@link TraceSegments}) then those are converted instead, up to
+ * the last record committed to each of them.
+ * <p>
+ * Object graph traversals in the binary store (see {@link GraphFormat})
+ * are written to ObjectGraphTraversals.
+ * <p>
+ * Usage: java -cp vedebug.jar vedebug.core.TraceConverter [dir]
+ * where dir defaults to .vedebug in the working directory.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class TraceConverter {
+
+    public static void main(String[] args) throws IOException {
+        File dir = args.length > 0 ? new File(args[0]) : Names.PARENT;
+        convert(dir);
+    }
+
+    public static void convert(File dir) throws IOException {
+        Map<Integer, Writer> callFiles = new HashMap<>();
+        Map<Integer, TraceRenderer> renderers = new HashMap<>();
+
+        File binaryFile = new File(dir, Names.METHOD_CALL_BINARY_FILE.getName());
+        File segmentDir = new File(dir, Names.SEGMENT_DIR.getName());
+
+        try (InputStream in = !binaryFile.exists() && segmentDir.isDirectory()
+                ? openSegments(segmentDir)
+                : new BufferedInputStream(new FileInputStream(binaryFile), 1 << 16);
+             Writer ids = new BufferedWriter(new FileWriter(
+                     new File(dir, Names.METHOD_ID_FILE.getName())));
+             Writer threads = new BufferedWriter(new FileWriter(
+                     new File(dir, Names.THREADS_FILE.getName())));
+             Writer footer = new BufferedWriter(new FileWriter(
+                     new File(dir, Names.FOOTER_FILE.getName())))) {
+            EventReader reader = new EventReader(in);
+            reader.readHeader();
+
+            TraceRenderer current = null;
+            int tag;
+            while ((tag = reader.next()) != -1) {
+                switch (tag) {
+                    case TraceFormat.METHOD:
+                        ids.write(reader.id + " " + reader.line + " " + reader.lastLine + " " + reader.text
+                                + " " + MethodKeys.format(reader.key) + "\n");
+                        break;
+                    case TraceFormat.THREAD:
+                        if (reader.stream != 0) {
+                            threads.write(reader.stream + " " + reader.threadId + " " + reader.text + "\n");
+                        }
+                        break;
+                    case TraceFormat.FOOTER:
+                        footer.write(reader.stream + " " + reader.droppedValues + " "
+                                + reader.droppedTraversals + " " + reader.spilledBuffers + "\n");
+                        break;
+                    case TraceFormat.CHUNK:
+                        current = renderers.get(reader.stream);
+                        if (current == null) {
+                            String name = Names.methodCallFile(reader.stream).getName();
+                            Writer calls = new BufferedWriter(new FileWriter(new File(dir, name)), 1 << 16);
+                            callFiles.put(reader.stream, calls);
+                            current = new TraceRenderer(calls, true, new ArrayList<>());
+                            renderers.put(reader.stream, current);
+                        }
+                        break;
+                    default:
+                        if (current == null) {
+                            throw new IOException("Event outside of a chunk");
+                        }
+                        current.renderRecord(tag, reader);
+                        break;
+                }
+            }
+        } finally {
+            for (Writer calls : callFiles.values()) {
+                calls.close();
+            }
+        }
+
+        // Traversals go to the binary object graph store when the trace
+        // is binary
+        if (new File(dir, Names.GRAPH_FILE.getName()).exists()) {
+            try (Writer traversals = new BufferedWriter(new FileWriter(
+                    new File(dir, Names.TRAVERSAL_FILE.getName())), 1 << 16)) {
+                new ObjectGraphReader(dir).renderAll(traversals);
+            }
+        }
+    }
+
+    // Joins the committed part of every segment into one binary trace:
+    // the method ids come first and then every stream's segments in
+    // order.
+    private static InputStream openSegments(File segmentDir) {
+        File[] files = segmentDir.listFiles((d, name) -> name.endsWith(".seg"));
+        List<File> segments = new ArrayList<>(files == null
+                ? Collections.<File>emptyList() : Arrays.asList(files));
+        segments.sort(Comparator.comparingInt(TraceConverter::segmentStream)
+                .thenComparingInt(TraceConverter::segmentIndex));
+
+        EventBuffer header = new EventBuffer(16);
+        header.putBytes(TraceFormat.MAGIC, 0, TraceFormat.MAGIC.length);
+        header.putVarInt(TraceFormat.VERSION);
+
+        Iterator<File> remaining = segments.iterator();
+        // Segments are only read once the previous one is done
+        Enumeration<InputStream> parts = new Enumeration<InputStream>() {
+            private boolean headerRead = false;
+
+            @Override
+            public boolean hasMoreElements() {
+                return !headerRead || remaining.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (!headerRead) {
+                    headerRead = true;
+                    return new ByteArrayInputStream(header.data(), 0, header.length());
+                }
+                try {
+                    return new ByteArrayInputStream(readSegment(remaining.next()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return new SequenceInputStream(parts);
+    }
+
+    // Reads the committed records of a segment.
+    private static byte[] readSegment(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            byte[] magic = new byte[TraceFormat.SEGMENT_MAGIC.length];
+            file.readFully(magic);
+            if (!Arrays.equals(magic, TraceFormat.SEGMENT_MAGIC)) {
+                throw new IOException("Not a vedebug trace segment: " + segment);
+            }
+            int version = file.readInt();
+            if (version != TraceFormat.VERSION) {
+                throw new IOException("Unsupported trace format version " + version);
+            }
+            int committed = file.readInt();
+            // Whatever was written after the last commit is dropped
+            committed = (int) Math.min(committed, file.length() - TraceFormat.SEGMENT_HEADER_SIZE);
+            byte[] records = new byte[Math.max(committed, 0)];
+            file.readFully(records);
+            return records;
+        }
+    }
+
+    // Segments are named <stream>-<index>.seg, or methods-<index>.seg
+    // for the method ids which are put first.
+    private static int segmentStream(File segment) {
+        String name = segment.getName();
+        String stream = name.substring(0, name.lastIndexOf('-'));
+        return stream.equals("methods") ? -1 : Integer.parseInt(stream);
+    }
+
+    private static int segmentIndex(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('-') + 1, name.length() - ".seg".length()));
+    }
+}
@@ -0,0 +1,119 @@
+package vedebug.core;
+
+/**
+ * Constants describing the binary trace format written to
+ * MethodCalls.bin.
+ * <p>
+ * A binary trace starts with a header (the magic bytes followed by
+ * the format version as a varint) and is then a flat sequence of
+ * records.  Every record starts with a one byte tag followed by its
+ * payload; all integers are LEB128 varints, signed ones are zigzag
+ * encoded first and strings are a varint length followed by UTF-8
+ * bytes.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public final class TraceFormat {
+
+    /**
+     * Header
+     */
+    public static final byte[] MAGIC = {'V', 'D', 'B', 'T'};
+    public static final int VERSION = 10;
+
+    /**
+     * Header of a memory-mapped segment, see {@link TraceSegments}:
+     * magic, version and committed length as 4 byte ints
+     */
+    public static final byte[] SEGMENT_MAGIC = {'V', 'D', 'B', 'S'};
+    public static final int SEGMENT_COMMITTED_OFFSET = 8;
+    public static final int SEGMENT_HEADER_SIZE = 12;
+
+    /**
+     * Record tags
+     */
+
+    // id, first line (signed), last line (signed), method string, key
+    // (fixed long, see MethodKeys)
+    public static final int METHOD = 1;
+    // invocation line (signed, 0 when there is none), id
+    public static final int CALL = 2;
+    // id, line
+    public static final int BLOCK = 3;
+    // id
+    public static final int RETURN = 4;
+    // Rendered value of an argument
+    public static final int ARG = 5;
+    // Rendered value of a return value
+    public static final int RET = 6;
+    // stream, thread id (long), thread name; written once per stream
+    public static final int THREAD = 7;
+    // stream, global chunk sequence (long), sequence number of the
+    // first record in the chunk (long); every record up to the next
+    // CHUNK belongs to that stream
+    public static final int CHUNK = 8;
+    // No payload; values after it were dropped to stay in the memory
+    // budget, see Names.overflow
+    public static final int DROPPED = 9;
+    // stream, dropped values (long), dropped object graphs (long),
+    // spilled buffers (long); written once per stream at the end
+    public static final int FOOTER = 10;
+    // length, count; the last length CALL, BLOCK and RETURN records
+    // happen count more times, followed by the REPEAT_VALUES of those
+    // times, see BlockCycles
+    public static final int REPEAT = 11;
+    // kind (byte), value; a primitive argument, kept as it is so it's
+    // only rendered by whoever reads the trace.  The kinds are the
+    // primitive ones from GraphFormat and the value is saved the same
+    // way, apart from INT which is saved like LONG.
+    public static final int PRIMITIVE_ARG = 12;
+    // kind (byte), value; same for a primitive return value
+    public static final int PRIMITIVE_RET = 13;
+    // id, rendered value; adds a String value to the stream's table of
+    // Strings, which starts out empty and gives out ids from 0, see
+    // StringPool
+    public static final int STRING = 14;
+    // id; an argument that is the String with that id in the table
+    public static final int STRING_ARG = 15;
+    // id; same for a return value
+    public static final int STRING_RET = 16;
+    // kind (byte), length, count, and then the first count elements
+    // saved like the values of PRIMITIVE_ARG, or for arrays of objects
+    // the name of the component type; an array argument.  Byte and
+    // short arrays are INT.
+    public static final int ARRAY_ARG = 17;
+    // Same for an array return value
+    public static final int ARRAY_RET = 18;
+    // id, id of the exception's class name in the stream's table of
+    // Strings; the method is about to throw an exception
+    public static final int THROW = 19;
+    // id, id of the exception's class name; an exception handler of
+    // the method was entered
+    public static final int CATCH = 20;
+    // id; the method was left because of an exception
+    public static final int UNWIND = 21;
+    // iteration, index; the values after it are the ones of the
+    // index-th record (from 1) of the iteration-th time (from 1) of
+    // the REPEAT before it.  A record without one has the same values
+    // as the time before, where time 0 is the records before the
+    // REPEAT.
+    public static final int REPEAT_VALUES = 22;
+
+    private TraceFormat() {
+    }
+
+    // Whether the record is part of a thread's stream of events as
+    // opposed to describing the trace itself.
+    static boolean isEvent(int tag) {
+        return tag != METHOD && tag != THREAD && tag != CHUNK && tag != FOOTER;
+    }
+
+    // Whether the record starts a new line in MethodCalls.txt.
+    // Anything else is a value appended to the current line.
+    static boolean isControl(int tag) {
+        return tag == CALL || tag == BLOCK || tag == RETURN || tag == REPEAT
+                || tag == REPEAT_VALUES || tag == THROW || tag == CATCH || tag == UNWIND;
+    }
+}
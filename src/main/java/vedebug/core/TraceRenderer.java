@@ -0,0 +1,244 @@
+package vedebug.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns trace records back into the text format of MethodCalls.txt
+ * and MethodIDs.txt that trace_completion.py and the viewer expect.
+ * <p>
+ * Every CALL, BLOCK and RETURN record starts a new line, values are
+ * appended to the line of the record they follow:
+ * <pre>
+ * [invocationLine ]id args...
+ * &#64;id:line
+ * - id [returnValue]
+ * ~ length count
+ * ! id exceptionClass
+ * * id exceptionClass
+ * - id Exception
+ * </pre>
+ * where the ~ line means the length lines before it happen count more
+ * times, the ! line that the method throws an exception, the * line
+ * that one of its exception handlers was entered and the last line
+ * that it was left because of an exception.  Pooled String values
+ * are looked up in the stream's table of Strings, which the renderer
+ * fills in from STRING records.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class TraceRenderer {
+
+    private final Writer calls;
+
+    // Doesn't add a newline to the start of the first line
+    private boolean firstLine;
+
+    // The stream's table of Strings
+    private final List<String> strings;
+
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * Constructor.
+     *
+     * @param calls     where MethodCalls.txt is written to
+     * @param firstLine whether nothing has been written to calls yet
+     * @param strings   the stream's table of Strings so far, which is
+     *                  added to as the records are rendered
+     */
+    TraceRenderer(Writer calls, boolean firstLine, List<String> strings) {
+        this.calls = calls;
+        this.firstLine = firstLine;
+        this.strings = strings;
+    }
+
+    boolean isFirstLine() {
+        return firstLine;
+    }
+
+    // Renders every record left in the reader.
+    void render(EventReader reader) throws IOException {
+        int tag;
+        while ((tag = reader.next()) != -1) {
+            renderRecord(tag, reader);
+        }
+    }
+
+    // Renders the record the reader is at; anything that is not an
+    // event of the stream is skipped, as are DROPPED markers since the
+    // text format has no place for them.
+    void renderRecord(int tag, EventReader reader) throws IOException {
+        if (!TraceFormat.isEvent(tag) || tag == TraceFormat.DROPPED) {
+            return;
+        }
+        if (tag == TraceFormat.STRING) {
+            addString(strings, reader);
+            return;
+        }
+        if (TraceFormat.isControl(tag)) {
+            if (firstLine) {
+                firstLine = false;
+            } else {
+                calls.write('\n');
+            }
+        }
+        line.setLength(0);
+        appendRecord(tag, reader, line, strings);
+        calls.append(line);
+    }
+
+    // Renders the records into one String per line the same way the
+    // old calls list was built: every line but the last one keeps
+    // its trailing newline.  strings is the stream's table of Strings
+    // before the first record.
+    static List<String> renderLines(EventReader reader, List<String> strings) throws IOException {
+        List<String> lines = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean first = true;
+        int tag;
+        while ((tag = reader.next()) != -1) {
+            if (!TraceFormat.isEvent(tag) || tag == TraceFormat.DROPPED) {
+                continue;
+            }
+            if (tag == TraceFormat.STRING) {
+                addString(strings, reader);
+                continue;
+            }
+            if (TraceFormat.isControl(tag)) {
+                if (first) {
+                    first = false;
+                } else {
+                    lines.add(current.append('\n').toString());
+                    current.setLength(0);
+                }
+            }
+            appendRecord(tag, reader, current, strings);
+        }
+        lines.add(current.toString());
+        return lines;
+    }
+
+    // Appends the text of a single event.
+    private static void appendRecord(int tag, EventReader reader, StringBuilder sb, List<String> strings) {
+        switch (tag) {
+            case TraceFormat.CALL:
+                if (reader.line != 0) {
+                    sb.append(reader.line).append(' ');
+                }
+                sb.append(reader.id).append(' ');
+                break;
+            case TraceFormat.BLOCK:
+                sb.append('@').append(reader.id).append(':').append(reader.line).append(' ');
+                break;
+            case TraceFormat.RETURN:
+                sb.append("- ").append(reader.id).append(' ');
+                break;
+            case TraceFormat.REPEAT:
+                sb.append("~ ").append(reader.length).append(' ').append(reader.count).append(' ');
+                break;
+            case TraceFormat.REPEAT_VALUES:
+                sb.append("= ").append(reader.iteration).append(' ').append(reader.index).append(' ');
+                break;
+            case TraceFormat.THROW:
+                sb.append("! ").append(reader.id).append(' ').append(strings.get(reader.type)).append(' ');
+                break;
+            case TraceFormat.CATCH:
+                sb.append("* ").append(reader.id).append(' ').append(strings.get(reader.type)).append(' ');
+                break;
+            case TraceFormat.UNWIND:
+                sb.append("- ").append(reader.id).append(" Exception ");
+                break;
+            case TraceFormat.STRING_ARG:
+            case TraceFormat.STRING_RET:
+                sb.append(strings.get(reader.id)).append(' ');
+                break;
+            case TraceFormat.PRIMITIVE_ARG:
+            case TraceFormat.PRIMITIVE_RET:
+                appendPrimitive(reader.kind, reader.bits, sb);
+                sb.append(' ');
+                break;
+            case TraceFormat.ARRAY_ARG:
+            case TraceFormat.ARRAY_RET:
+                appendArray(reader, sb);
+                sb.append(' ');
+                break;
+            default:
+                sb.append(reader.text).append(' ');
+                break;
+        }
+    }
+
+    private static void addString(List<String> strings, EventReader reader) {
+        if (reader.id < strings.size()) {
+            strings.set(reader.id, reader.text);
+        } else {
+            strings.add(reader.text);
+        }
+    }
+
+    // Renders a buffer that holds a single value record, without the
+    // space that follows it in MethodCalls.txt.
+    static String renderValue(EventBuffer record) {
+        EventReader reader = new EventReader(new ByteArrayInputStream(record.data(), 0, record.length()));
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendRecord(reader.next(), reader, sb, Collections.<String>emptyList());
+        } catch (IOException e) {
+            // Can't happen when reading from memory
+            throw new IllegalStateException(e);
+        }
+        return sb.substring(0, sb.length() - 1);
+    }
+
+    // Appends an array as [a, b, ...], where the ... means it has more
+    // elements than were saved.
+    private static void appendArray(EventReader reader, StringBuilder sb) {
+        sb.append('[');
+        for (int i = 0; i < reader.count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            if (reader.kind == GraphFormat.OBJECT) {
+                // Only the type of the elements is saved
+                sb.append(reader.text);
+            } else if (reader.kind == GraphFormat.CHAR && reader.elements[i] == '\n') {
+                sb.append("\\n");
+            } else {
+                appendPrimitive(reader.kind, reader.elements[i], sb);
+            }
+        }
+        if (reader.length > reader.count) {
+            sb.append(reader.count > 0 ? ", ..." : "...");
+        }
+        sb.append(']');
+    }
+
+    // Appends a primitive value the same way String.valueOf() renders
+    // it.
+    private static void appendPrimitive(int kind, long bits, StringBuilder sb) {
+        switch (kind) {
+            case GraphFormat.CHAR:
+                sb.append((char) bits);
+                break;
+            case GraphFormat.FLOAT:
+                sb.append(Float.intBitsToFloat((int) bits));
+                break;
+            case GraphFormat.DOUBLE:
+                sb.append(Double.longBitsToDouble(bits));
+                break;
+            case GraphFormat.BOOLEAN:
+                sb.append(bits != 0);
+                break;
+            default:
+                sb.append(bits);
+                break;
+        }
+    }
+}
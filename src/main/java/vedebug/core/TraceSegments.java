@@ -0,0 +1,78 @@
+package vedebug.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped segment files that records are written straight
+ * into, so whatever was recorded survives the process being killed.
+ * <p>
+ * A segment starts with a header of {@link TraceFormat#SEGMENT_MAGIC},
+ * the format version and the committed length (all as 4 byte ints)
+ * followed by records in the format described in {@link TraceFormat}.
+ * Only the first committed length bytes after the header are valid,
+ * anything after them may be a record that was only partly written.
+ * When a segment is full the next one is started; the segments of one
+ * writer are named &lt;name&gt;-&lt;index&gt;.seg.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class TraceSegments {
+
+    private final File dir;
+    private final String name;
+
+    // Index of the current segment, -1 before the first one
+    private int index = -1;
+    private MappedByteBuffer buffer;
+
+    TraceSegments(File dir, String name) {
+        this.dir = dir;
+        this.name = name;
+    }
+
+    // Whether a segment is open at all
+    boolean isOpen() {
+        return buffer != null;
+    }
+
+    // Bytes left in the current segment
+    int remaining() {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    // Starts the next segment, which has room for at least size bytes.
+    void next(int size) throws IOException {
+        index++;
+        int capacity = Math.max(Names.SEGMENT_SIZE, TraceFormat.SEGMENT_HEADER_SIZE + size);
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, name + "-" + index + ".seg"), "rw");
+             FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        buffer.put(TraceFormat.SEGMENT_MAGIC);
+        buffer.putInt(TraceFormat.VERSION);
+        buffer.putInt(0);
+    }
+
+    // Copies the records into the current segment and then commits
+    // them; the caller makes sure they fit.
+    void append(EventBuffer records) {
+        buffer.put(records.data(), 0, records.length());
+        buffer.putInt(TraceFormat.SEGMENT_COMMITTED_OFFSET,
+                buffer.position() - TraceFormat.SEGMENT_HEADER_SIZE);
+    }
+
+    // Writes the current segment to the disk.
+    void force() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+}
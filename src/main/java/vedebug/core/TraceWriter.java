@@ -0,0 +1,245 @@
+package vedebug.core;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Background thread that saves the buffers the recording threads
+ * hand off, so a thread that fills its buffer doesn't have to wait
+ * for the files to be written.
+ * <p>
+ * At most {@link Names#MAX_IN_FLIGHT} batches wait to be written, and
+ * together with the buffers the threads are still filling (see
+ * {@link #charge(long)}) they hold at most {@link Names#budget} bytes,
+ * which keeps the memory used by the trace bounded when the disk
+ * can't keep up.
+ * What happens to a batch that doesn't fit is up to the caller, see
+ * {@link Names#overflow}.  Batches (including spilled ones) are written
+ * in the order they were handed off, so the chunks of every stream
+ * stay in order.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class TraceWriter {
+
+    /**
+     * Everything a thread recorded between two hand-offs, together
+     * with the method ids that were added in the meantime.
+     */
+    static final class Batch {
+        final ThreadTrace trace;
+        // All three are null while the batch is spilled; graphs is
+        // also null if the trace isn't binary
+        EventBuffer events;
+        List<String> traversals;
+        EventBuffer graphs;
+        // Sequence number of the first record in events
+        final long sequence;
+        // Bytes the batch holds in memory
+        long bytes;
+        // File the batch was spilled to, if it was
+        File spill;
+
+        final Map<Integer, String> ids;
+        final Map<Integer, Integer> firstLineNums;
+        final Map<Integer, Integer> lastLineNums;
+
+        Batch(ThreadTrace trace, EventBuffer events, List<String> traversals, EventBuffer graphs,
+              long sequence, Map<Integer, String> ids, Map<Integer, Integer> firstLineNums,
+              Map<Integer, Integer> lastLineNums) {
+            this.trace = trace;
+            this.events = events;
+            this.traversals = traversals;
+            this.graphs = graphs;
+            this.sequence = sequence;
+            this.bytes = events == null ? 0 : events.length() + ThreadTrace.bytesOf(traversals)
+                    + (graphs == null ? 0 : graphs.length());
+            this.ids = ids;
+            this.firstLineNums = firstLineNums;
+            this.lastLineNums = lastLineNums;
+        }
+    }
+
+    // Put in the queue to stop the thread once everything before it
+    // is written
+    private static final Batch STOP = new Batch(null, null, null, null, 0, null, null, null);
+
+    private final BlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+    private final Consumer<Batch> sink;
+    // Both guarded by this; once drained the thread isn't started
+    // again
+    private Thread thread;
+    private boolean drained = false;
+
+    private final int capacity;
+    private final long budget;
+    // What is waiting to be written; spilled batches don't count
+    private final Object budgetLock = new Object();
+    private int buffers = 0;
+    private volatile long bytes = 0;
+    // What the threads hold in the buffers they are still filling
+    private final LongAdder live = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity number of batches that may wait to be written
+     * @param budget   bytes that the waiting batches may hold
+     * @param sink     writes a batch to the files
+     */
+    TraceWriter(int capacity, long budget, Consumer<Batch> sink) {
+        this.capacity = capacity;
+        this.budget = budget;
+        this.sink = sink;
+    }
+
+    // Whether the batches waiting to be written plus the buffers
+    // being filled are more than the budget; cheap enough to check on
+    // every value.
+    boolean isOverBudget() {
+        return bytes + live.sum() > budget;
+    }
+
+    // Counts bytes a thread added to (or, when negative, took out of)
+    // the buffers it is filling.  Threads do this in steps, not for
+    // every record, and take a buffer's bytes out right before handing
+    // it off.
+    void charge(long delta) {
+        live.add(delta);
+    }
+
+    // Hands a batch to the writer thread, starting it on the first
+    // call.  Waits until there is room for it.
+    void submit(Batch batch) {
+        boolean interrupted = false;
+        synchronized (budgetLock) {
+            while (!hasRoom(batch)) {
+                try {
+                    budgetLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            reserve(batch);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        enqueue(batch);
+    }
+
+    // Hands a batch to the writer thread if there is room for it
+    // right now.
+    boolean trySubmit(Batch batch) {
+        synchronized (budgetLock) {
+            if (!hasRoom(batch)) {
+                return false;
+            }
+            reserve(batch);
+        }
+        enqueue(batch);
+        return true;
+    }
+
+    // A single batch always fits so a batch bigger than the budget
+    // can't block forever.
+    private boolean hasRoom(Batch batch) {
+        if (batch.spill != null || buffers == 0) {
+            return true;
+        }
+        return buffers < capacity && bytes + live.sum() + batch.bytes <= budget;
+    }
+
+    private void reserve(Batch batch) {
+        if (batch.spill == null) {
+            buffers++;
+            bytes += batch.bytes;
+        }
+    }
+
+    private void release(Batch batch) {
+        synchronized (budgetLock) {
+            if (batch.spill == null) {
+                buffers--;
+                bytes -= batch.bytes;
+            }
+            budgetLock.notifyAll();
+        }
+    }
+
+    private void enqueue(Batch batch) {
+        synchronized (this) {
+            if (!drained) {
+                start();
+                queue.add(batch);
+                return;
+            }
+        }
+        // Everything handed off before is written already, so the
+        // batch still comes after it
+        write(batch);
+    }
+
+    // Waits until every batch handed off so far is written and stops
+    // the thread; used by the shutdown hook.  Batches handed off after
+    // this are written right away on the thread that hands them off.
+    synchronized void drain() {
+        drained = true;
+        if (thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        queue.add(STOP);
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Called with the lock held.
+    private void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "vedebug-trace-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (batch == STOP) {
+                return;
+            }
+            write(batch);
+        }
+    }
+
+    private void write(Batch batch) {
+        try {
+            sink.accept(batch);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            release(batch);
+        }
+    }
+}
@@ -26,11 +26,68 @@ public class VideoAgent {
 
         // Parse agent arguments
         if (agentArgs != null) {
-            String[] args = agentArgs.split("-");
+            // Split before every option, leaving the second dash of
+            // the long ones, e.g. "-t --memory=1m" is "t " and
+            // "-memory=1m"
+            String[] args = agentArgs.split("(?<!-)-");
 
             for (String arg : args) {
                 if (arg.startsWith("t") || arg.startsWith("-traverse")) {
                     Names.traverse = !Names.traverse;
+                } else if (arg.startsWith("b") || arg.startsWith("-binary")) {
+                    Names.binary = !Names.binary;
+                } else if (arg.startsWith("m") || arg.startsWith("-mmap")) {
+                    Names.mmap = !Names.mmap;
+                } else if (arg.startsWith("z") || arg.startsWith("-compress")) {
+                    Names.compress = !Names.compress;
+                } else if (arg.startsWith("l") || arg.startsWith("-loops")) {
+                    Names.loops = !Names.loops;
+                } else if (arg.startsWith("d") || arg.startsWith("-delta")) {
+                    Names.delta = !Names.delta;
+                } else if (arg.startsWith("c") || arg.startsWith("-cache")) {
+                    Names.cache = !Names.cache;
+                } else if (arg.startsWith("k") || arg.startsWith("-keepframes")) {
+                    Names.keepFrames = !Names.keepFrames;
+                } else if (arg.startsWith("M") || arg.startsWith("-memory")) {
+                    // Budget in bytes, optionally with a k, m or g suffix
+                    if (arg.matches("(M|-memory) ?= ?\\d+[kmg]?\\s*")) {
+                        String budget = arg.substring(arg.indexOf("=") + 1).trim();
+                        char unit = budget.charAt(budget.length() - 1);
+                        int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+                        if (shift != 0) {
+                            budget = budget.substring(0, budget.length() - 1);
+                        }
+                        Names.budget = Long.parseLong(budget) << shift;
+                    } else {
+                        System.err.println("You must include the number of bytes with an = when using -M or --memory." +
+                                "\nUsing default settings instead.");
+                    }
+                } else if (arg.startsWith("R") || arg.startsWith("-ring")) {
+                    if (arg.matches("(R|-ring) ?= ?\\d+\\s*")) {
+                        Names.ring = Integer.parseInt(arg.substring(arg.indexOf("=") + 1).trim());
+                    } else {
+                        System.err.println("You must include the number of events with an = when using -R or --ring." +
+                                "\nUsing default settings instead.");
+                    }
+                } else if (arg.startsWith("D") || arg.startsWith("-dump")) {
+                    // The method is given as <class>.<method>, e.g. D=com.example.Foo.bar
+                    if (arg.matches("(D|-dump) ?= ?[\\w.$/]+\\.[\\w$<>]+\\s*")) {
+                        String method = arg.substring(arg.indexOf("=") + 1).trim();
+                        Names.dumpClass = method.substring(0, method.lastIndexOf(".")).replace(".", "/");
+                        Names.dumpMethod = method.substring(method.lastIndexOf(".") + 1);
+                    } else {
+                        System.err.println("You must include the method with an = when using -D or --dump." +
+                                "\nUsing default settings instead.");
+                    }
+                } else if (arg.startsWith("O") || arg.startsWith("-overflow")) {
+                    if (arg.matches("(O|-overflow) ?= ?(block|spill|drop)\\s*")) {
+                        String policy = arg.substring(arg.indexOf("=") + 1).trim();
+                        Names.overflow = policy.equals("spill") ? Names.OVERFLOW_SPILL
+                                : policy.equals("drop") ? Names.OVERFLOW_DROP : Names.OVERFLOW_BLOCK;
+                    } else {
+                        System.err.println("You must include block, spill or drop with an = when using -O or --overflow." +
+                                "\nUsing default settings instead.");
+                    }
                 } else if (arg.startsWith("p") || arg.startsWith("-path")) {
                     // Path only works for one path, so can't do a main and a test path right now
                     if (arg.matches("(p|-path) ?=.+")) {
@@ -66,6 +123,17 @@ public class VideoAgent {
         }
 
         System.out.println("Object graph traversal: " + Names.traverse);
+        System.out.println("Binary trace: " + Names.binary);
+        System.out.println("Memory-mapped trace: " + Names.mmap);
+        System.out.println("Compressed trace: " + Names.compress);
+        System.out.println("Repeated loops: " + Names.loops);
+        System.out.println("Delta object snapshots: " + Names.delta);
+        System.out.println("Class cache: " + Names.cache);
+        System.out.println("Keep stack map frames: " + Names.keepFrames);
+        System.out.println("Memory budget: " + Names.budget + " bytes, " +
+                (Names.overflow == Names.OVERFLOW_SPILL ? "spill" :
+                        Names.overflow == Names.OVERFLOW_DROP ? "drop" : "block") + " when over it");
+        System.out.println("Flight recorder: " + (Names.ring > 0 ? "last " + Names.ring + " events" : "off"));
         System.out.println("Path(s) to instrument: " +
                 (pathToInstrument == null && packageToInstrument == null ? "default" : "set"));
         System.out.println("File extensions to search: " + (fileExtensions == null ? "default" : "set"));
@@ -28,6 +28,8 @@ public class VideoClassVisitor extends ClassVisitor {
      */
     private boolean isGenerated = false;
 
+    private int version;
+
     public VideoClassVisitor(ClassWriter cw, String className) {
         super(Instr.ASM_API_VERSION, cw);
         this.className = className;
@@ -35,6 +37,13 @@ public class VideoClassVisitor extends ClassVisitor {
         this.fullSource = null;
     }
 
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName,
+                      String[] interfaces) {
+        this.version = version;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
     @Override
     public void visitSource(String source, String debug) {
         if (!source.equals("<generated>")) {
@@ -58,7 +67,7 @@ public class VideoClassVisitor extends ClassVisitor {
         // enter the following methods behind the first abstract one.
         if (!isGenerated && (access & Opcodes.ACC_SYNTHETIC) == 0
                 && (access & Opcodes.ACC_ABSTRACT) == 0) {
-            mv = new VideoMethodVisitor(mv, access, name, className, desc, source);
+            mv = new VideoMethodVisitor(mv, access, name, className, desc, source, version);
         }
         return mv;
     }
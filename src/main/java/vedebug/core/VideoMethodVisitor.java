@@ -1,5 +1,6 @@
 package vedebug.core;
 
+import vedebug.asm.Handle;
 import vedebug.asm.Label;
 import vedebug.asm.MethodVisitor;
 import vedebug.asm.Opcodes;
@@ -9,6 +10,7 @@ import vedebug.util.Types;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -31,19 +33,11 @@ public class VideoMethodVisitor extends MethodVisitor {
     // Used as a flag in testing
     public static boolean isSavingInvocationLineNums = true;
 
-    // Used as a flag to detect if super() or this() happens
-    private static boolean isCallingSuperOrThis = false;
-
-    // Temporarily store the first line number of a method, which is
-    // used for handling some constructors that call the method
-    // signature line first
-    private static int firstLineNumberBackup = 0;
-    private static int firstBasicBlockLineNumberBackup = 0;
-
     // Not every method requires visitCode() to be called, but since
     // that's where data is collected this only gets incremented in
-    // that method
-    private static int idCounter = 1;
+    // that method.  Classes can be transformed on many threads at
+    // once, so everything else about a method is kept in its visitor.
+    private static final AtomicInteger idCounter = new AtomicInteger(1);
 
     private static String pkg = null;
 
@@ -61,6 +55,15 @@ public class VideoMethodVisitor extends MethodVisitor {
     private final String source;
     private final String returnType;
 
+    // Used as a flag to detect if super() or this() happens
+    private boolean isCallingSuperOrThis;
+
+    // Temporarily store the first line number of a method, which is
+    // used for handling some constructors that call the method
+    // signature line first
+    private int firstLineNumberBackup;
+    private int firstBasicBlockLineNumberBackup;
+
     // This is set to true once visitLineNumber() has been called once
     // in each method so that only the first line is recorded
     private boolean visitedFirstLine;
@@ -85,6 +88,36 @@ public class VideoMethodVisitor extends MethodVisitor {
     // only used whenever a method is invoked
     private int currentLineNumber;
 
+    // The last line handed to SaveUtil's shadow call stack.  Reset at
+    // every label since execution can jump there from anywhere.
+    private int savedLineNumber;
+
+    // Labels where the method's exception handlers start, and whether
+    // the next instruction is the first one of a handler
+    private final Set<Label> handlerLabels;
+    private boolean isStartingHandler;
+
+    // Basic block the next instruction starts, or -1.  Its probe is
+    // put right before the instruction rather than where the line
+    // number is visited, since a stack map frame at the instruction
+    // is visited in between and has to stay where the jumps land.
+    private int blockLineNumber;
+
+    // Start of the code that is covered by the handler which records
+    // the method being left by an exception.  In constructors it's
+    // right after the call to super() or this(), before which the
+    // object can't be in a handler's frame; newObjects counts the
+    // objects created before it whose constructors haven't been
+    // called yet.
+    private Label bodyStart;
+    private int newObjects;
+
+    // Version of the class file and whether the method came with
+    // stack map frames, which decide if the handler above needs one
+    // when the frames are kept (see Names.keepFrames)
+    private final int classVersion;
+    private boolean hasFrames;
+
     // This gets called when the VideoTransformer is constructed,
     // should only be set once
     static void setPkg(String pkg) {
@@ -95,7 +128,7 @@ public class VideoMethodVisitor extends MethodVisitor {
      * Constructor.
      */
     VideoMethodVisitor(MethodVisitor mv, int access, String methodName,
-                       String className, String desc, String source) {
+                       String className, String desc, String source, int classVersion) {
         super(Instr.ASM_API_VERSION, mv);
 
         // This is -1 because it can't actually be set until later
@@ -106,12 +139,23 @@ public class VideoMethodVisitor extends MethodVisitor {
         this.desc = desc;
         this.source = source;
         this.returnType = Type.getReturnType(desc).toString();
+        this.isCallingSuperOrThis = false;
+        this.firstLineNumberBackup = 0;
+        this.firstBasicBlockLineNumberBackup = 0;
         this.visitedFirstLine = false;
         this.visitedInitFirstLine = false;
         this.isGettingLineNumber = false;
         this.basicBlockLineNums = new TreeSet<>();
         this.basicBlocksToCollect = new HashSet<>();
         this.currentLineNumber = -1;
+        this.savedLineNumber = -1;
+        this.handlerLabels = new HashSet<>();
+        this.isStartingHandler = false;
+        this.blockLineNumber = -1;
+        this.bodyStart = null;
+        this.newObjects = 0;
+        this.classVersion = classVersion;
+        this.hasFrames = false;
     }
 
     /**
@@ -135,15 +179,12 @@ public class VideoMethodVisitor extends MethodVisitor {
             mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, "saveInvocationLineNumber", "()V", false);
         }
 
-        // Set default value for the flag
-        isCallingSuperOrThis = false;
-
         // Save the id for this method.  Does this here because not
         // every method actually gets to visitCode(), but this is
         // where methods get saved. So if it incremented in the
         // constructor then some IDs would be skipped, which causes
         // bugs in the trace completion.
-        id = idCounter++;
+        id = idCounter.getAndIncrement();
 
         // These two variables make a nice char[] of param types and
         // then also give the number of parameters.
@@ -156,11 +197,18 @@ public class VideoMethodVisitor extends MethodVisitor {
                 + " " + className + " " + methodName + " " + (numParams > 0 ?
                 String.valueOf(methodDescParsed) : "-")
                 + " " + returnType);
+        MethodSwitches.add(id, className, methodName);
+        MethodKeys.add(id, MethodKeys.keyOf(className, methodName, desc));
 
         // Inserts code to add the method's id to the logging file.
-        mv.visitLdcInsn(id + "");
-        mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "" +
-                "(Ljava/lang/String;)V", false);
+        pushInt(id);
+        mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.ENTER_METHOD, "(I)V", false);
+
+        // In flight-recorder mode entering this method may be what
+        // triggers a dump
+        if (methodName.equals(Names.dumpMethod) && className.equals(Names.dumpClass)) {
+            mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, "dump", "()V", false);
+        }
 
         // If the method is not a static initializer then get its
         // parameter values.
@@ -168,6 +216,10 @@ public class VideoMethodVisitor extends MethodVisitor {
             captureParameterValues(numParams, methodDescParsed);
         }
 
+        if (!methodName.equals("<init>")) {
+            startBody();
+        }
+
         super.visitCode();
     }
 
@@ -208,9 +260,10 @@ public class VideoMethodVisitor extends MethodVisitor {
             // in it
             basicBlocksToCollect.remove(line);
             basicBlockLineNums.add((int) start.lineNumber);
-            mv.visitLdcInsn("@" + id + ":" + start.lineNumber);
-            mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "" +
-                    "(Ljava/lang/String;)V", false);
+            // A "basic block" at line 0 doesn't actually exist
+            if (start.lineNumber != 0) {
+                blockLineNumber = (int) start.lineNumber;
+            }
             isGettingLineNumber = false;
         }
 
@@ -222,7 +275,14 @@ public class VideoMethodVisitor extends MethodVisitor {
     // stack trace can be stored in MethodCalls.txt.
     @Override
     public void visitInsn(int opcode) {
+        beforeInstruction();
         switch (opcode) {
+            case Opcodes.ATHROW:
+                mv.visitInsn(Opcodes.DUP);
+                pushInt(id);
+                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.THROW_METHOD,
+                        "(Ljava/lang/Throwable;I)V", false);
+                break;
             case Opcodes.IRETURN:
             case Opcodes.FRETURN:
             case Opcodes.ARETURN:
@@ -230,9 +290,8 @@ public class VideoMethodVisitor extends MethodVisitor {
             case Opcodes.LRETURN:
             case Opcodes.RETURN:
             case Opcodes.RET:
-                mv.visitLdcInsn("- " + id);
-                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "" +
-                        "(Ljava/lang/String;)V", false);
+                pushInt(id);
+                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.EXIT_METHOD, "(I)V", false);
                 // Don't need to capture the return value if the type
                 // is void.
                 if (!returnType.equals("V")) {
@@ -266,6 +325,7 @@ public class VideoMethodVisitor extends MethodVisitor {
     // save when their BBs are accessed.
     @Override
     public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        beforeInstruction();
         for (Label label : checkIfLabelsAreSafe(labels)) {
             basicBlockLineNums.add((int) label.lineNumber);
         }
@@ -280,6 +340,7 @@ public class VideoMethodVisitor extends MethodVisitor {
     // calls to save when their BBs are accessed.
     @Override
     public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        beforeInstruction();
         for (Label label : checkIfLabelsAreSafe(labels)) {
             basicBlockLineNums.add((int) label.lineNumber);
         }
@@ -288,8 +349,117 @@ public class VideoMethodVisitor extends MethodVisitor {
         super.visitLookupSwitchInsn(dflt, keys, labels);
     }
 
+    @Override
+    public void visitLabel(Label label) {
+        savedLineNumber = -1;
+        super.visitLabel(label);
+        if (handlerLabels.contains(label)) {
+            isStartingHandler = true;
+        }
+    }
+
+    // The probes never change the types of the locals or what's under
+    // them on the stack, so the frames stay right where they are.
+    @Override
+    public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+        hasFrames = true;
+        super.visitFrame(type, numLocal, local, numStack, stack);
+    }
+
+    // Exception handlers are always visited before their labels.
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        handlerLabels.add(handler);
+        super.visitTryCatchBlock(start, end, handler, type);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        beforeInstruction();
+        super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        beforeInstruction();
+        super.visitVarInsn(opcode, var);
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+        beforeInstruction();
+        super.visitLdcInsn(value);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        beforeInstruction();
+        super.visitIincInsn(var, increment);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+        beforeInstruction();
+        super.visitMultiANewArrayInsn(descriptor, numDimensions);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+                                       Object... bootstrapMethodArguments) {
+        beforeInstruction();
+        super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+    }
+
+    // Puts a handler around the rest of the method which records that
+    // the method was left by an exception and throws it again.
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        if (bodyStart != null) {
+            Label bodyEnd = new Label();
+            mv.visitLabel(bodyEnd);
+            // When the frames are kept the handler needs its own.  It
+            // uses no locals, so none is as good as any; classes older
+            // than Java 7 may do without frames if they have none.
+            if (Names.keepFrames && ((classVersion & 0xFFFF) >= Opcodes.V1_7
+                    || (classVersion & 0xFFFF) >= Opcodes.V1_6 && hasFrames)) {
+                mv.visitFrame(Opcodes.F_NEW, 0, new Object[0], 1, new Object[]{"java/lang/Throwable"});
+            }
+            mv.visitTryCatchBlock(bodyStart, bodyEnd, bodyEnd, null);
+            pushInt(id);
+            mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.UNWIND_METHOD, "(I)V", false);
+            mv.visitInsn(Opcodes.ATHROW);
+        }
+        super.visitMaxs(maxStack, maxLocals);
+    }
+
+    // Creating an object of or accessing a static field of another
+    // instrumented class may run its <clinit>, which reads the line
+    // it was invoked from off the shadow call stack.
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        beforeInstruction();
+        if (opcode == Opcodes.NEW) {
+            newObjects++;
+        }
+        if (opcode == Opcodes.NEW && !type.equals(className) && isInstrumented(type)) {
+            saveCurrentLine();
+        }
+        super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        beforeInstruction();
+        if ((opcode == Opcodes.GETSTATIC || opcode == Opcodes.PUTSTATIC)
+                && !owner.equals(className) && isInstrumented(owner)) {
+            saveCurrentLine();
+        }
+        super.visitFieldInsn(opcode, owner, name, descriptor);
+    }
+
     @Override
     public void visitJumpInsn(int opcode, Label label) {
+        beforeInstruction();
         isGettingLineNumber = true;
         basicBlocksToCollect.add((int) label.lineNumber);
         super.visitJumpInsn(opcode, label);
@@ -298,31 +468,47 @@ public class VideoMethodVisitor extends MethodVisitor {
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String
             descriptor, boolean isInterface) {
+        beforeInstruction();
+        instrumentMethodInsn(opcode, owner, name, descriptor, isInterface);
+
+        // The first constructor called on something that wasn't just
+        // created is super() or this()
+        if (opcode == Opcodes.INVOKESPECIAL && name.equals("<init>") && methodName.equals("<init>")) {
+            if (newObjects > 0) {
+                newObjects--;
+            } else if (bodyStart == null) {
+                startBody();
+            }
+        }
+    }
+
+    private void instrumentMethodInsn(int opcode, String owner, String name, String
+            descriptor, boolean isInterface) {
         // If the method being called is actually just accessing a variable
         // in a static inner class, then ignore it
-        // When running tests we don't want the invocation line numbers to be
-        // collected so just skip out here
-        // If the method being called isn't being instrumented then ignore it
-        if (!isSavingInvocationLineNums || name.matches("^access\\$\\d\\d\\d$")) {
+        if (name.matches("^access\\$\\d\\d\\d$")) {
             super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
             return;
-        } else if (pkg != null) {
-            // This needs to be inside the branch so that the else is
-            // not reached whenever pkg is not null.
-            if (!owner.startsWith(pkg)) {
-                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
-                return;
-            }
-        } else {
-            // Only check these if pkg is null AND the other
-            // conditions for saving the invocation line number are
-            // met; otherwise we don't want to waste time checking
-            // them.
-
-            if (Types.isIgnoredClassName(owner)) {
-                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
-                return;
+        }
+
+        // When running tests we don't want the invocation line numbers to be
+        // collected, but a static call may still run the <clinit> of
+        // another class
+        if (!isSavingInvocationLineNums) {
+            if (opcode == INVOKESTATIC && !owner.equals(className) && isInstrumented(owner)) {
+                saveCurrentLine();
             }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            return;
+        }
+
+        // If the method being called isn't being instrumented then
+        // only keep the line up to date in case it calls back into
+        // instrumented code
+        if (!isInstrumented(owner)) {
+            saveCurrentLine();
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            return;
         }
 
         // Mark a flag for the constructors that include super() or this()
@@ -332,11 +518,72 @@ public class VideoMethodVisitor extends MethodVisitor {
 
         // Otherwise save the line number where it's currently being
         // invoked from.
-        mv.visitLdcInsn(currentLineNumber);
+        pushInt(currentLineNumber);
         mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, "setCurrentInvocationLine", "(I)V", false);
+        savedLineNumber = currentLineNumber;
         super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
     }
 
+    // Puts the probes that were waiting for the next instruction.
+    private void beforeInstruction() {
+        saveCaughtException();
+        if (blockLineNumber != -1) {
+            pushInt(id);
+            pushInt(blockLineNumber);
+            mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.BLOCK_METHOD, "(II)V", false);
+            blockLineNumber = -1;
+        }
+    }
+
+    private void startBody() {
+        bodyStart = new Label();
+        mv.visitLabel(bodyStart);
+    }
+
+    // Records the exception an exception handler starts with, which
+    // is on top of the stack.
+    private void saveCaughtException() {
+        if (isStartingHandler) {
+            isStartingHandler = false;
+            mv.visitInsn(Opcodes.DUP);
+            pushInt(id);
+            mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.CATCH_METHOD,
+                    "(Ljava/lang/Throwable;I)V", false);
+        }
+    }
+
+    // Pushes an int constant with the smallest instruction for it so
+    // the probes don't add entries to the constant pool.
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    // Whether methods of the class are instrumented as well.
+    private static boolean isInstrumented(String owner) {
+        if (pkg != null) {
+            return owner.startsWith(pkg);
+        }
+        return !Types.isIgnoredClassName(owner);
+    }
+
+    // Hands the line the method is currently at to the shadow call
+    // stack if it doesn't have it yet.
+    private void saveCurrentLine() {
+        if (savedLineNumber != currentLineNumber) {
+            pushInt(currentLineNumber);
+            mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, "setCurrentLine", "(I)V", false);
+            savedLineNumber = currentLineNumber;
+        }
+    }
+
     @Override
     public void visitEnd() {
         // Deal with wrong line numbers regrading to the constructors that include super() or this()
@@ -390,6 +637,9 @@ public class VideoMethodVisitor extends MethodVisitor {
         // purposes of the for loop working.
         int COUNT = 0;
 
+        // Arrays are saved according to their declared type
+        Type[] argumentTypes = Type.getArgumentTypes(desc);
+
         // This loop is where the parameter values are actually
         // loaded then added to the list.
         for (int i = 0; i + COUNT < numParams; i++) {
@@ -403,39 +653,38 @@ public class VideoMethodVisitor extends MethodVisitor {
                 case 'S':
                 case 'I':
                     mv.visitVarInsn(Opcodes.ILOAD, INDEX);
-                    mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(I)V", false);
+                    saveValue(Names.SAVE_METHOD, "I");
                     break;
                 // boolean and char could use the int method too,
                 // but they'd show up wrong, so they have their
                 // own
                 case 'Z':
                     mv.visitVarInsn(Opcodes.ILOAD, INDEX);
-                    mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(Z)V", false);
+                    saveValue(Names.SAVE_METHOD, "Z");
                     break;
                 case 'C':
                     mv.visitVarInsn(Opcodes.ILOAD, INDEX);
-                    mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(C)V", false);
+                    saveValue(Names.SAVE_METHOD, "C");
                     break;
                 case 'J':
                     mv.visitVarInsn(Opcodes.LLOAD, INDEX);
-                    mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(J)V", false);
+                    saveValue(Names.SAVE_METHOD, "J");
                     COUNT++;
                     numParams++;
                     break;
                 case 'F':
                     mv.visitVarInsn(Opcodes.FLOAD, INDEX);
-                    mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(F)V", false);
+                    saveValue(Names.SAVE_METHOD, "F");
                     break;
                 case 'D':
                     mv.visitVarInsn(Opcodes.DLOAD, INDEX);
-                    mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(D)V", false);
+                    saveValue(Names.SAVE_METHOD, "D");
                     COUNT++;
                     numParams++;
                     break;
                 case 'L':
                     mv.visitVarInsn(Opcodes.ALOAD, INDEX);
-                    mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD,
-                            "(Ljava/lang/Object;)V", false);
+                    saveReference(argumentTypes[i]);
                     break;
                 default:
                     System.err.println("Saving the parameters broke, your " +
@@ -472,32 +721,31 @@ public class VideoMethodVisitor extends MethodVisitor {
             case 'B':
             case 'S':
             case 'I':
-                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(I)V", false);
+                saveValue(Names.SAVE_METHOD, "I");
                 break;
             // boolean and char could use the int method too, but
             // they'd show up wrong, so they have their own
             case 'Z':
-                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(Z)V", false);
+                saveValue(Names.SAVE_METHOD, "Z");
                 break;
             case 'C':
-                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(C)V", false);
+                saveValue(Names.SAVE_METHOD, "C");
                 break;
             case 'J':
-                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(J)V", false);
+                saveValue(Names.SAVE_METHOD, "J");
                 break;
             case 'F':
-                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(F)V", false);
+                saveValue(Names.SAVE_METHOD, "F");
                 break;
             case 'D':
-                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "(D)V", false);
+                saveValue(Names.SAVE_METHOD, "D");
                 break;
             // These two are together because arrays are objects but
             // start with [ instead of L; parseMethodArguments() deals
             // with this fact in captureParameterValues()
             case 'L':
             case '[':
-                mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, Names.SAVE_METHOD, "" +
-                        "(Ljava/lang/Object;)V", false);
+                saveReference(Type.getReturnType(desc));
                 break;
             default:
                 System.err.println("Saving the return type broke, your stack may be messed up");
@@ -505,6 +753,29 @@ public class VideoMethodVisitor extends MethodVisitor {
         }
     }
 
+    // Saves the reference on top of the stack.  Arrays go straight to
+    // the saveArray() of their element type, or the Object[] one for
+    // arrays of objects and of other arrays, so SaveUtil doesn't have
+    // to work out their type every time.
+    private void saveReference(Type type) {
+        if (type.getSort() != Type.ARRAY) {
+            saveValue(Names.SAVE_METHOD, "Ljava/lang/Object;");
+            return;
+        }
+        String arrayDesc = type.getDimensions() == 1 && type.getElementType().getSort() <= Type.DOUBLE
+                ? type.getDescriptor() : "[Ljava/lang/Object;";
+        saveValue(Names.SAVE_ARRAY_METHOD, arrayDesc);
+    }
+
+    // Saves the value on top of the stack, of the type with the given
+    // descriptor, with the probe of the given name.  The probes also
+    // take the method's id so they can tell if it's switched off, see
+    // MethodSwitches.
+    private void saveValue(String probe, String valueDesc) {
+        pushInt(id);
+        mv.visitMethodInsn(INVOKESTATIC, Names.SAVE_UTIL_INTERNAL, probe, "(" + valueDesc + "I)V", false);
+    }
+
     // Actually, ASM provided a static method called
     // getArgumentTypes(String methodDesc) in class Type to do the
     // same thing.  Not sure if these two methods should have their
@@ -560,6 +831,17 @@ public class VideoMethodVisitor extends MethodVisitor {
 
     // Used to reset the IDCounter, mostly for testing
     static void resetIDCounter() {
-        idCounter = 1;
+        idCounter.set(1);
+    }
+
+    // The id the next instrumented method gets.
+    static int nextID() {
+        return idCounter.get();
+    }
+
+    // Gives out the given ids to a class loaded from the ClassCache if
+    // they are the next ones, and returns whether it did.
+    static boolean reserveIDs(int firstId, int count) {
+        return idCounter.compareAndSet(firstId, firstId + count);
     }
 }
@@ -39,6 +39,17 @@ public class VideoTransformer implements ClassFileTransformer {
      */
     private final String[] fileExtensions;
 
+    /**
+     * Instrumented classes from earlier runs (if != null).
+     */
+    private final ClassCache cache;
+
+    /**
+     * Super classes and interfaces for computing frames, shared by
+     * every class transformed.
+     */
+    private final ClassHierarchy hierarchy = new ClassHierarchy();
+
     /**
      * Constructor.
      */
@@ -56,6 +67,7 @@ public class VideoTransformer implements ClassFileTransformer {
 
         VideoMethodVisitor.setPkg(pkg);
         SaveUtil.setPkg(pkg);
+        this.cache = Names.cache ? new ClassCache(Names.CACHE_DIR) : null;
     }
 
     /**
@@ -131,11 +143,46 @@ public class VideoTransformer implements ClassFileTransformer {
      * Instrument a class.
      */
     private byte[] transformClass(ClassLoader loader, String className, byte[] classfileBuffer) {
+        if (cache == null) {
+            byte[] instrumented = instrument(loader, className, classfileBuffer);
+            SaveUtil.commitMethodIDs();
+            return instrumented;
+        }
+
+        byte[] instrumented = cache.load(className, classfileBuffer);
+        if (instrumented == null) {
+            int firstId = VideoMethodVisitor.nextID();
+            try {
+                instrumented = instrument(loader, className, classfileBuffer);
+            } finally {
+                cache.store(className, classfileBuffer, instrumented, firstId, VideoMethodVisitor.nextID());
+            }
+        }
+        SaveUtil.commitMethodIDs();
+        return instrumented;
+    }
+
+    private byte[] instrument(ClassLoader loader, String className, byte[] classfileBuffer) {
         // ASM Code
         ClassReader reader = new ClassReader(classfileBuffer);
-        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        // Kept frames are read expanded so the one the visitor adds
+        // can be written along with them; the max stack is then
+        // computed from the frames
+        ClassWriter writer = new ClassWriter(reader, Names.keepFrames
+                ? ClassWriter.COMPUTE_MAXS
+                : ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES) {
+            // Reads the class files of the loader the class is from
+            // instead of loading classes with the agent's loader
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return hierarchy.getCommonSuperClass(loader, type1, type2);
+            }
+        };
+        if (!Names.keepFrames) {
+            hierarchy.add(loader, reader);
+        }
         VideoClassVisitor visitor = new VideoClassVisitor(writer, className);
-        reader.accept(visitor, 0);
+        reader.accept(visitor, Names.keepFrames ? ClassReader.EXPAND_FRAMES : 0);
         // Statement just used for debugging purposes
         // saveClassfileBufferForDebugging(className, writer.toByteArray());
         return writer.toByteArray();
@@ -0,0 +1,78 @@
+#!/usr/bin/env python
+
+import bisect
+import os
+import zlib
+
+__author__ = 'Ben Buhse, Thomas Wei, Zhiqiang Zang'
+
+# Traces recorded with the compress (z) agent argument are written to
+# <file>.z as independent zlib chunks, and <file>.idx has a line
+# "uncompressed_offset compressed_offset" for every chunk.  This reads
+# them back without decompressing more than what is asked for.
+
+class ChunkedFile(object):
+    def __init__(self, path):
+        self.data = open(path + ".z", "rb")
+        self.data_size = os.path.getsize(path + ".z")
+        self.uncompressed_offsets = []
+        self.compressed_offsets = []
+        index = open(path + ".idx", "r")
+        for line in index:
+            offsets = line.split()
+            if len(offsets) == 2:
+                self.uncompressed_offsets.append(int(offsets[0]))
+                self.compressed_offsets.append(int(offsets[1]))
+        index.close()
+
+    def chunk_count(self):
+        return len(self.compressed_offsets)
+
+    def read_chunk(self, i):
+        start = self.compressed_offsets[i]
+        end = self.compressed_offsets[i + 1] if i + 1 < self.chunk_count() else self.data_size
+        self.data.seek(start)
+        return zlib.decompress(self.data.read(end - start))
+
+    # Index of the chunk holding the given offset of the original text
+    def find_chunk(self, offset):
+        return max(bisect.bisect_right(self.uncompressed_offsets, offset) - 1, 0)
+
+    # Reads length bytes of the original text starting at offset, only
+    # decompressing the chunks they are in
+    def read_range(self, offset, length):
+        i = self.find_chunk(offset)
+        if i >= self.chunk_count():
+            return ""
+        text = ""
+        skip = offset - self.uncompressed_offsets[i]
+        while i < self.chunk_count() and len(text) < skip + length:
+            text += self.read_chunk(i)
+            i += 1
+        return text[skip:skip + length]
+
+    def read(self):
+        return "".join(self.read_chunk(i) for i in range(self.chunk_count()))
+
+    def readlines(self):
+        return self.read().splitlines(True)
+
+    # Lines of the original text, decompressing one chunk at a time
+    def __iter__(self):
+        rest = ""
+        for i in range(self.chunk_count()):
+            lines = (rest + self.read_chunk(i)).splitlines(True)
+            rest = lines.pop() if lines and not lines[-1].endswith("\n") else ""
+            for line in lines:
+                yield line
+        if rest != "":
+            yield rest
+
+    def close(self):
+        self.data.close()
+
+# Opens a trace file whether or not it was written compressed
+def open_trace(path):
+    if not os.path.exists(path) and os.path.exists(path + ".z"):
+        return ChunkedFile(path)
+    return open(path, "r")
@@ -42,6 +42,7 @@ def parse_ids(id_file, src_roots, data_root):
     END_LINE = 2
     CLASS_NAME = 4
     FILE_PATH = 3
+    KEY = 8
     output = open(os.path.join(data_root, "CompletedMethodIDs.txt"), "w+")
 
     # Items in "files" and those in "src_root_paths" correspond to
@@ -79,11 +80,14 @@ def parse_ids(id_file, src_roots, data_root):
                         raise
             if not os.path.exists(store_path):
                 shutil.copyfile(os.path.join(src_root_path, path_from_src), store_path)
-        # Encoded as name, path (from root), start line, end line, basic blocks, class name, other info (args, return, etc.)
+        # Encoded as name, path (from root), start line, end line, basic blocks, class name, other info (args, return, etc.),
+        # key (same in every run, None for files written before there were keys)
         if tokens[START_LINE] == "null" or int(tokens[START_LINE]) > int(tokens[END_LINE]) or not found:
             tokens[START_LINE] = -1
+        key = int(tokens[KEY], 16) if len(tokens) > KEY else None
         method_info = (tokens[METHOD_NAME], store_path, int(tokens[START_LINE]), \
-                    int(tokens[END_LINE]), [int(tokens[START_LINE]), int(tokens[END_LINE])], tokens[CLASS_NAME], tokens[6:])
+                    int(tokens[END_LINE]), [int(tokens[START_LINE]), int(tokens[END_LINE])], tokens[CLASS_NAME], \
+                    [token.strip() for token in tokens[6:KEY]], key)
         complete_segmentation(method_info, data_root, tokens[FILE_PATH])
         lookup.append(method_info)
         for index, token in enumerate(tokens):
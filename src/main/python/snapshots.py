@@ -0,0 +1,132 @@
+#!/usr/bin/env python
+
+import argparse
+import os
+import re
+import sys
+
+import chunked
+
+__author__ = 'Ben Buhse, Thomas Wei, Zhiqiang Zang'
+
+# Traversals recorded with the delta (d) agent argument only have the
+# fields of an object that changed since the same thread last
+# traversed it:
+#
+#   T#num stream[ checkpoint]
+#     O#id - class         the whole object, as without delta
+#       line
+#     O#id ~               only the fields that changed, each with
+#       index:line           its whole line
+#     O#id =               nothing changed
+#   ...                    the traversal was cut short
+#
+# A thread forgets what it saved at every checkpoint, so a traversal
+# can be rebuilt by starting at the last checkpoint of its thread.
+# This turns them back into the format written without delta.
+
+HEADER = re.compile(r"T#(\d+) (\d+)( checkpoint)?$")
+OBJECT = "  O#"
+FIELD = "    "
+
+# Yields (number, stream, checkpoint, lines) for every traversal
+def read_traversals(traversal_file):
+    current = None
+    for line in traversal_file:
+        line = line.rstrip("\n")
+        match = HEADER.match(line)
+        if match:
+            if current is not None:
+                yield current
+            current = (int(match.group(1)), int(match.group(2)), match.group(3) is not None, [])
+        elif current is not None:
+            current[3].append(line)
+    if current is not None:
+        yield current
+
+class Rebuilder(object):
+    def __init__(self):
+        # For every stream, the header and field lines last saved of
+        # every object by id
+        self.objects = {}
+
+    # Returns the traversal the way it's written without delta
+    def rebuild(self, number, stream, checkpoint, lines):
+        if checkpoint or stream not in self.objects:
+            self.objects[stream] = {}
+        objects = self.objects[stream]
+        if lines == ["null"]:
+            return "T#" + str(number) + "O#1\nnull"
+        order = []
+        cut_short = False
+        current = None
+        for line in lines:
+            if line == "...":
+                cut_short = True
+            elif line.startswith(OBJECT):
+                tokens = line.split()
+                if tokens[1] == "-":
+                    objects[tokens[0]] = [line, []]
+                current = objects[tokens[0]]
+                changed = tokens[1] == "~"
+                order.append(tokens[0])
+            elif changed:
+                index, value = line[len(FIELD):].split(":", 1)
+                current[1][int(index)] = value
+            else:
+                current[1].append(line)
+        text = "T#" + str(number)
+        for object_id in order:
+            text += "\n" + "\n".join([objects[object_id][0]] + objects[object_id][1])
+        if cut_short:
+            text += "..."
+        return text
+
+# Rebuilds a single traversal, replaying its thread from the last
+# checkpoint before it
+def rebuild_one(path, number):
+    start = None
+    checkpoints = {}
+    traversals = chunked.open_trace(path)
+    for index, (num, stream, checkpoint, lines) in enumerate(read_traversals(traversals)):
+        if checkpoint:
+            checkpoints[stream] = index
+        if num == number:
+            start = (checkpoints.get(stream, 0), stream)
+            break
+    traversals.close()
+    if start is None:
+        return None
+    rebuilder = Rebuilder()
+    traversals = chunked.open_trace(path)
+    for index, (num, stream, checkpoint, lines) in enumerate(read_traversals(traversals)):
+        if index < start[0] or stream != start[1]:
+            continue
+        text = rebuilder.rebuild(num, stream, checkpoint, lines)
+        if num == number:
+            traversals.close()
+            return text
+    traversals.close()
+    return None
+
+def main():
+    parser = argparse.ArgumentParser(description="Rebuilds object graph traversals saved as deltas by vedebug")
+    parser.add_argument("trace_path", help="path to the the output of the trace")
+    parser.add_argument("number", type=int, nargs="?", help="number of the traversal to rebuild (default: all of them)")
+    args = vars(parser.parse_args())
+    path = os.path.join(args['trace_path'], "ObjectGraphTraversals")
+    if args['number'] is not None:
+        text = rebuild_one(path, args['number'])
+        if text is None:
+            print("No traversal T#" + str(args['number']))
+            sys.exit(1)
+        print(text)
+        return
+    rebuilder = Rebuilder()
+    traversals = chunked.open_trace(path)
+    for traversal in read_traversals(traversals):
+        print(rebuilder.rebuild(*traversal))
+    traversals.close()
+
+if __name__ == "__main__":
+    main()
@@ -4,7 +4,9 @@ import sys
 import os
 import re
 import argparse
+import collections
 
+import chunked
 import parse
 import process
 
@@ -16,6 +18,10 @@ __status__ = "Development"
 PRINT = False
 PRINT_DIVERGENCE = True
 
+# Longest loop the agent records as "~ length count", see
+# Names.MAX_CYCLE_LENGTH
+MAX_CYCLE_LENGTH = 32
+
 def end_of_bb(method_info, beginning_of_bb):
     divisions = method_info[4]
     if beginning_of_bb == -1:
@@ -28,6 +34,15 @@ def end_of_bb(method_info, beginning_of_bb):
     else:
         return beginning_of_bb
 
+# Whether two methods from the ids of different runs are the same
+# method.  The ids differ between runs, so this compares the keys from
+# MethodIDs.txt, or the names when a run has none.
+def same_method(method_info, past_method_info):
+    if method_info[7] is not None and past_method_info[7] is not None:
+        return method_info[7] == past_method_info[7]
+    return (method_info[0], method_info[5], method_info[6]) == \
+            (past_method_info[0], past_method_info[5], past_method_info[6])
+
 def is_int(s):
     try:
         int(s)
@@ -35,6 +50,53 @@ def is_int(s):
     except ValueError:
         return False
 
+# Yields the lines of a calls file with every "~ length count" line
+# replaced by the length lines before it, count more times.  The
+# "= time index" lines right after it give the values of the index-th
+# of those lines the time-th time, where they differ from the time
+# before.  The file is read as it's needed, so huge loops are never
+# all in memory.  invocation_lines is whether call lines start with
+# the line they were called from, which is the case unless the agent
+# was told not to save them.
+def expand_repeats(calls_file, invocation_lines=True):
+    recent = collections.deque(maxlen=MAX_CYCLE_LENGTH)
+    lines = iter(calls_file)
+    line = next(lines, None)
+    while line is not None:
+        if line[0] != '~':
+            recent.append(line)
+            yield line
+            line = next(lines, None)
+            continue
+        tokens = line.split()
+        cycle = list(recent)[-int(tokens[1]):]
+        changes = {}
+        line = next(lines, None)
+        while line is not None and line[0] == '=':
+            parts = line.split(" ", 3)
+            values = parts[3].rstrip("\n") if len(parts) > 3 else ""
+            changes[(int(parts[1]), int(parts[2]))] = values
+            line = next(lines, None)
+        for i in range(1, int(tokens[2]) + 1):
+            for j in range(len(cycle)):
+                if (i, j + 1) in changes:
+                    cycle[j] = with_values(cycle[j], changes[(i, j + 1)], invocation_lines)
+                recent.append(cycle[j])
+                yield cycle[j]
+
+# The line of a call, block or return with its values replaced.
+def with_values(line, values, invocation_lines=True):
+    # "@id:line", "- id", or "invocation_line id" for calls, which is
+    # just "id" without invocation lines.  An invocation line may be
+    # -1 but never stands on its own like the "-" of a return.
+    if line[0] == '@':
+        control = 1
+    elif line.startswith("- ") or invocation_lines:
+        control = 2
+    else:
+        control = 1
+    return " ".join(line.split(" ")[:control]) + " " + values + "\n"
+
 def write_intervals(output_file, intervals):
     for interval in intervals:
         output_file.write("[" + str(interval[0]) + "," + str(interval[1]) + "]" + "\n")
@@ -55,10 +117,10 @@ def complete_trace(output_file, calls_file, ids):
     BOXES = 4
     CLASS = 5
     OTHER = 6
+    KEY = 7
 
     stack = []
-    lines = calls_file.readlines()
-    for index, line in enumerate(lines):
+    for index, line in enumerate(expand_repeats(calls_file)):
         tokens = [token for token in re.split(" |\n|\t", line) if token != ""]
         # Method call case
         if is_int(tokens[0]):
@@ -83,7 +145,7 @@ def complete_trace(output_file, calls_file, ids):
             # Static initialization special case (implicitly defined)
             if info[0] == "<clinit>":
                 if invocation_line == "-1":
-                    info = (info[NAME], info[PATH], -1, info[END], info[BOXES], info[CLASS], info[OTHER])
+                    info = (info[NAME], info[PATH], -1, info[END], info[BOXES], info[CLASS], info[OTHER], info[KEY])
                     output_string = tokens[0] + "\n"
                     del stack[-1][ARGS][:]
             # Empty stack or implicit definition case
@@ -123,9 +185,32 @@ def complete_trace(output_file, calls_file, ids):
                 output_file.write(output_string)
                 stack.pop()
                 continue
+            # Left because of an exception, which only gets as far as
+            # the current line
+            if tokens[-1] == "Exception":
+                intervals = [(stack[-1][LINES][0], stack[-1][LINES][0])]
+                output_string = "- " + str(stack[-1][FID]) + " Exception\n"
+                write_intervals(output_file, intervals)
+                output_file.write(output_string)
+                stack.pop()
+                continue
             intervals = [(stack[-1][LINES][0], stack[-1][LINES][1])]
             process.process_lines(intervals, stack[-1][INFO][PATH])
             stack.pop()
+        # Exception thrown case, the lines after it say where it goes
+        elif line[0] == "!":
+            continue
+        # Exception caught case, the methods it left were unwound by
+        # the lines before it
+        elif line[0] == "*":
+            if ids[int(tokens[1]) - 1][PATH] == "null":
+                continue
+            while stack and int(tokens[1]) != stack[-1][FID]:
+                intervals = [(stack[-1][LINES][0], stack[-1][LINES][0])]
+                write_intervals(output_file, intervals)
+                output_file.write("- " + str(stack[-1][FID]) + " Exception\n")
+                stack.pop()
+            continue
         # Change of basic block case
         elif line[0] == '@':
             tokens = [token for token in re.split(" |\n|\t|@|:", line) if token != ""]
@@ -138,7 +223,9 @@ def complete_trace(output_file, calls_file, ids):
                 intervals = [(interval[0], interval[1])]
                 process.process_lines(intervals, stack[-1][INFO][PATH])
                 write_intervals(output_file, intervals)
-            # Exception handling
+            # Exception handling for traces without exception events,
+            # where the only sign of it is a block of a method that
+            # isn't on top of the stack
             while int(tokens[0]) != stack[-1][FID]:
                 intervals = [(stack[-1][LINES][0], stack[-1][LINES][0])]
                 write_intervals(output_file, intervals)
@@ -243,13 +330,11 @@ def find_divergence_point(output, index, offset, lines, ids, stack, past_lines,
                 break
             current_method = ids[int(tokens[0]) - 1]
             past_method = past_ids[int(past_tokens[0]) - 1]
-            compare_info = (current_method[0], current_method[5], current_method[6])
-            past_compare_info = (past_method[0], past_method[5], past_method[6])
-            if compare_info != past_compare_info:
+            if not same_method(current_method, past_method):
                 if PRINT_DIVERGENCE:
                     print "Difference in method call"
-                    print str(compare_info)
-                    print str(past_compare_info)
+                    print str((current_method[0], current_method[5], current_method[6]))
+                    print str((past_method[0], past_method[5], past_method[6]))
                 output.write("* Difference in method call\n")
                 break
             if verbose and (tokens[1:] != past_tokens[1:]):
@@ -350,9 +435,7 @@ def find_reconvergence_point(output, index, offset, lines, ids, stack, past_line
                 if is_int(tokens[0]) and is_int(past_tokens[0]):
                     current_method = ids[int(tokens[0]) - 1]
                     past_method = past_ids[int(past_tokens[0]) - 1]
-                    compare_info = (current_method[0], current_method[5], current_method[6])
-                    past_compare_info = (past_method[0], past_method[5], past_method[6])
-                    if past_compare_info == compare_info:
+                    if same_method(current_method, past_method):
                         if PRINT_DIVERGENCE:
                             print "Reconvergence point found, function call"
                         offset = candidate[1] - index
@@ -367,9 +450,7 @@ def find_reconvergence_point(output, index, offset, lines, ids, stack, past_line
                 elif line[0] == '-' and past_line[0] == '-' and not (tokens[-1] == "Exception" and past_tokens[-1] != "Exception" or tokens[-1] != "Exception" and past_tokens[-1] == "Exception"):
                     current_method = ids[int(tokens[1]) - 1]
                     past_method = past_ids[int(past_tokens[1]) - 1]
-                    compare_info = (current_method[0], current_method[5], current_method[6])
-                    past_compare_info = (past_method[0], past_method[5], past_method[6])
-                    if past_compare_info == compare_info:
+                    if same_method(current_method, past_method):
                         if PRINT_DIVERGENCE:
                             print "Reconvergence point found, return"
                         offset = candidate[1] - index
@@ -430,9 +511,12 @@ def main():
     # Now we support multiple src roots split by colon.
     parser.add_argument("src_roots", help="paths to the root of the source code that was instrumented")
     parser.add_argument("comparison_trace_path", nargs="?", help="path to the previous trace to compare to")
+    # Every thread is recorded as its own stream, see Threads.txt
+    parser.add_argument("-t", "--thread", type=int, default=0, help="stream of the thread to complete (default: 0, the first thread)")
     args = vars(parser.parse_args())
+    suffix = "" if args['thread'] == 0 else "-" + str(args['thread'])
     try:
-        calls = open(os.path.join(args['trace_path'], "MethodCalls.txt"), "r")
+        calls = chunked.open_trace(os.path.join(args['trace_path'], "MethodCalls" + suffix + ".txt"))
     except Exception, e:
         print "Unable to open trace file"
         sys.exit()
@@ -441,7 +525,7 @@ def main():
     except Exception, e:
         print "Unable to open method id file"
         sys.exit()
-    pretrace_path = os.path.join(args['trace_path'], "pretrace.txt")
+    pretrace_path = os.path.join(args['trace_path'], "pretrace" + suffix + ".txt")
     pretrace = open(pretrace_path, "w+")
 
     lookup = parse.parse_ids(ids, args['src_roots'], args['trace_path'])
@@ -464,15 +548,15 @@ def main():
         data.close()
         past_lookup = parse.parse_ids(past_ids, args['comparison_trace_path'], args['comparison_trace_path'])
         past_ids.close()
-        past_pretrace_read = open(os.path.join(args['comparison_trace_path'], "pretrace.txt"), "r")
-        processed_pretrace = open(os.path.join(args['trace_path'], "processed_pretrace.txt"), "w+")
+        past_pretrace_read = open(os.path.join(args['comparison_trace_path'], "pretrace" + suffix + ".txt"), "r")
+        processed_pretrace = open(os.path.join(args['trace_path'], "processed_pretrace" + suffix + ".txt"), "w+")
         compare_traces(processed_pretrace, pretrace_read, lookup, past_pretrace_read, past_lookup, args['verbose'])
         past_pretrace_read.close()
         pretrace_read.close()
         processed_pretrace.close()
-        pretrace_read = open(os.path.join(args['trace_path'], "processed_pretrace.txt"), "r")
+        pretrace_read = open(os.path.join(args['trace_path'], "processed_pretrace" + suffix + ".txt"), "r")
 
-    trace = open(os.path.join(args['trace_path'], "trace.txt"), "w+")
+    trace = open(os.path.join(args['trace_path'], "trace" + suffix + ".txt"), "w+")
     extrapolate_returns(trace, pretrace_read, lookup)
     trace.close()
 
@@ -0,0 +1,107 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class ArrayValuesTest {
+
+    @Before
+    public void setUp() {
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.loops = false;
+        VideoMethodVisitor.isSavingInvocationLineNums = false;
+    }
+
+    @After
+    public void tearDown() {
+        SaveUtil.clear();
+    }
+
+    // Saves the value as the argument and the return value of a call
+    // and checks both render as expected
+    private static void assertSaved(String expected, Runnable save) {
+        SaveUtil.clear();
+        SaveUtil.enter(1);
+        save.run();
+        SaveUtil.exit(1);
+        save.run();
+        Assert.assertEquals(Arrays.asList("1 " + expected + " \n", "- 1 " + expected + " "),
+                SaveUtil.getCalls());
+    }
+
+    @Test
+    public void testEveryElementType() {
+        // byte and short are saved as ints
+        assertSaved("[-128, 0, 127]", () -> SaveUtil.saveArray(new byte[]{-128, 0, 127}, 1));
+        assertSaved("[-32768, 32767]", () -> SaveUtil.saveArray(new short[]{-32768, 32767}, 1));
+        assertSaved("[-1, 2147483647, -2147483648]",
+                () -> SaveUtil.saveArray(new int[]{-1, Integer.MAX_VALUE, Integer.MIN_VALUE}, 1));
+        assertSaved("[-9223372036854775808, -5000000000]",
+                () -> SaveUtil.saveArray(new long[]{Long.MIN_VALUE, -5000000000L}, 1));
+        // Newlines are escaped so the value stays on its line
+        assertSaved("[a, \\n, \u00e9]", () -> SaveUtil.saveArray(new char[]{'a', '\n', '\u00e9'}, 1));
+        assertSaved("[NaN, -0.0, 1.5]", () -> SaveUtil.saveArray(new float[]{Float.NaN, -0.0f, 1.5f}, 1));
+        assertSaved("[NaN, -0.0, 1.0E300]", () -> SaveUtil.saveArray(new double[]{Double.NaN, -0.0, 1e300}, 1));
+        assertSaved("[true, false]", () -> SaveUtil.saveArray(new boolean[]{true, false}, 1));
+        assertSaved("[]", () -> SaveUtil.saveArray(new int[0], 1));
+    }
+
+    // Only the type of the elements is saved, once for every element
+    @Test
+    public void testObjectArrays() {
+        assertSaved("[java.lang.String, java.lang.String]",
+                () -> SaveUtil.saveArray(new String[]{"a", null}, 1));
+        assertSaved("[[I]", () -> SaveUtil.saveArray(new int[][]{{1}}, 1));
+        assertSaved("[]", () -> SaveUtil.saveArray(new Object[0], 1));
+    }
+
+    @Test
+    public void testNullArrays() {
+        assertSaved("null", () -> SaveUtil.saveArray((byte[]) null, 1));
+        assertSaved("null", () -> SaveUtil.saveArray((short[]) null, 1));
+        assertSaved("null", () -> SaveUtil.saveArray((int[]) null, 1));
+        assertSaved("null", () -> SaveUtil.saveArray((long[]) null, 1));
+        assertSaved("null", () -> SaveUtil.saveArray((char[]) null, 1));
+        assertSaved("null", () -> SaveUtil.saveArray((float[]) null, 1));
+        assertSaved("null", () -> SaveUtil.saveArray((double[]) null, 1));
+        assertSaved("null", () -> SaveUtil.saveArray((boolean[]) null, 1));
+        assertSaved("null", () -> SaveUtil.saveArray((Object[]) null, 1));
+    }
+
+    // Only the first five elements are saved
+    @Test
+    public void testLongArrays() {
+        assertSaved("[0, 1, 2, 3, 4]", () -> SaveUtil.saveArray(new int[]{0, 1, 2, 3, 4}, 1));
+        assertSaved("[0, 1, 2, 3, 4, ...]", () -> SaveUtil.saveArray(new int[]{0, 1, 2, 3, 4, 5}, 1));
+        assertSaved("[a, b, c, d, e, ...]", () -> SaveUtil.saveArray("abcdefgh".toCharArray(), 1));
+        assertSaved("[false, false, false, false, false, ...]", () -> SaveUtil.saveArray(new boolean[100], 1));
+        String type = Integer.class.getName();
+        assertSaved("[" + type + ", " + type + ", " + type + ", " + type + ", " + type + ", ...]",
+                () -> SaveUtil.saveArray(new Integer[6], 1));
+    }
+
+    // Arrays that aren't declared as arrays are found at runtime and
+    // saved the same way
+    @Test
+    public void testArraysSavedAsObjects() {
+        Object[] arrays = {new byte[]{-1, 2}, new short[]{-3}, new int[]{0, 1, 2, 3, 4, 5},
+                new long[]{-5000000000L}, new char[]{'\n', 'x'}, new float[]{-0.0f},
+                new double[]{Double.NaN}, new boolean[]{false}, new String[]{"a"}, new int[][]{{1}}};
+        String[] expected = {"[-1, 2]", "[-3]", "[0, 1, 2, 3, 4, ...]", "[-5000000000]", "[\\n, x]",
+                "[-0.0]", "[NaN]", "[false]", "[java.lang.String]", "[[I]"};
+        for (int i = 0; i < arrays.length; i++) {
+            Object array = arrays[i];
+            assertSaved(expected[i], () -> SaveUtil.save(array, 1));
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package vedebug.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class BlockCyclesTest {
+
+    // Records the same events with and without finding loops
+    private static final class Recording {
+        final EventBuffer plain = new EventBuffer(16);
+        final EventBuffer folded = new EventBuffer(16);
+        final BlockCycles cycles = new BlockCycles();
+
+        Recording call(int invocationLine, int id) {
+            plain.putCall(invocationLine, id);
+            cycles.call(folded, invocationLine, id);
+            return this;
+        }
+
+        Recording block(int id, int line) {
+            plain.putBlock(id, line);
+            cycles.block(folded, id, line);
+            return this;
+        }
+
+        Recording ret(int id) {
+            plain.putReturn(id);
+            cycles.ret(folded, id);
+            return this;
+        }
+
+        Recording value(String value) {
+            plain.putValue(TraceFormat.ARG, value);
+            cycles.values().putValue(TraceFormat.ARG, value);
+            return this;
+        }
+
+        Recording end() {
+            cycles.end(folded);
+            return this;
+        }
+    }
+
+    private static List<String> render(EventBuffer records) throws IOException {
+        return TraceRenderer.renderLines(new EventReader(
+                new ByteArrayInputStream(records.data(), 0, records.length())), new ArrayList<>());
+    }
+
+    // Expands "~ length count" lines and the "= iteration index" lines
+    // after them the same way trace_completion.py does; call lines
+    // start with an invocation line if invocationLines is true
+    private static List<String> expand(List<String> lines, boolean invocationLines) {
+        List<String> expanded = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).replace("\n", "");
+            if (!line.startsWith("~ ")) {
+                expanded.add(line);
+                continue;
+            }
+            String[] tokens = line.split(" ");
+            int length = Integer.parseInt(tokens[1]);
+            int count = Integer.parseInt(tokens[2]);
+            Map<String, String> changes = new HashMap<>();
+            while (i + 1 < lines.size() && lines.get(i + 1).startsWith("= ")) {
+                String[] parts = lines.get(++i).replace("\n", "").split(" ", 4);
+                changes.put(parts[1] + " " + parts[2], parts.length > 3 ? parts[3] : "");
+            }
+            List<String> cycle = new ArrayList<>(expanded.subList(expanded.size() - length, expanded.size()));
+            for (int iteration = 1; iteration <= count; iteration++) {
+                for (int index = 1; index <= length; index++) {
+                    String values = changes.get(iteration + " " + index);
+                    if (values != null) {
+                        String previous = cycle.get(index - 1);
+                        int control = previous.startsWith("@")
+                                || !previous.startsWith("- ") && !invocationLines ? 1 : 2;
+                        String[] parts = previous.split(" ", control + 1);
+                        cycle.set(index - 1, String.join(" ", Arrays.asList(parts).subList(0, control))
+                                + " " + values);
+                    }
+                    expanded.add(cycle.get(index - 1));
+                }
+            }
+        }
+        return expanded;
+    }
+
+    private static void assertSameTrace(Recording recording) throws IOException {
+        assertSameTrace(recording, true);
+    }
+
+    private static void assertSameTrace(Recording recording, boolean invocationLines) throws IOException {
+        List<String> plain = new ArrayList<>();
+        for (String line : render(recording.plain)) {
+            plain.add(line.replace("\n", ""));
+        }
+        Assert.assertEquals(plain, expand(render(recording.folded), invocationLines));
+        Assert.assertTrue(recording.folded.length() <= recording.plain.length());
+    }
+
+    // Counts the records in a buffer by reading them
+    private static int countRecords(EventBuffer records) throws IOException {
+        EventReader reader = new EventReader(new ByteArrayInputStream(records.data(), 0, records.length()));
+        int count = 0;
+        while (reader.next() != -1) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testFoldsALoopOfBlocks() throws IOException {
+        Recording recording = new Recording().call(0, 1);
+        for (int i = 0; i < 5; i++) {
+            recording.block(1, 3).block(1, 4);
+        }
+        recording.block(1, 6).ret(1).end();
+        Assert.assertEquals(Arrays.asList("1 \n", "@1:3 \n", "@1:4 \n", "~ 2 4 \n", "@1:6 \n", "- 1 "),
+                render(recording.folded));
+        assertSameTrace(recording);
+    }
+
+    // Calls in the loop are part of the cycle, and only the values
+    // that change are kept
+    @Test
+    public void testFoldsCallsWithChangingValues() throws IOException {
+        Recording recording = new Recording().call(0, 1);
+        for (int i = 0; i < 6; i++) {
+            recording.block(1, 3).call(3, 2).value(String.valueOf(i)).value("\"same\"")
+                    .block(2, 10).ret(2).value(String.valueOf(i % 2));
+        }
+        recording.block(1, 5).ret(1).end();
+        List<String> lines = render(recording.folded);
+        Assert.assertTrue(lines.contains("~ 4 5 \n"));
+        Assert.assertTrue(lines.contains("= 1 2 1 \"same\" \n"));
+        Assert.assertTrue(lines.contains("= 1 4 1 \n"));
+        // The return value of the third time is the same as the first
+        // time's but not the second's
+        Assert.assertTrue(lines.contains("= 2 4 0 \n"));
+        assertSameTrace(recording);
+    }
+
+    // Without invocation lines a call line starts with the id, so its
+    // first value isn't mistaken for it
+    @Test
+    public void testFoldsCallsWithoutInvocationLines() throws IOException {
+        Recording recording = new Recording().call(0, 1);
+        for (int i = 0; i < 4; i++) {
+            recording.block(1, 3).call(0, 2).value(String.valueOf(i)).value("\"x\"").ret(2).value("r");
+        }
+        recording.ret(1).end();
+        List<String> lines = render(recording.folded);
+        Assert.assertTrue(lines.contains("2 0 \"x\" \n"));
+        Assert.assertTrue(lines.contains("= 1 2 1 \"x\" \n"));
+        assertSameTrace(recording, false);
+    }
+
+    // A loop that is still running when it ends is written with the
+    // iteration that was cut short
+    @Test
+    public void testEndWritesWhatIsHeldBack() throws IOException {
+        Recording recording = new Recording().call(0, 1);
+        for (int i = 0; i < 3; i++) {
+            recording.block(1, 3).block(1, 4);
+        }
+        recording.block(1, 3).end();
+        Assert.assertEquals(Arrays.asList("1 \n", "@1:3 \n", "@1:4 \n", "~ 2 2 \n", "@1:3 "),
+                render(recording.folded));
+        assertSameTrace(recording);
+    }
+
+    // Records that return out of the frame they started in aren't a
+    // loop, e.g. the same method called from two places in a row
+    @Test
+    public void testDoesNotFoldAcrossReturns() throws IOException {
+        Recording recording = new Recording();
+        for (int i = 0; i < 4; i++) {
+            recording.call(0, 1).ret(1);
+        }
+        recording.end();
+        assertSameTrace(recording);
+        Recording unbalanced = new Recording().call(0, 1).call(0, 2).call(0, 3).ret(3).ret(2).ret(1).end();
+        Assert.assertEquals(render(unbalanced.plain), render(unbalanced.folded));
+    }
+
+    // The record count matches what was written, so sequence numbers
+    // stay right
+    @Test
+    public void testCountsTheRecordsWritten() throws IOException {
+        Recording recording = new Recording().call(0, 1);
+        for (int i = 0; i < 50; i++) {
+            recording.block(1, 3).call(3, 2).value(String.valueOf(i % 3)).ret(2).value("r");
+        }
+        recording.ret(1).end();
+        Assert.assertEquals(countRecords(recording.folded), recording.folded.records());
+        assertSameTrace(recording);
+    }
+
+    // A long loop is written in parts and still expands to all of it
+    @Test
+    public void testLongLoopsAreWrittenInParts() throws IOException {
+        Recording recording = new Recording().call(0, 1);
+        for (int i = 0; i < Names.MAX_REPEAT + 10; i++) {
+            recording.block(1, 3);
+        }
+        recording.ret(1).end();
+        List<String> lines = render(recording.folded);
+        Assert.assertTrue(lines.contains("~ 1 " + Names.MAX_REPEAT + " \n"));
+        assertSameTrace(recording);
+    }
+}
@@ -0,0 +1,132 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class ChunkedDeflaterOutputStreamTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createDir();
+        file = new File(dir, "MethodCalls.txt");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.delete(dir);
+    }
+
+    // Text that doesn't fit in one chunk and isn't all the same
+    private static byte[] text(int lines, int from) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < from + lines; i++) {
+            sb.append(i % 10).append(' ').append(i).append(" \"value ").append(i * 31).append("\" \n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Uncompressed and compressed offset of every chunk
+    private long[][] index() throws IOException {
+        List<String> lines = TestFiles.readLines(Names.chunkIndexFile(file));
+        long[][] offsets = new long[lines.size()][];
+        for (int i = 0; i < lines.size(); i++) {
+            String[] parts = lines.get(i).split(" ");
+            offsets[i] = new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        }
+        return offsets;
+    }
+
+    // Decompresses a single chunk, starting at its offset in the .z
+    // file without reading anything before it
+    private static byte[] inflate(byte[] data, int offset, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data, offset, length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buffer);
+            if (n == 0 && inflater.needsInput()) {
+                break;
+            }
+            out.write(buffer, 0, n);
+        }
+        Assert.assertTrue(inflater.finished());
+        inflater.end();
+        return out.toByteArray();
+    }
+
+    // Checks that every chunk decompresses on its own to its part of
+    // the text
+    private void checkChunks(byte[] text) throws IOException, DataFormatException {
+        byte[] data = Files.readAllBytes(Names.compressedFile(file).toPath());
+        long[][] index = index();
+        for (int i = 0; i < index.length; i++) {
+            int start = (int) index[i][1];
+            int end = i + 1 < index.length ? (int) index[i + 1][1] : data.length;
+            int textStart = (int) index[i][0];
+            int textEnd = i + 1 < index.length ? (int) index[i + 1][0] : text.length;
+            Assert.assertTrue(textEnd - textStart <= Names.COMPRESSION_CHUNK_SIZE);
+            Assert.assertTrue("Chunk " + i + " differs", Arrays.equals(
+                    Arrays.copyOfRange(text, textStart, textEnd), inflate(data, start, end - start)));
+        }
+    }
+
+    @Test
+    public void testChunksDecompressOnTheirOwn() throws Exception {
+        byte[] text = text(100_000, 0);
+        Assert.assertTrue(text.length > 2 * Names.COMPRESSION_CHUNK_SIZE);
+        try (ChunkedDeflaterOutputStream out = new ChunkedDeflaterOutputStream(file, false, 0)) {
+            // In pieces that don't line up with the chunks
+            for (int offset = 0; offset < text.length; offset += 1000) {
+                out.write(text, offset, Math.min(1000, text.length - offset));
+            }
+            Assert.assertEquals(text.length, out.uncompressedOffset());
+        }
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals(3, index().length);
+        Assert.assertTrue(Names.compressedFile(file).length() < text.length);
+        checkChunks(text);
+    }
+
+    // Appending continues the offsets where the last write stopped
+    @Test
+    public void testAppendContinuesTheIndex() throws Exception {
+        byte[] first = text(10, 0);
+        byte[] second = text(10, 10);
+        try (ChunkedDeflaterOutputStream out = new ChunkedDeflaterOutputStream(file, false, 0)) {
+            out.write(first);
+        }
+        try (ChunkedDeflaterOutputStream out = new ChunkedDeflaterOutputStream(file, true, first.length)) {
+            for (byte b : second) {
+                out.write(b);
+            }
+        }
+        byte[] text = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, text, first.length, second.length);
+
+        long[][] index = index();
+        Assert.assertEquals(2, index.length);
+        Assert.assertEquals(first.length, index[1][0]);
+        checkChunks(text);
+    }
+}
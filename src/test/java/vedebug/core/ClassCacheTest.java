@@ -0,0 +1,148 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class ClassCacheTest {
+
+    private static final String CLASS_NAME = "com/example/Cached";
+    private static final byte[] ORIGINAL = {1, 2, 3};
+    private static final byte[] INSTRUMENTED = {4, 5, 6, 7};
+    private static final long KEY = MethodKeys.keyOf(CLASS_NAME, "run", "()V");
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createDir();
+        SaveUtil.clear();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SaveUtil.clear();
+        TestFiles.delete(dir);
+    }
+
+    // Does what instrumenting a class with two methods does, and
+    // returns the id of the first one
+    private static int instrument() {
+        int first = VideoMethodVisitor.nextID();
+        Assert.assertTrue(VideoMethodVisitor.reserveIDs(first, 2));
+        for (int id = first; id < first + 2; id++) {
+            String name = id == first ? "run" : "stop";
+            SaveUtil.insertMethodID(id, "com/example/Cached.java " + CLASS_NAME + " " + name + " - V");
+            SaveUtil.insertLineNum(id, 10 * id);
+            SaveUtil.insertLastLineNum(id, 10 * id + 5);
+            MethodSwitches.add(id, CLASS_NAME, name);
+            MethodKeys.add(id, MethodKeys.keyOf(CLASS_NAME, name, "()V"));
+        }
+        SaveUtil.commitMethodIDs();
+        return first;
+    }
+
+    private static int entries(File dir) {
+        String[] names = dir.list();
+        return names == null ? 0 : names.length;
+    }
+
+    // What a class saves when it's instrumented is saved again when
+    // it's loaded from the cache in the next run
+    @Test
+    public void testHitReplaysTheJournal() {
+        ClassCache cache = new ClassCache(dir);
+        Assert.assertNull(cache.load(CLASS_NAME, ORIGINAL));
+        int first = instrument();
+        cache.store(CLASS_NAME, ORIGINAL, INSTRUMENTED, first, first + 2);
+        Assert.assertEquals(1, entries(dir));
+
+        // The next run
+        SaveUtil.clear();
+        Assert.assertEquals(first, VideoMethodVisitor.nextID());
+        Assert.assertArrayEquals(INSTRUMENTED, new ClassCache(dir).load(CLASS_NAME, ORIGINAL));
+        SaveUtil.commitMethodIDs();
+        Assert.assertEquals(first + 2, VideoMethodVisitor.nextID());
+        Assert.assertEquals("com/example/Cached.java " + CLASS_NAME + " run - V", SaveUtil.getIds().get(first));
+        Assert.assertEquals(Integer.valueOf(10 * first + 5), SaveUtil.getLastLineNums().get(first));
+        Assert.assertEquals(KEY, MethodKeys.get(first));
+        Assert.assertEquals(2, SaveUtil.getIds().size());
+    }
+
+    @Test
+    public void testOtherClassesMiss() {
+        ClassCache cache = new ClassCache(dir);
+        cache.load(CLASS_NAME, ORIGINAL);
+        int first = instrument();
+        cache.store(CLASS_NAME, ORIGINAL, INSTRUMENTED, first, first + 2);
+        SaveUtil.clear();
+
+        Assert.assertNull(cache.load(CLASS_NAME, new byte[]{1, 2, 4}));
+        cache.store(CLASS_NAME, new byte[]{1, 2, 4}, null, first, first);
+        Assert.assertNull(cache.load("com/example/Other", ORIGINAL));
+        cache.store("com/example/Other", ORIGINAL, null, first, first);
+        Assert.assertEquals(1, entries(dir));
+        Assert.assertTrue(SaveUtil.getIds().isEmpty());
+        Assert.assertEquals(first, VideoMethodVisitor.nextID());
+    }
+
+    // A class whose ids were given to other classes in this run is
+    // instrumented again
+    @Test
+    public void testTakenIdsMiss() {
+        ClassCache cache = new ClassCache(dir);
+        cache.load(CLASS_NAME, ORIGINAL);
+        int first = instrument();
+        cache.store(CLASS_NAME, ORIGINAL, INSTRUMENTED, first, first + 2);
+        SaveUtil.clear();
+
+        Assert.assertTrue(VideoMethodVisitor.reserveIDs(first, 1));
+        Assert.assertNull(cache.load(CLASS_NAME, ORIGINAL));
+        cache.store(CLASS_NAME, ORIGINAL, null, first + 1, first + 1);
+        Assert.assertEquals(first + 1, VideoMethodVisitor.nextID());
+        Assert.assertEquals(0, MethodKeys.get(first));
+        Assert.assertTrue(SaveUtil.getIds().isEmpty());
+    }
+
+    // Another class was instrumented at the same time and took one of
+    // the ids in between, so the journal isn't the class's alone
+    @Test
+    public void testInterleavedClassesAreNotStored() {
+        ClassCache cache = new ClassCache(dir);
+        cache.load(CLASS_NAME, ORIGINAL);
+        int first = instrument();
+        Assert.assertTrue(VideoMethodVisitor.reserveIDs(first + 2, 1));
+        cache.store(CLASS_NAME, ORIGINAL, INSTRUMENTED, first, first + 3);
+        Assert.assertEquals(0, entries(dir));
+    }
+
+    // An entry that can't be read is a miss and is replaced
+    @Test
+    public void testBrokenEntriesAreReplaced() throws IOException {
+        ClassCache cache = new ClassCache(dir);
+        cache.load(CLASS_NAME, ORIGINAL);
+        int first = instrument();
+        cache.store(CLASS_NAME, ORIGINAL, INSTRUMENTED, first, first + 2);
+        File[] files = dir.listFiles();
+        Assert.assertNotNull(files);
+        Files.write(files[0].toPath(), new byte[]{'V', 'D', 'B', 'C', 2, 1});
+        SaveUtil.clear();
+
+        Assert.assertNull(cache.load(CLASS_NAME, ORIGINAL));
+        first = instrument();
+        cache.store(CLASS_NAME, ORIGINAL, INSTRUMENTED, first, first + 2);
+        SaveUtil.clear();
+        Assert.assertArrayEquals(INSTRUMENTED, cache.load(CLASS_NAME, ORIGINAL));
+        Assert.assertEquals(1, entries(dir));
+    }
+}
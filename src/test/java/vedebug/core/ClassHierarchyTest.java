@@ -0,0 +1,143 @@
+package vedebug.core;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import vedebug.asm.ClassReader;
+import vedebug.asm.ClassWriter;
+import vedebug.asm.Opcodes;
+
+import java.io.InputStream;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class ClassHierarchyTest {
+
+    private static final String PREFIX = "vedebug/core/ClassHierarchyTest$";
+    private static final String SHAPE = PREFIX + "Shape";
+    private static final String BASE = PREFIX + "Base";
+    private static final String SQUARE = PREFIX + "Square";
+    private static final String CIRCLE = PREFIX + "Circle";
+    private static final String OTHER = PREFIX + "Other";
+
+    // Public so the classes of other loaders can extend them
+    public interface Shape {
+    }
+
+    public static class Base implements Shape {
+    }
+
+    public static class Square extends Base {
+    }
+
+    public static class Circle extends Base {
+    }
+
+    public static class Other implements Shape {
+    }
+
+    // Defines classes that only exist once they are loaded, so their
+    // class files can't be found
+    private static final class GeneratingClassLoader extends ClassLoader {
+        GeneratingClassLoader() {
+            super(ClassHierarchyTest.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] classFile) {
+            return defineClass(null, classFile, 0, classFile.length);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            return name.startsWith("com/example/") ? null : super.getResourceAsStream(name);
+        }
+    }
+
+    private ClassLoader loader;
+    private ClassHierarchy hierarchy;
+
+    @Before
+    public void setUp() {
+        loader = ClassHierarchyTest.class.getClassLoader();
+        hierarchy = new ClassHierarchy();
+    }
+
+    // A class extending superName that isn't anywhere else
+    private static byte[] generate(String name, String superName) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, null);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    @Test
+    public void testClasses() {
+        Assert.assertEquals(BASE, hierarchy.getCommonSuperClass(loader, SQUARE, CIRCLE));
+        Assert.assertEquals(BASE, hierarchy.getCommonSuperClass(loader, SQUARE, BASE));
+        Assert.assertEquals(BASE, hierarchy.getCommonSuperClass(loader, BASE, CIRCLE));
+        Assert.assertEquals(SQUARE, hierarchy.getCommonSuperClass(loader, SQUARE, SQUARE));
+        // Sharing an interface doesn't make it the common super class
+        Assert.assertEquals("java/lang/Object", hierarchy.getCommonSuperClass(loader, SQUARE, OTHER));
+    }
+
+    // Same as ClassWriter: an interface is only returned if the other
+    // type implements it
+    @Test
+    public void testInterfaces() {
+        Assert.assertEquals(SHAPE, hierarchy.getCommonSuperClass(loader, SHAPE, SQUARE));
+        Assert.assertEquals(SHAPE, hierarchy.getCommonSuperClass(loader, OTHER, SHAPE));
+        Assert.assertEquals("java/lang/Object", hierarchy.getCommonSuperClass(loader, SHAPE, "java/lang/Runnable"));
+        Assert.assertEquals("java/lang/Object", hierarchy.getCommonSuperClass(loader, "java/lang/Runnable", SQUARE));
+    }
+
+    // The JDK's class files may be newer than ASM can read
+    @Test
+    public void testJdkClasses() {
+        Assert.assertEquals("java/lang/Number",
+                hierarchy.getCommonSuperClass(loader, "java/lang/Integer", "java/lang/Long"));
+        Assert.assertEquals("java/util/AbstractList",
+                hierarchy.getCommonSuperClass(null, "java/util/ArrayList", "java/util/LinkedList"));
+        Assert.assertEquals("java/lang/Exception",
+                hierarchy.getCommonSuperClass(loader, "java/io/IOException", "java/lang/RuntimeException"));
+    }
+
+    // The class being transformed isn't loaded yet, and its loader
+    // may not find its class file
+    @Test
+    public void testAddedClasses() {
+        hierarchy.add(loader, new ClassReader(generate("com/example/Triangle", BASE)));
+        Assert.assertEquals(BASE, hierarchy.getCommonSuperClass(loader, "com/example/Triangle", CIRCLE));
+        Assert.assertEquals(BASE, hierarchy.getCommonSuperClass(loader, SQUARE, "com/example/Triangle"));
+    }
+
+    @Test
+    public void testLoadedOnlyClasses() {
+        GeneratingClassLoader generating = new GeneratingClassLoader();
+        generating.define(generate("com/example/Hexagon", SQUARE));
+        Assert.assertEquals(SQUARE, hierarchy.getCommonSuperClass(generating, "com/example/Hexagon", SQUARE));
+        Assert.assertEquals(BASE, hierarchy.getCommonSuperClass(generating, CIRCLE, "com/example/Hexagon"));
+    }
+
+    // What a loader sees is kept apart from what other loaders see
+    @Test
+    public void testLoadersAreKeptApart() {
+        hierarchy.add(loader, new ClassReader(generate("com/example/Pentagon", SQUARE)));
+        GeneratingClassLoader generating = new GeneratingClassLoader();
+        generating.define(generate("com/example/Pentagon", CIRCLE));
+        Assert.assertEquals(SQUARE, hierarchy.getCommonSuperClass(loader, "com/example/Pentagon", SQUARE));
+        Assert.assertEquals(CIRCLE, hierarchy.getCommonSuperClass(generating, "com/example/Pentagon", CIRCLE));
+    }
+
+    @Test
+    public void testUnknownClasses() {
+        try {
+            hierarchy.getCommonSuperClass(loader, "com/example/Missing", SQUARE);
+            Assert.fail();
+        } catch (TypeNotPresentException e) {
+            Assert.assertEquals("com/example/Missing", e.typeName());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class EventRingTest {
+
+    @After
+    public void tearDown() {
+        Names.ring = 0;
+    }
+
+    private static List<String> render(EventBuffer records) throws IOException {
+        return TraceRenderer.renderLines(new EventReader(
+                new ByteArrayInputStream(records.data(), 0, records.length())), new ArrayList<>());
+    }
+
+    // Methods that were already running when the window starts are
+    // called first so the dump is a trace on its own
+    @Test
+    public void testDumpKeepsTheLastEvents() throws IOException {
+        EventRing ring = new EventRing(4);
+        ring.putCall(0, 1);
+        ring.putBlock(1, 3);
+        ring.putCall(5, 2);
+        ring.putBlock(2, 7);
+        ring.putReturn(2);
+        ring.putBlock(1, 4);
+        Assert.assertEquals(Arrays.asList("-1 1 \n", "5 2 \n", "@2:7 \n", "- 2 \n", "@1:4 "),
+                render(ring.dump(new int[]{1})));
+    }
+
+    // A window that starts with the values of a call that was
+    // overwritten skips them
+    @Test
+    public void testWindowStartsAtARecord() throws IOException {
+        EventRing ring = new EventRing(3);
+        ring.putCall(0, 1);
+        ring.putValue(TraceFormat.ARG, "a");
+        ring.putPrimitive(TraceFormat.PRIMITIVE_ARG, GraphFormat.INT, 7);
+        ring.putBlock(1, 2);
+        Assert.assertEquals(Arrays.asList("-1 1 \n", "@1:2 "), render(ring.dump(new int[]{1})));
+    }
+
+    @Test
+    public void testDumpKeepsValuesAndExceptions() throws IOException {
+        EventRing ring = new EventRing(16);
+        ring.putCall(3, 2);
+        ring.putValue(TraceFormat.ARG, "\"a\"");
+        ring.putPrimitive(TraceFormat.PRIMITIVE_ARG, GraphFormat.DOUBLE, Double.doubleToRawLongBits(0.5));
+        ring.putException(TraceFormat.THROW, 2, "java.lang.IllegalStateException");
+        ring.putUnwind(2);
+        ring.putException(TraceFormat.CATCH, 1, "java.lang.IllegalStateException");
+        ring.putDropped();
+        ring.putReturn(1);
+        ring.putPrimitive(TraceFormat.PRIMITIVE_RET, GraphFormat.BOOLEAN, 1);
+        Assert.assertEquals(Arrays.asList("-1 1 \n", "3 2 \"a\" 0.5 \n",
+                "! 2 java.lang.IllegalStateException \n", "- 2 Exception \n",
+                "* 1 java.lang.IllegalStateException \n", "- 1 true "),
+                render(ring.dump(new int[0])));
+    }
+
+    // A method that was left by an exception isn't on the stack any
+    // more, so it's not called again
+    @Test
+    public void testCallsOfMethodsLeftByExceptions() throws IOException {
+        EventRing ring = new EventRing(2);
+        ring.putCall(0, 1);
+        ring.putCall(0, 2);
+        ring.putCall(0, 3);
+        ring.putUnwind(3);
+        Assert.assertEquals(Arrays.asList("-1 1 \n", "-1 2 \n", "3 \n", "- 3 Exception "),
+                render(ring.dump(new int[]{1, 2})));
+    }
+
+    @Test
+    public void testEmptyRing() throws IOException {
+        EventRing ring = new EventRing(4);
+        Assert.assertEquals(0, ring.dump(new int[0]).length());
+        Assert.assertEquals(Arrays.asList("-1 1 "), render(ring.dump(new int[]{1})));
+    }
+
+    // Another thread's ring is dumped while its owner is paused, so
+    // the window is whole even though the owner keeps recording
+    // between dumps
+    @Test
+    public void testDumpWhilePaused() throws Exception {
+        Names.ring = 8;
+        AtomicReference<ThreadTrace> created = new AtomicReference<>();
+        // Counted down once the ring is full
+        CountDownLatch full = new CountDownLatch(3);
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread owner = new Thread(() -> {
+            ThreadTrace trace = new ThreadTrace(1, Thread.currentThread());
+            created.set(trace);
+            while (!stop.get()) {
+                if (trace.begin()) {
+                    trace.ring.putCall(0, 1);
+                    trace.ring.putValue(TraceFormat.ARG, "a");
+                    trace.ring.putReturn(1);
+                    trace.end();
+                }
+                full.countDown();
+            }
+        });
+        owner.start();
+        full.await();
+        ThreadTrace trace = created.get();
+        try {
+            for (int i = 0; i < 100; i++) {
+                Assert.assertTrue(trace.pause());
+                try {
+                    // The window starts in the middle of a call and
+                    // ends with a whole one
+                    List<String> lines = render(trace.ring.dump(trace.stack()));
+                    Assert.assertEquals(Arrays.asList("-1 1 \n", "- 1 \n", "1 a \n", "- 1 \n", "1 a \n", "- 1 "),
+                            lines);
+                } finally {
+                    trace.resume();
+                }
+            }
+        } finally {
+            stop.set(true);
+        }
+        owner.join();
+    }
+}
@@ -0,0 +1,252 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.swing.text.Segment;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class FieldAccessorsTest {
+
+    // One field of every kind, in the order they are read
+    @SuppressWarnings("unused")
+    private static class Kinds {
+        static int ignored = 1;
+
+        byte a = -3;
+        short b = -300;
+        int c = Integer.MIN_VALUE;
+        long d = -5000000000L;
+        char e = '\u00e9';
+        float f = Float.NaN;
+        double g = -0.0;
+        boolean h = true;
+        String i = "\u00e9t\u00e9";
+        Kinds j;
+    }
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.delete(dir);
+    }
+
+    // The fields the way traversals used to find them, before there
+    // were FieldAccessors
+    private static List<Field> reflectiveFields(Class<?> clz) {
+        return Stream.of(clz.getDeclaredFields())
+                .sorted(Comparator.comparing(Field::getName))
+                .filter(field -> !Modifier.isStatic(field.getModifiers()) && !field.isSynthetic())
+                .collect(Collectors.toList());
+    }
+
+    // The value lines the reflective loop printed
+    private static String reflectiveValues(Object object) throws IllegalAccessException {
+        StringBuilder str = new StringBuilder();
+        for (Field field : reflectiveFields(object.getClass())) {
+            field.setAccessible(true);
+            if (field.getType().isPrimitive() || field.getType().getName().endsWith("String")) {
+                str.append("\n    ").append(field.get(object));
+            }
+        }
+        return str.toString();
+    }
+
+    @Test
+    public void testKinds() {
+        FieldAccessors fields = new FieldAccessors(Kinds.class, 10);
+        Assert.assertEquals(10, fields.size());
+        int[] kinds = {GraphFormat.INT, GraphFormat.INT, GraphFormat.INT, GraphFormat.LONG,
+                GraphFormat.CHAR, GraphFormat.FLOAT, GraphFormat.DOUBLE, GraphFormat.BOOLEAN,
+                GraphFormat.STRING, GraphFormat.OBJECT};
+        for (int i = 0; i < kinds.length; i++) {
+            Assert.assertEquals(String.valueOf((char) ('a' + i)), fields.name(i));
+            Assert.assertEquals(fields.name(i), kinds[i], fields.kind(i));
+            Assert.assertEquals(fields.name(i), kinds[i] != GraphFormat.OBJECT, fields.isValue(i));
+        }
+    }
+
+    @Test
+    public void testAppendsLikeReflection() throws Throwable {
+        Kinds object = new Kinds();
+        object.j = new Kinds();
+        FieldAccessors fields = new FieldAccessors(Kinds.class, 10);
+
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.isValue(i)) {
+                str.append("\n    ");
+                fields.appendValue(i, object, str);
+            }
+        }
+        Assert.assertEquals(reflectiveValues(object), str.toString());
+        Assert.assertEquals("\n    -3\n    -300\n    -2147483648\n    -5000000000\n    \u00e9"
+                + "\n    NaN\n    -0.0\n    true\n    \u00e9t\u00e9", str.toString());
+
+        Assert.assertSame(object.j, fields.get(9, object));
+        Assert.assertNull(fields.get(9, object.j));
+        Assert.assertEquals("\u00e9t\u00e9", fields.get(8, object));
+    }
+
+    @Test
+    public void testLimit() {
+        FieldAccessors fields = new FieldAccessors(Kinds.class, 3);
+        Assert.assertEquals(3, fields.size());
+        Assert.assertEquals("c", fields.name(2));
+        Assert.assertTrue(fields.isCutShort());
+
+        // Like the reflective loop, which printed "..." after the last
+        // field it was allowed to even when there were no more
+        Assert.assertTrue(new FieldAccessors(Kinds.class, 10).isCutShort());
+        Assert.assertFalse(new FieldAccessors(Kinds.class, 11).isCutShort());
+    }
+
+    // Setting a field accessible fails for the private fields of a
+    // module that isn't open, in which case only the fields before it
+    // are read.  Before Java 9 every field can be read.
+    @Test
+    public void testStopsAtUnreadableField() {
+        List<Field> all = reflectiveFields(Segment.class);
+        int readable = 0;
+        for (Field field : all) {
+            try {
+                field.setAccessible(true);
+            } catch (RuntimeException e) {
+                break;
+            }
+            readable++;
+        }
+
+        FieldAccessors fields = new FieldAccessors(Segment.class, all.size());
+        Assert.assertEquals(readable, fields.size());
+        Assert.assertEquals(readable >= all.size(), fields.isCutShort());
+        for (int i = 0; i < readable; i++) {
+            Assert.assertEquals(all.get(i).getName(), fields.name(i));
+        }
+    }
+
+    // Saves the objects as one traversal with the class at type 0, the
+    // way ObjectGraphStore and ThreadTrace.addGraph() do
+    private ObjectGraphReader save(FieldAccessors fields, EventBuffer objects, int count) throws IOException {
+        EventBuffer types = header();
+        types.putTag(GraphFormat.TYPE);
+        types.putVarInt(0);
+        types.putString(Kinds.class.getName());
+        types.putTag(GraphFormat.LAYOUT);
+        types.putVarInt(0);
+        types.putByte(fields.isCutShort() ? 1 : 0);
+        types.putVarInt(fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            types.putString(fields.name(i));
+            types.putByte(fields.kind(i));
+        }
+
+        EventBuffer graphs = header();
+        long offset = graphs.length();
+        graphs.putTag(GraphFormat.TRAVERSAL);
+        graphs.putVarInt(1);
+        graphs.putVarInt(EventBuffer.varIntSize(0) + EventBuffer.varIntSize(0)
+                + EventBuffer.varIntSize(count) + objects.length());
+        graphs.putVarInt(0);
+        graphs.putVarInt(0);
+        graphs.putVarInt(count);
+        graphs.putBytes(objects.data(), 0, objects.length());
+
+        TestFiles.write(new File(dir, Names.GRAPH_TYPE_FILE.getName()), types);
+        TestFiles.write(new File(dir, Names.GRAPH_FILE.getName()), graphs);
+        try (DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(dir, Names.GRAPH_INDEX_FILE.getName())))) {
+            out.writeLong(1);
+            out.writeLong(offset);
+        }
+        return new ObjectGraphReader(dir);
+    }
+
+    private static EventBuffer header() {
+        EventBuffer buffer = new EventBuffer(16);
+        buffer.putBytes(GraphFormat.MAGIC, 0, GraphFormat.MAGIC.length);
+        buffer.putVarInt(GraphFormat.VERSION);
+        return buffer;
+    }
+
+    @Test
+    public void testPutsWhatIsRead() throws Throwable {
+        Kinds first = new Kinds();
+        Kinds second = new Kinds();
+        first.j = second;
+        second.a = 0;
+        second.d = Long.MAX_VALUE;
+        second.e = 'x';
+        second.f = 1.5f;
+        second.h = false;
+        second.i = null;
+        FieldAccessors fields = new FieldAccessors(Kinds.class, 11);
+
+        // Same as SaveUtil.putFields() with first and second as the
+        // objects 1 and 2
+        EventBuffer objects = new EventBuffer(16);
+        List<Kinds> traversed = new ArrayList<>();
+        traversed.add(first);
+        traversed.add(second);
+        for (int id = 1; id <= traversed.size(); id++) {
+            Kinds object = traversed.get(id - 1);
+            objects.putVarInt(id);
+            objects.putVarInt(0);
+            for (int i = 0; i < fields.size(); i++) {
+                if (fields.isValue(i)) {
+                    fields.putValue(i, object, objects);
+                } else if (fields.get(i, object) != null) {
+                    objects.putVarInt(id + 1);
+                    objects.putVarInt(0);
+                } else {
+                    objects.putVarInt(0);
+                }
+            }
+        }
+
+        String name = Kinds.class.getName();
+        Assert.assertEquals("T#1"
+                        + "\n  O#1 - " + name + reflectiveValues(first) + "\n    O#2 - " + name
+                        + "\n  O#2 - " + name + reflectiveValues(second) + "\n    O#0 - null",
+                save(fields, objects, 2).read(1));
+    }
+
+    // What's saved for fields that throw while they're read
+    @Test
+    public void testPutsDefaults() throws IOException {
+        FieldAccessors fields = new FieldAccessors(Kinds.class, 10);
+        EventBuffer objects = new EventBuffer(16);
+        objects.putVarInt(1);
+        objects.putVarInt(0);
+        for (int i = 0; i < fields.size(); i++) {
+            FieldAccessors.putDefault(fields.kind(i), objects);
+        }
+        Assert.assertEquals("T#1\n  O#1 - " + Kinds.class.getName()
+                        + "\n    0\n    0\n    0\n    0\n    \u0000\n    0.0\n    0.0\n    false"
+                        + "\n    null\n    O#0 - null...",
+                save(fields, objects, 1).read(1));
+    }
+}
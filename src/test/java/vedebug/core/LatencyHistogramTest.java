@@ -0,0 +1,81 @@
+package vedebug.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.count());
+        Assert.assertEquals(0, histogram.maxNanos());
+        Assert.assertEquals(0, histogram.percentileNanos(0));
+        Assert.assertEquals(0, histogram.percentileNanos(0.5));
+        Assert.assertEquals(0, histogram.percentileNanos(1));
+    }
+
+    // Every percentile is the one time, not the bound of its bucket
+    @Test
+    public void testSingleSample() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        Assert.assertEquals(1, histogram.count());
+        Assert.assertEquals(100, histogram.totalNanos());
+        Assert.assertEquals(100, histogram.percentileNanos(0));
+        Assert.assertEquals(100, histogram.percentileNanos(0.5));
+        Assert.assertEquals(100, histogram.percentileNanos(0.99));
+    }
+
+    // Percentiles are the bound of the bucket they fall in, or the
+    // largest time if that's less
+    @Test
+    public void testBucketBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(5000);
+        // A rank of 0 is the first bucket anything is in
+        Assert.assertEquals(128, histogram.percentileNanos(0));
+        Assert.assertEquals(128, histogram.percentileNanos(0.5));
+        Assert.assertEquals(5000, histogram.percentileNanos(0.99));
+        Assert.assertEquals(5000, histogram.percentileNanos(1));
+
+        // A power of two is in the bucket above it
+        histogram.record(8192);
+        Assert.assertEquals(8192, histogram.percentileNanos(1));
+        Assert.assertEquals(8192, histogram.maxNanos());
+    }
+
+    @Test
+    public void testZeroAndLongestTimes() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        Assert.assertEquals(0, histogram.percentileNanos(1));
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(0, histogram.percentileNanos(0.5));
+        Assert.assertEquals(Long.MAX_VALUE, histogram.percentileNanos(1));
+    }
+
+    @Test
+    public void testAdd() {
+        LatencyHistogram first = new LatencyHistogram();
+        first.record(100);
+        first.record(200);
+        LatencyHistogram second = new LatencyHistogram();
+        second.record(5000);
+        first.add(second);
+        first.add(new LatencyHistogram());
+        Assert.assertEquals(3, first.count());
+        Assert.assertEquals(5300, first.totalNanos());
+        Assert.assertEquals(5000, first.maxNanos());
+        Assert.assertEquals(256, first.percentileNanos(0.5));
+        Assert.assertEquals(5000, first.percentileNanos(0.99));
+        // Adding doesn't change the other one
+        Assert.assertEquals(1, second.count());
+    }
+}
@@ -0,0 +1,74 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class MethodKeysTest {
+
+    @Before
+    public void setUp() {
+        MethodKeys.clear();
+    }
+
+    @After
+    public void tearDown() {
+        MethodKeys.clear();
+    }
+
+    // The key only depends on the method, so it's the same in every
+    // run and on every JVM: FNV-1a of "java/lang/Object.<init>()V"
+    @Test
+    public void testKeysAreFixed() {
+        Assert.assertEquals(0xacd37d5185160ebdL, MethodKeys.keyOf("java/lang/Object", "<init>", "()V"));
+        // Non-ASCII names are hashed as UTF-8
+        Assert.assertEquals(0x873a63a2069faa8eL, MethodKeys.keyOf("com/example/A", "caf\u00e9", "()V"));
+    }
+
+    @Test
+    public void testKeysTellMethodsApart() {
+        long key = MethodKeys.keyOf("com/example/A", "run", "(I)V");
+        Assert.assertEquals(key, MethodKeys.keyOf("com/example/A", "run", "(I)V"));
+        // Overloads, other classes and other names
+        Assert.assertNotEquals(key, MethodKeys.keyOf("com/example/A", "run", "(J)V"));
+        Assert.assertNotEquals(key, MethodKeys.keyOf("com/example/B", "run", "(I)V"));
+        Assert.assertNotEquals(key, MethodKeys.keyOf("com/example/A", "walk", "(I)V"));
+        // The names are separated, so moving characters between them
+        // changes the key
+        Assert.assertNotEquals(MethodKeys.keyOf("com/example/Ab", "c", "()V"),
+                MethodKeys.keyOf("com/example/A", "bc", "()V"));
+    }
+
+    // Ids depend on the order classes are loaded in but keys don't
+    @Test
+    public void testKeysById() {
+        long run = MethodKeys.keyOf("com/example/A", "run", "()V");
+        long stop = MethodKeys.keyOf("com/example/A", "stop", "()V");
+        MethodKeys.add(1, run);
+        MethodKeys.add(2, stop);
+        Assert.assertEquals(run, MethodKeys.get(1));
+        Assert.assertEquals(stop, MethodKeys.get(2));
+        Assert.assertEquals(0, MethodKeys.get(3));
+
+        MethodKeys.clear();
+        MethodKeys.add(1, stop);
+        MethodKeys.add(2, run);
+        Assert.assertEquals(run, MethodKeys.get(2));
+        Assert.assertEquals(0, MethodKeys.get(3));
+    }
+
+    // 16 hex digits, so the column has the same width in every line
+    @Test
+    public void testFormat() {
+        Assert.assertEquals("acd37d5185160ebd", MethodKeys.format(0xacd37d5185160ebdL));
+        Assert.assertEquals("00000000000000ff", MethodKeys.format(0xffL));
+        Assert.assertEquals("0000000000000000", MethodKeys.format(0));
+        Assert.assertEquals("ffffffffffffffff", MethodKeys.format(-1));
+    }
+}
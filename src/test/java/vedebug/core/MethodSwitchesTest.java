@@ -0,0 +1,146 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class MethodSwitchesTest {
+
+    // The control file is only read again when its time changes, which
+    // may not be finer than a second
+    private long modified = 1000000000000L;
+
+    @Before
+    public void setUp() throws IOException {
+        Assert.assertFalse("Won't overwrite " + Names.CONTROL_FILE, Names.CONTROL_FILE.exists());
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.loops = false;
+        VideoMethodVisitor.isSavingInvocationLineNums = false;
+        MethodSwitches.update();
+    }
+
+    @After
+    public void tearDown() {
+        File file = Names.CONTROL_FILE;
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        MethodSwitches.update();
+        SaveUtil.clear();
+    }
+
+    private void control(String... lines) throws IOException {
+        File file = Names.CONTROL_FILE;
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        modified += 1000;
+        Assert.assertTrue(file.setLastModified(modified));
+        MethodSwitches.update();
+    }
+
+    private static void addMethods() {
+        MethodSwitches.add(1, "com/example/server/RequestHandler", "handle");
+        MethodSwitches.add(2, "com/example/server/RequestHandler", "close");
+        MethodSwitches.add(3, "com/example/server/RequestHandler$Parser", "parse");
+        MethodSwitches.add(4, "com/example/server/Server", "run");
+        MethodSwitches.add(5, "com/example/serverless/Lambda", "run");
+    }
+
+    private static String offIds() {
+        StringBuilder off = new StringBuilder();
+        for (int id = 1; id <= 5; id++) {
+            if (MethodSwitches.isOff(id)) {
+                off.append(id);
+            }
+        }
+        return off.toString();
+    }
+
+    @Test
+    public void testEverythingIsOnWithoutTheFile() {
+        addMethods();
+        Assert.assertEquals("", offIds());
+        Assert.assertFalse(MethodSwitches.isOff(1 << 20));
+    }
+
+    // Lines further down win
+    @Test
+    public void testOnlyOneClass() throws IOException {
+        addMethods();
+        control("off *", "on com.example.server.RequestHandler");
+        Assert.assertEquals("45", offIds());
+    }
+
+    @Test
+    public void testPackagesClassesAndMethods() throws IOException {
+        addMethods();
+        control("off com.example.server");
+        Assert.assertEquals("1234", offIds());
+        control("off com.example.server.RequestHandler.close");
+        Assert.assertEquals("2", offIds());
+        control("off com.example.server.RequestHandler");
+        Assert.assertEquals("123", offIds());
+        control("off com.example.serv");
+        Assert.assertEquals("", offIds());
+    }
+
+    // Comments are skipped, and lines that can't be read are skipped
+    // with a warning
+    @Test
+    public void testIgnoredLines() throws IOException {
+        addMethods();
+        control("# off *", "", "off", "disable com.example", "off com.example.server.Server extra",
+                "  off   com.example.server.Server  ");
+        Assert.assertEquals("4", offIds());
+    }
+
+    // Methods instrumented after the file was read follow it too
+    @Test
+    public void testMethodsAddedLater() throws IOException {
+        control("off com.example.server.Server");
+        addMethods();
+        Assert.assertEquals("4", offIds());
+        // Past the end of the bits there are so far
+        MethodSwitches.add(5000, "com/example/server/Server", "stop");
+        Assert.assertTrue(MethodSwitches.isOff(5000));
+        Assert.assertEquals("4", offIds());
+    }
+
+    @Test
+    public void testDeletingTheFileSwitchesBackOn() throws IOException {
+        addMethods();
+        control("off *");
+        Assert.assertEquals("12345", offIds());
+        //noinspection ResultOfMethodCallIgnored
+        Names.CONTROL_FILE.delete();
+        MethodSwitches.update();
+        Assert.assertEquals("", offIds());
+    }
+
+    // A method that is off is left out of the trace
+    @Test
+    public void testProbesOfMethodsThatAreOff() throws IOException {
+        addMethods();
+        control("off com.example.server.RequestHandler.close");
+        SaveUtil.enter(1);
+        SaveUtil.enter(2);
+        SaveUtil.save(7, 2);
+        SaveUtil.block(2, 3);
+        SaveUtil.exit(2);
+        SaveUtil.exit(1);
+        Assert.assertEquals(Arrays.asList("1 \n", "- 1 "), SaveUtil.getCalls());
+    }
+}
@@ -0,0 +1,208 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class ObjectGraphReaderTest {
+
+    private static final String NODE = "com.example.Node";
+    private static final String VALUES = "com.example.Values";
+
+    private File dir;
+    private EventBuffer types;
+    private EventBuffer graphs;
+    // Traversal number and offset of every record in graphs
+    private List<long[]> index;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createDir();
+        types = header();
+        graphs = header();
+        index = new ArrayList<>();
+
+        // Node has a String, an int and another Node, and more fields
+        // than are saved
+        putType(0, NODE);
+        types.putTag(GraphFormat.LAYOUT);
+        types.putVarInt(0);
+        types.putByte(1);
+        types.putVarInt(3);
+        putField("name", GraphFormat.STRING);
+        putField("next", GraphFormat.OBJECT);
+        putField("value", GraphFormat.INT);
+
+        putType(1, VALUES);
+        types.putTag(GraphFormat.LAYOUT);
+        types.putVarInt(1);
+        types.putByte(0);
+        types.putVarInt(6);
+        putField("a", GraphFormat.LONG);
+        putField("b", GraphFormat.CHAR);
+        putField("c", GraphFormat.FLOAT);
+        putField("d", GraphFormat.DOUBLE);
+        putField("e", GraphFormat.BOOLEAN);
+        putField("f", GraphFormat.STRING);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.delete(dir);
+    }
+
+    private static EventBuffer header() {
+        EventBuffer buffer = new EventBuffer(16);
+        buffer.putBytes(GraphFormat.MAGIC, 0, GraphFormat.MAGIC.length);
+        buffer.putVarInt(GraphFormat.VERSION);
+        return buffer;
+    }
+
+    private void putType(int type, String name) {
+        types.putTag(GraphFormat.TYPE);
+        types.putVarInt(type);
+        types.putString(name);
+    }
+
+    private void putField(String name, int kind) {
+        types.putString(name);
+        types.putByte(kind);
+    }
+
+    // The objects of a traversal
+    private static EventBuffer node(EventBuffer objects, int id, String name, int nextId, int value) {
+        objects.putVarInt(id);
+        objects.putVarInt(0);
+        objects.putString(name);
+        objects.putVarInt(nextId);
+        if (nextId != 0) {
+            objects.putVarInt(0);
+        }
+        objects.putSignedVarInt(value);
+        return objects;
+    }
+
+    // Same as ThreadTrace.addGraph()
+    private void putTraversal(int number, int flags, int count, EventBuffer objects) {
+        index.add(new long[]{number, graphs.length()});
+        graphs.putTag(GraphFormat.TRAVERSAL);
+        graphs.putVarInt(number);
+        graphs.putVarInt(EventBuffer.varIntSize(0) + EventBuffer.varIntSize(flags)
+                + EventBuffer.varIntSize(count) + objects.length());
+        graphs.putVarInt(0);
+        graphs.putVarInt(flags);
+        graphs.putVarInt(count);
+        graphs.putBytes(objects.data(), 0, objects.length());
+    }
+
+    private ObjectGraphReader save() throws IOException {
+        TestFiles.write(new File(dir, Names.GRAPH_TYPE_FILE.getName()), types);
+        TestFiles.write(new File(dir, Names.GRAPH_FILE.getName()), graphs);
+        try (DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(dir, Names.GRAPH_INDEX_FILE.getName())))) {
+            for (long[] entry : index) {
+                out.writeLong(entry[0]);
+                out.writeLong(entry[1]);
+            }
+        }
+        return new ObjectGraphReader(dir);
+    }
+
+    private static final String FIRST = "T#3"
+            + "\n  O#1 - " + NODE + "\n    first\n    O#2 - " + NODE + "\n    7..."
+            + "\n  O#2 - " + NODE + "\n    second\n    O#0 - null\n    -1...";
+
+    @Test
+    public void testRendersLikeTheTextFile() throws IOException {
+        EventBuffer objects = new EventBuffer(16);
+        node(objects, 1, "first", 2, 7);
+        node(objects, 2, "second", 0, -1);
+        putTraversal(3, 0, 2, objects);
+        putTraversal(1, GraphFormat.NULL_ROOT, 0, new EventBuffer(16));
+        putTraversal(2, GraphFormat.CUT_SHORT, 1, node(new EventBuffer(16), 1, "cut", 0, 0));
+        ObjectGraphReader reader = save();
+
+        StringWriter out = new StringWriter();
+        reader.renderAll(out);
+        String lineSeparator = System.lineSeparator();
+        Assert.assertEquals(FIRST + lineSeparator
+                + "T#1O#1\nnull" + lineSeparator
+                + "T#2\n  O#1 - " + NODE + "\n    cut\n    O#0 - null\n    0......" + lineSeparator,
+                out.toString());
+    }
+
+    // Threads hand off their traversals in batches, so the index isn't
+    // in order
+    @Test
+    public void testReadsSingleTraversals() throws IOException {
+        for (int number : new int[]{5, 2, 9, 3}) {
+            putTraversal(number, 0, 1, node(new EventBuffer(16), number, "n" + number, 0, number));
+        }
+        ObjectGraphReader reader = save();
+        for (int number : new int[]{9, 2, 3, 5}) {
+            Assert.assertEquals("T#" + number + "\n  O#" + number + " - " + NODE
+                    + "\n    n" + number + "\n    O#0 - null\n    " + number + "...", reader.read(number));
+        }
+        Assert.assertNull(reader.read(4));
+        Assert.assertNull(reader.read(10));
+    }
+
+    @Test
+    public void testRendersEveryKind() throws IOException {
+        EventBuffer objects = new EventBuffer(16);
+        objects.putVarInt(4);
+        objects.putVarInt(1);
+        objects.putSignedVarLong(-5000000000L);
+        objects.putVarInt('x');
+        objects.putFixedInt(Float.floatToIntBits(1.5f));
+        objects.putFixedLong(Double.doubleToLongBits(-0.25));
+        objects.putByte(1);
+        objects.putString("\u00e9t\u00e9");
+        putTraversal(1, 0, 1, objects);
+        Assert.assertEquals("T#1\n  O#4 - " + VALUES
+                        + "\n    -5000000000\n    x\n    1.5\n    -0.25\n    true\n    \u00e9t\u00e9",
+                save().read(1));
+    }
+
+    @Test
+    public void testRejectsUnknownTypes() throws IOException {
+        EventBuffer objects = new EventBuffer(16);
+        objects.putVarInt(1);
+        objects.putVarInt(2);
+        putTraversal(1, 0, 1, objects);
+        ObjectGraphReader reader = save();
+        try {
+            reader.read(1);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("Unknown type 2", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRejectsOtherVersions() throws IOException {
+        types = new EventBuffer(16);
+        types.putBytes(GraphFormat.MAGIC, 0, GraphFormat.MAGIC.length);
+        types.putVarInt(GraphFormat.VERSION + 1);
+        try {
+            save();
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("Unsupported trace format version " + (GraphFormat.VERSION + 1), e.getMessage());
+        }
+    }
+}
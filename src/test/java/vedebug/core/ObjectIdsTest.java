@@ -0,0 +1,125 @@
+package vedebug.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class ObjectIdsTest {
+
+    // Fails if anything but identity is used to tell objects apart
+    private static final class Touchy {
+        @Override
+        public int hashCode() {
+            throw new AssertionError("hashCode() called");
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            throw new AssertionError("equals() called");
+        }
+    }
+
+    @Test
+    public void testSameObjectSameId() {
+        ObjectIds ids = new ObjectIds();
+        Object object = new Object();
+        int id = ids.idOf(object);
+        Assert.assertEquals(1, id);
+        Assert.assertEquals(2, ids.idOf(new Object()));
+        Assert.assertEquals(id, ids.idOf(object));
+    }
+
+    @Test
+    public void testComparesByIdentity() {
+        ObjectIds ids = new ObjectIds();
+        String first = new String("same");
+        String second = new String("same");
+        Assert.assertNotEquals(ids.idOf(first), ids.idOf(second));
+
+        Touchy touchy = new Touchy();
+        Assert.assertEquals(ids.idOf(touchy), ids.idOf(touchy));
+    }
+
+    // Enough objects that every segment grows a few times
+    @Test
+    public void testManyObjects() {
+        ObjectIds ids = new ObjectIds();
+        List<Object> objects = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            Object object = new Object();
+            objects.add(object);
+            Assert.assertEquals(i + 1, ids.idOf(object));
+        }
+        for (int i = 0; i < objects.size(); i++) {
+            Assert.assertEquals(i + 1, ids.idOf(objects.get(i)));
+        }
+    }
+
+    // Objects that were collected don't take the ids of the ones that
+    // are still alive
+    @Test
+    public void testCollectedObjects() throws InterruptedException {
+        ObjectIds ids = new ObjectIds();
+        List<Object> alive = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 5000; i++) {
+                ids.idOf(new Object());
+            }
+            Object object = new Object();
+            alive.add(object);
+            ids.idOf(object);
+            System.gc();
+            Thread.sleep(10);
+        }
+        Set<Integer> seen = new HashSet<>();
+        for (Object object : alive) {
+            int id = ids.idOf(object);
+            Assert.assertEquals(id, ids.idOf(object));
+            Assert.assertTrue(seen.add(id));
+        }
+        Assert.assertEquals(5 * 5001 + 1, ids.idOf(new Object()));
+    }
+
+    // Threads asking for the same objects at once agree on their ids
+    @Test
+    public void testThreadsAgree() throws InterruptedException {
+        ObjectIds ids = new ObjectIds();
+        Object[] objects = new Object[5000];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = new Object();
+        }
+        int[][] seen = new int[4][objects.length];
+        Thread[] threads = new Thread[seen.length];
+        for (int t = 0; t < threads.length; t++) {
+            int[] mine = seen[t];
+            boolean backwards = t % 2 == 1;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < objects.length; i++) {
+                    int index = backwards ? objects.length - 1 - i : i;
+                    mine[index] = ids.idOf(objects[index]);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Set<Integer> unique = new HashSet<>();
+        for (int i = 0; i < objects.length; i++) {
+            for (int[] mine : seen) {
+                Assert.assertEquals(seen[0][i], mine[i]);
+            }
+            Assert.assertTrue(unique.add(seen[0][i]));
+        }
+        Assert.assertEquals(objects.length + 1, ids.idOf(new Object()));
+    }
+}
@@ -0,0 +1,115 @@
+package vedebug.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class RecorderStatsTest {
+
+    private static ThreadTrace trace(int stream, long calls, long blocks, long values, long flushNanos) {
+        ThreadTrace trace = new ThreadTrace(stream, Thread.currentThread());
+        trace.stats.calls = calls;
+        trace.stats.returns = calls;
+        trace.stats.blocks = blocks;
+        trace.stats.values = values;
+        trace.stats.bytes = 10 * calls;
+        trace.stats.flushes.record(flushNanos);
+        trace.droppedValues = stream;
+        return trace;
+    }
+
+    @Test
+    public void testAddsUpThreadStats() {
+        ThreadStats total = new ThreadStats();
+        total.add(trace(0, 1, 2, 3, 100).stats);
+        total.add(trace(1, 10, 20, 30, 5000).stats);
+        Assert.assertEquals(11, total.calls);
+        Assert.assertEquals(22, total.blocks);
+        Assert.assertEquals(11, total.returns);
+        Assert.assertEquals(33, total.values);
+        Assert.assertEquals(110, total.bytes);
+        Assert.assertEquals(2, total.flushes.count());
+        Assert.assertEquals(5000, total.flushes.maxNanos());
+        Assert.assertEquals(11 + 22 + 11 + 33, total.events());
+    }
+
+    // Every read adds up the threads again, so it sees new threads and
+    // new counts
+    @Test
+    public void testAddsUpEveryThread() {
+        List<ThreadTrace> traces = new ArrayList<>();
+        RecorderStats stats = new RecorderStats(traces);
+        Assert.assertEquals(0, stats.getCalls());
+        Assert.assertEquals(0, stats.getFlushes());
+
+        traces.add(trace(0, 1, 2, 3, 100));
+        traces.add(trace(1, 10, 20, 30, 5000));
+        Assert.assertEquals(11, stats.getCalls());
+        Assert.assertEquals(22, stats.getBlocks());
+        Assert.assertEquals(33, stats.getValues());
+        Assert.assertEquals(77, stats.getEvents());
+        Assert.assertEquals(110, stats.getBytesEncoded());
+        Assert.assertEquals(2, stats.getFlushes());
+        Assert.assertEquals(5.0, stats.getFlushLatencyMaxMicros(), 0);
+        Assert.assertEquals(1, stats.getDroppedValues());
+
+        traces.get(0).stats.calls++;
+        traces.get(1).droppedValues++;
+        Assert.assertEquals(12, stats.getCalls());
+        Assert.assertEquals(2, stats.getDroppedValues());
+    }
+
+    @Test
+    public void testSummary() {
+        RecorderStats stats = new RecorderStats(Arrays.asList(trace(0, 1, 2, 3, 100), trace(1, 10, 20, 30, 5000)));
+        stats.writes.record(2000);
+        List<String> lines = Arrays.asList(stats.getSummary().split("\n"));
+        Assert.assertEquals(25, lines.size());
+        Assert.assertTrue(lines.contains("calls 11"));
+        Assert.assertTrue(lines.contains("returns 11"));
+        Assert.assertTrue(lines.contains("events 77"));
+        Assert.assertTrue(lines.contains("flushes 2"));
+        Assert.assertTrue(lines.contains("flushLatencyP50Micros 0.128"));
+        Assert.assertTrue(lines.contains("flushLatencyP99Micros 5.0"));
+        Assert.assertTrue(lines.contains("writes 1"));
+        Assert.assertTrue(lines.contains("writeLatencyP99Micros 2.0"));
+        Assert.assertTrue(lines.contains("droppedValues 1"));
+    }
+
+    // Only the first registration gets the name, another one (e.g. of
+    // a second agent) is printed and otherwise ignored
+    @Test
+    public void testRegistersOnce() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(RecorderStats.OBJECT_NAME);
+        PrintStream err = System.err;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        try {
+            SaveUtil.registerStats();
+            Assert.assertTrue(server.isRegistered(name));
+            System.setErr(new PrintStream(printed, true));
+            SaveUtil.registerStats();
+        } finally {
+            System.setErr(err);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        String stackTrace = printed.toString();
+        Assert.assertTrue(stackTrace, stackTrace.startsWith("javax.management.InstanceAlreadyExistsException"));
+        Assert.assertTrue(stackTrace, stackTrace.contains(RecorderStats.OBJECT_NAME));
+    }
+}
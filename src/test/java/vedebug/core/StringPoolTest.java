@@ -0,0 +1,128 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class StringPoolTest {
+
+    @Before
+    public void setUp() {
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.loops = false;
+        VideoMethodVisitor.isSavingInvocationLineNums = false;
+    }
+
+    @After
+    public void tearDown() {
+        SaveUtil.clear();
+    }
+
+    private static char[] filled(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return chars;
+    }
+
+    @Test
+    public void testFindsStringsByContents() {
+        StringPool strings = new StringPool();
+        Assert.assertEquals(-1, strings.idOf("a"));
+        Assert.assertEquals(0, strings.add("a", "\"a\""));
+        Assert.assertEquals(1, strings.add("b", "\"b\""));
+        Assert.assertEquals(0, strings.idOf("a"));
+        // Found again once it's in the cache, and by a copy
+        Assert.assertEquals(0, strings.idOf("a"));
+        Assert.assertEquals(0, strings.idOf(new String("a")));
+        Assert.assertEquals(1, strings.idOf(new String("b")));
+        Assert.assertEquals(Arrays.asList("\"a\"", "\"b\""), strings.texts());
+    }
+
+    // Exception classes share the ids of the table
+    @Test
+    public void testClassesShareTheTable() {
+        StringPool strings = new StringPool();
+        strings.add("a", "\"a\"");
+        Assert.assertEquals(-1, strings.idOf(IllegalStateException.class));
+        Assert.assertEquals(1, strings.add(IllegalStateException.class));
+        Assert.assertEquals(1, strings.idOf(IllegalStateException.class));
+        Assert.assertEquals(Arrays.asList("\"a\"", IllegalStateException.class.getName()), strings.texts());
+    }
+
+    @Test
+    public void testStopsAtTheMostStrings() {
+        StringPool strings = new StringPool();
+        for (int i = 0; i < Names.STRING_POOL_SIZE; i++) {
+            Assert.assertEquals(i, strings.add("s" + i, "\"s" + i + "\""));
+        }
+        Assert.assertEquals(-1, strings.add("one more", "\"one more\""));
+        Assert.assertEquals(-1, strings.idOf("one more"));
+        Assert.assertEquals(7, strings.idOf("s7"));
+        // Exception classes are still added
+        Assert.assertEquals(Names.STRING_POOL_SIZE, strings.add(RuntimeException.class));
+    }
+
+    // The String and its text both count
+    @Test
+    public void testStopsAtTheMostChars() {
+        StringPool strings = new StringPool();
+        int half = (int) (Names.STRING_POOL_CHARS / 2);
+        String big = new String(filled(half - 1));
+        Assert.assertEquals(0, strings.add(big, big));
+        Assert.assertEquals(-1, strings.add("abc", "abc"));
+        Assert.assertEquals(1, strings.add("a", "a"));
+        Assert.assertEquals(-1, strings.add("b", "b"));
+    }
+
+    // A String saved again, or a copy of it, renders the same as the
+    // first time
+    @Test
+    public void testRepeatedStringsRenderTheSame() {
+        String text = "a string that is long enough to notice";
+        SaveUtil.enter(1);
+        SaveUtil.save(text, 1);
+        SaveUtil.save(new String(text), 1);
+        SaveUtil.exit(1);
+        SaveUtil.save(text, 1);
+        List<String> calls = SaveUtil.getCalls();
+        String rendered = "\"" + text + "\"";
+        Assert.assertEquals(Arrays.asList("1 " + rendered + " " + rendered + " \n", "- 1 " + rendered + " "), calls);
+    }
+
+    // Once the table is full Strings are saved inline, which renders
+    // the same
+    @Test
+    public void testFullTableSavesInline() throws IOException {
+        EventBuffer pooled = new EventBuffer(16);
+        pooled.putCall(0, 1);
+        pooled.putPooledString(0, "\"a\"");
+        pooled.putStringValue(TraceFormat.STRING_ARG, 0);
+        pooled.putReturn(1);
+        pooled.putStringValue(TraceFormat.STRING_RET, 0);
+        EventBuffer inline = new EventBuffer(16);
+        inline.putCall(0, 1);
+        inline.putValue(TraceFormat.ARG, "\"a\"");
+        inline.putReturn(1);
+        inline.putValue(TraceFormat.RET, "\"a\"");
+        Assert.assertEquals(render(inline), render(pooled));
+        Assert.assertEquals(Arrays.asList("1 \"a\" \n", "- 1 \"a\" "), render(pooled));
+    }
+
+    private static List<String> render(EventBuffer events) throws IOException {
+        return TraceRenderer.renderLines(new EventReader(
+                new ByteArrayInputStream(events.data(), 0, events.length())), new ArrayList<>());
+    }
+}
@@ -0,0 +1,221 @@
+package vedebug.core;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class ThreadTraceTest {
+
+    @Before
+    public void setUp() {
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.loops = false;
+        VideoMethodVisitor.isSavingInvocationLineNums = false;
+    }
+
+    // Records the same calls with different ids and returns what the
+    // thread recorded
+    private static List<String> record(int id) {
+        SaveUtil.enter(id);
+        SaveUtil.block(id, 3);
+        SaveUtil.exit(id);
+        SaveUtil.save(id, id);
+        return SaveUtil.getCalls();
+    }
+
+    // Every thread only sees its own records, however the threads
+    // interleave
+    @Test
+    public void testThreadsRecordIntoTheirOwnStreams() throws Exception {
+        int threads = 4;
+        CountDownLatch start = new CountDownLatch(1);
+        List<AtomicReference<List<String>>> calls = new ArrayList<>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int id = i + 1;
+            AtomicReference<List<String>> result = new AtomicReference<>();
+            calls.add(result);
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                result.set(record(id));
+            });
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int i = 0; i < threads; i++) {
+            int id = i + 1;
+            Assert.assertEquals(Arrays.asList(id + " \n", "@" + id + ":3 \n", "- " + id + " " + id + " "),
+                    calls.get(i).get());
+        }
+        Assert.assertEquals(Arrays.asList(""), SaveUtil.getCalls());
+    }
+
+    @Test
+    public void testStreamsGetTheirOwnFiles() {
+        Assert.assertEquals(Names.METHOD_CALL_FILE, Names.methodCallFile(0));
+        Assert.assertEquals("MethodCalls-3.txt", Names.methodCallFile(3).getName());
+    }
+
+    // Closing waits for the probe the owner is in, and the owner
+    // doesn't record after that
+    @Test
+    public void testCloseWaitsForTheRunningProbe() throws Exception {
+        ThreadTrace trace = new ThreadTrace(0, Thread.currentThread());
+        Assert.assertTrue(trace.begin());
+        AtomicBoolean closed = new AtomicBoolean();
+        Thread closer = new Thread(() -> closed.set(trace.close()));
+        closer.start();
+        Thread.sleep(50);
+        Assert.assertTrue(closer.isAlive());
+        trace.end();
+        closer.join();
+        Assert.assertTrue(closed.get());
+        Assert.assertFalse(trace.begin());
+    }
+
+    // The owner can close its own trace in the middle of a probe, e.g.
+    // when it runs the shutdown hook
+    @Test
+    public void testOwnerClosesRightAway() {
+        ThreadTrace trace = new ThreadTrace(0, Thread.currentThread());
+        Assert.assertTrue(trace.begin());
+        Assert.assertTrue(trace.close());
+        trace.end();
+        Assert.assertFalse(trace.begin());
+    }
+
+    // An owner that never leaves its probe makes close() give up
+    @Test
+    public void testCloseGivesUpOnAStuckOwner() throws Exception {
+        ThreadTrace trace = new ThreadTrace(0, Thread.currentThread());
+        Assert.assertTrue(trace.begin());
+        AtomicBoolean closed = new AtomicBoolean(true);
+        Thread closer = new Thread(() -> closed.set(trace.close()));
+        closer.start();
+        closer.join();
+        Assert.assertFalse(closed.get());
+        trace.end();
+    }
+
+    // A paused owner waits in its next probe until it's resumed, so
+    // its ring can be read in the meantime
+    @Test
+    public void testPauseStopsTheOwnerUntilResumed() throws Exception {
+        AtomicReference<ThreadTrace> created = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicBoolean inProbe = new AtomicBoolean();
+        Thread owner = new Thread(() -> {
+            ThreadTrace trace = new ThreadTrace(1, Thread.currentThread());
+            created.set(trace);
+            started.countDown();
+            while (!stop.get()) {
+                if (trace.begin()) {
+                    inProbe.set(true);
+                    inProbe.set(false);
+                    trace.end();
+                }
+            }
+        });
+        owner.start();
+        started.await();
+        ThreadTrace trace = created.get();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(trace.pause());
+            // Paused twice is refused, the first one holds it
+            Assert.assertFalse(trace.pause());
+            Assert.assertFalse(inProbe.get());
+            trace.resume();
+        }
+        stop.set(true);
+        owner.join();
+    }
+
+    // A closed trace can't be paused, and resuming doesn't reopen it
+    @Test
+    public void testClosedTraceStaysClosed() {
+        ThreadTrace trace = new ThreadTrace(0, Thread.currentThread());
+        Assert.assertTrue(trace.close());
+        Assert.assertFalse(trace.pause());
+        trace.resume();
+        Assert.assertFalse(trace.begin());
+    }
+
+    // The line of the innermost frame is where the next call comes
+    // from
+    @Test
+    public void testCallerLineFollowsTheInnermostFrame() {
+        ThreadTrace trace = new ThreadTrace(0, Thread.currentThread());
+        Assert.assertEquals(-1, trace.callerLine());
+        trace.push(1);
+        Assert.assertEquals(-1, trace.callerLine());
+        trace.block(1, 5);
+        Assert.assertEquals(5, trace.callerLine());
+        trace.setLine(7);
+        Assert.assertEquals(7, trace.callerLine());
+        trace.push(2);
+        Assert.assertEquals(-1, trace.callerLine());
+        trace.pop(2);
+        Assert.assertEquals(7, trace.callerLine());
+        Assert.assertEquals(1, trace.top());
+    }
+
+    // Frames above the one that reaches a block or returns were left
+    // by an exception
+    @Test
+    public void testFramesLeftByExceptionsAreDropped() {
+        ThreadTrace trace = new ThreadTrace(0, Thread.currentThread());
+        for (int id = 1; id <= 100; id++) {
+            trace.push(id);
+        }
+        Assert.assertEquals(100, trace.stack().length);
+        trace.block(3, 9);
+        Assert.assertTrue(Arrays.equals(new int[]{1, 2, 3}, trace.stack()));
+        Assert.assertEquals(9, trace.callerLine());
+        Assert.assertFalse(trace.contains(4));
+        trace.pop(2);
+        Assert.assertEquals(1, trace.top());
+        // Returns of methods that aren't on the stack change nothing
+        trace.pop(42);
+        Assert.assertEquals(1, trace.top());
+        trace.pop(1);
+        Assert.assertTrue(trace.isStackEmpty());
+    }
+
+    // Calls without an invocation line from the instrumented caller,
+    // e.g. callbacks from library code, get the caller's current line
+    @Test
+    public void testInvocationLinesComeFromTheShadowStack() {
+        VideoMethodVisitor.isSavingInvocationLineNums = true;
+        SaveUtil.enter(1);
+        SaveUtil.block(1, 5);
+        SaveUtil.enter(2);
+        SaveUtil.exit(2);
+        SaveUtil.setCurrentInvocationLine(8);
+        SaveUtil.enter(3);
+        SaveUtil.exit(3);
+        SaveUtil.exit(1);
+        Assert.assertEquals(Arrays.asList("-1 1 \n", "@1:5 \n", "5 2 \n", "- 2 \n", "8 3 \n", "- 3 \n", "- 1 "),
+                SaveUtil.getCalls());
+    }
+}
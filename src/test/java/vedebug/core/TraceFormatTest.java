@@ -0,0 +1,355 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class TraceFormatTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createDir();
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.loops = false;
+        VideoMethodVisitor.isSavingInvocationLineNums = false;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.delete(dir);
+        SaveUtil.clear();
+    }
+
+    private static EventReader reader(EventBuffer buffer) {
+        return new EventReader(new ByteArrayInputStream(buffer.data(), 0, buffer.length()));
+    }
+
+    // Varints have to survive every size they can be encoded in
+    @Test
+    public void testVarIntsRoundTrip() throws IOException {
+        int[] ints = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        long[] longs = {0, 1L << 35, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        EventBuffer buffer = new EventBuffer(16);
+        for (int i : ints) {
+            buffer.putVarInt(i);
+            buffer.putSignedVarInt(i);
+            buffer.putFixedInt(i);
+        }
+        for (long l : longs) {
+            buffer.putVarLong(l);
+            buffer.putSignedVarLong(l);
+            buffer.putFixedLong(l);
+        }
+        buffer.putString("h\u00e9llo \u2603");
+
+        EventReader reader = reader(buffer);
+        for (int i : ints) {
+            Assert.assertEquals(i, reader.readVarInt());
+            Assert.assertEquals(i, reader.readSignedVarInt());
+            Assert.assertEquals(i, reader.readFixedInt());
+        }
+        for (long l : longs) {
+            Assert.assertEquals(l, reader.readVarLong());
+            Assert.assertEquals(l, reader.readSignedVarLong());
+            Assert.assertEquals(l, reader.readFixedLong());
+        }
+        Assert.assertEquals("h\u00e9llo \u2603", reader.readString());
+        Assert.assertEquals(-1, reader.next());
+    }
+
+    // Small ids and lines take a single byte each
+    @Test
+    public void testSmallRecordsAreCompact() {
+        EventBuffer buffer = new EventBuffer(16);
+        buffer.putBlock(5, 100);
+        Assert.assertEquals(3, buffer.length());
+        Assert.assertEquals(1, buffer.records());
+    }
+
+    @Test
+    public void testRecordsRoundTrip() throws IOException {
+        EventBuffer buffer = new EventBuffer(16);
+        buffer.putMethod(1, 10, -1, "A.java A main L V", 42L);
+        buffer.putCall(7, 1);
+        buffer.putValue(TraceFormat.ARG, "[]");
+        buffer.putBlock(1, 12);
+        buffer.putReturn(1);
+        buffer.putValue(TraceFormat.RET, "null");
+        Assert.assertEquals(6, buffer.records());
+
+        EventReader reader = reader(buffer);
+        Assert.assertEquals(TraceFormat.METHOD, reader.next());
+        Assert.assertEquals(1, reader.id);
+        Assert.assertEquals(10, reader.line);
+        Assert.assertEquals(-1, reader.lastLine);
+        Assert.assertEquals("A.java A main L V", reader.text);
+        Assert.assertEquals(42L, reader.key);
+        Assert.assertEquals(TraceFormat.CALL, reader.next());
+        Assert.assertEquals(7, reader.line);
+        Assert.assertEquals(1, reader.id);
+        Assert.assertEquals(TraceFormat.ARG, reader.next());
+        Assert.assertEquals("[]", reader.text);
+        Assert.assertEquals(TraceFormat.BLOCK, reader.next());
+        Assert.assertEquals(1, reader.id);
+        Assert.assertEquals(12, reader.line);
+        Assert.assertEquals(TraceFormat.RETURN, reader.next());
+        Assert.assertEquals(1, reader.id);
+        Assert.assertEquals(TraceFormat.RET, reader.next());
+        Assert.assertEquals("null", reader.text);
+        Assert.assertEquals(-1, reader.next());
+    }
+
+    @Test
+    public void testRendersLinesLikeTheTextTrace() throws IOException {
+        EventBuffer buffer = new EventBuffer(16);
+        buffer.putCall(7, 1);
+        buffer.putValue(TraceFormat.ARG, "1");
+        buffer.putValue(TraceFormat.ARG, "\"a\"");
+        buffer.putBlock(1, 12);
+        buffer.putReturn(1);
+        buffer.putValue(TraceFormat.RET, "2");
+
+        Assert.assertEquals(Arrays.asList("7 1 1 \"a\" \n", "@1:12 \n", "- 1 2 "),
+                TraceRenderer.renderLines(reader(buffer), new ArrayList<>()));
+    }
+
+    // Values of every primitive kind that are easy to get wrong: the
+    // signs that zigzag encoding folds and the floating point values
+    // whose bits matter
+    private static final int[] INTS = {0, -1, 300, Integer.MIN_VALUE, Integer.MAX_VALUE};
+    private static final long[] LONGS = {-1L, -5000000000L, Long.MIN_VALUE, Long.MAX_VALUE};
+    private static final char[] CHARS = {'a', '\u00e9', '\uffff'};
+    private static final float[] FLOATS = {Float.NaN, -0.0f, Float.MIN_VALUE, Float.NEGATIVE_INFINITY};
+    private static final double[] DOUBLES = {Double.NaN, -0.0, 1e300, Double.MIN_VALUE};
+    private static final boolean[] BOOLEANS = {true, false};
+
+    // Puts every value the way SaveUtil.savePrimitive() does
+    private static void putPrimitives(EventBuffer buffer, int tag) {
+        for (int i : INTS) {
+            buffer.putPrimitive(tag, GraphFormat.INT, i);
+        }
+        for (long l : LONGS) {
+            buffer.putPrimitive(tag, GraphFormat.LONG, l);
+        }
+        for (char c : CHARS) {
+            buffer.putPrimitive(tag, GraphFormat.CHAR, c);
+        }
+        for (float f : FLOATS) {
+            buffer.putPrimitive(tag, GraphFormat.FLOAT, Float.floatToRawIntBits(f));
+        }
+        for (double d : DOUBLES) {
+            buffer.putPrimitive(tag, GraphFormat.DOUBLE, Double.doubleToRawLongBits(d));
+        }
+        for (boolean b : BOOLEANS) {
+            buffer.putPrimitive(tag, GraphFormat.BOOLEAN, b ? 1 : 0);
+        }
+    }
+
+    // Saves every value through the probes
+    private static void savePrimitives() {
+        for (int i : INTS) {
+            SaveUtil.save(i, 1);
+        }
+        for (long l : LONGS) {
+            SaveUtil.save(l, 1);
+        }
+        for (char c : CHARS) {
+            SaveUtil.save(c, 1);
+        }
+        for (float f : FLOATS) {
+            SaveUtil.save(f, 1);
+        }
+        for (double d : DOUBLES) {
+            SaveUtil.save(d, 1);
+        }
+        for (boolean b : BOOLEANS) {
+            SaveUtil.save(b, 1);
+        }
+    }
+
+    // The values the way they were saved before they were kept as
+    // primitives, with String.valueOf()
+    private static String renderedPrimitives() {
+        StringBuilder sb = new StringBuilder();
+        for (int i : INTS) {
+            sb.append(i).append(' ');
+        }
+        for (long l : LONGS) {
+            sb.append(l).append(' ');
+        }
+        for (char c : CHARS) {
+            sb.append(c).append(' ');
+        }
+        for (float f : FLOATS) {
+            sb.append(f).append(' ');
+        }
+        for (double d : DOUBLES) {
+            sb.append(d).append(' ');
+        }
+        for (boolean b : BOOLEANS) {
+            sb.append(b).append(' ');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testPrimitivesRoundTrip() throws IOException {
+        EventBuffer buffer = new EventBuffer(16);
+        putPrimitives(buffer, TraceFormat.PRIMITIVE_ARG);
+        putPrimitives(buffer, TraceFormat.PRIMITIVE_RET);
+
+        EventReader reader = reader(buffer);
+        for (int tag : new int[]{TraceFormat.PRIMITIVE_ARG, TraceFormat.PRIMITIVE_RET}) {
+            for (int i : INTS) {
+                Assert.assertEquals(tag, reader.next());
+                Assert.assertEquals(GraphFormat.INT, reader.kind);
+                Assert.assertEquals(i, reader.bits);
+            }
+            for (long l : LONGS) {
+                Assert.assertEquals(tag, reader.next());
+                Assert.assertEquals(GraphFormat.LONG, reader.kind);
+                Assert.assertEquals(l, reader.bits);
+            }
+            for (char c : CHARS) {
+                Assert.assertEquals(tag, reader.next());
+                Assert.assertEquals(GraphFormat.CHAR, reader.kind);
+                Assert.assertEquals(c, reader.bits);
+            }
+            // The raw bits, so NaN and -0.0 stay what they were
+            for (float f : FLOATS) {
+                Assert.assertEquals(tag, reader.next());
+                Assert.assertEquals(GraphFormat.FLOAT, reader.kind);
+                Assert.assertEquals(Float.floatToRawIntBits(f), (int) reader.bits);
+            }
+            for (double d : DOUBLES) {
+                Assert.assertEquals(tag, reader.next());
+                Assert.assertEquals(GraphFormat.DOUBLE, reader.kind);
+                Assert.assertEquals(Double.doubleToRawLongBits(d), reader.bits);
+            }
+            for (boolean b : BOOLEANS) {
+                Assert.assertEquals(tag, reader.next());
+                Assert.assertEquals(GraphFormat.BOOLEAN, reader.kind);
+                Assert.assertEquals(b ? 1 : 0, reader.bits);
+            }
+        }
+        Assert.assertEquals(-1, reader.next());
+    }
+
+    // What the probes record renders the same as the Strings that used
+    // to be saved, as arguments before the return and as return values
+    // after it
+    @Test
+    public void testPrimitiveProbesRenderLikeStrings() throws IOException {
+        SaveUtil.enter(1);
+        savePrimitives();
+        SaveUtil.exit(1);
+        savePrimitives();
+        List<String> expected = Arrays.asList("1 " + renderedPrimitives() + "\n", "- 1 " + renderedPrimitives());
+        Assert.assertEquals(expected, SaveUtil.getCalls());
+
+        EventBuffer strings = new EventBuffer(16);
+        strings.putCall(0, 1);
+        for (String value : renderedPrimitives().split(" ")) {
+            strings.putValue(TraceFormat.ARG, value);
+        }
+        strings.putReturn(1);
+        for (String value : renderedPrimitives().split(" ")) {
+            strings.putValue(TraceFormat.RET, value);
+        }
+        Assert.assertEquals(expected, TraceRenderer.renderLines(reader(strings), new ArrayList<>()));
+    }
+
+    // A binary trace converts to the same text
+    @Test
+    public void testConverterRendersPrimitives() throws IOException {
+        EventBuffer buffer = new EventBuffer(16);
+        buffer.putBytes(TraceFormat.MAGIC, 0, TraceFormat.MAGIC.length);
+        buffer.putVarInt(TraceFormat.VERSION);
+        buffer.putMethod(1, 3, 9, "A.java A main L V", 0xabcL);
+        buffer.putThread(0, 1, "main");
+        buffer.putChunk(0, 0, 0);
+        buffer.putCall(0, 1);
+        putPrimitives(buffer, TraceFormat.PRIMITIVE_ARG);
+        buffer.putReturn(1);
+        putPrimitives(buffer, TraceFormat.PRIMITIVE_RET);
+        TestFiles.write(new File(dir, "MethodCalls.bin"), buffer);
+
+        TraceConverter.convert(dir);
+
+        // Written in the platform's charset like a text trace
+        Charset charset = Charset.defaultCharset();
+        String values = new String(renderedPrimitives().getBytes(charset), charset);
+        Assert.assertEquals(Arrays.asList("1 " + values, "- 1 " + values),
+                Files.readAllLines(new File(dir, "MethodCalls.txt").toPath(), charset));
+    }
+
+    @Test
+    public void testRejectsOtherVersions() {
+        EventBuffer buffer = new EventBuffer(16);
+        buffer.putBytes(TraceFormat.MAGIC, 0, TraceFormat.MAGIC.length);
+        buffer.putVarInt(TraceFormat.VERSION + 1);
+        try {
+            reader(buffer).readHeader();
+            Assert.fail("Read a header of another version");
+        } catch (IOException e) {
+            Assert.assertEquals("Unsupported trace format version " + (TraceFormat.VERSION + 1), e.getMessage());
+        }
+    }
+
+    // A binary trace converts to the same files a text trace is
+    // recorded as, with one MethodCalls file per stream
+    @Test
+    public void testConverterWritesTextFiles() throws IOException {
+        EventBuffer buffer = new EventBuffer(16);
+        buffer.putBytes(TraceFormat.MAGIC, 0, TraceFormat.MAGIC.length);
+        buffer.putVarInt(TraceFormat.VERSION);
+        buffer.putMethod(1, 3, 9, "A.java A main L V", 0xabcL);
+        buffer.putMethod(2, 11, 12, "A.java A run - V", 0xdefL);
+        buffer.putThread(0, 1, "main");
+        buffer.putChunk(0, 0, 0);
+        buffer.putCall(0, 1);
+        buffer.putValue(TraceFormat.ARG, "[]");
+        buffer.putBlock(1, 3);
+        buffer.putThread(1, 12, "worker");
+        buffer.putChunk(1, 1, 0);
+        buffer.putCall(0, 2);
+        buffer.putReturn(2);
+        buffer.putChunk(0, 2, 3);
+        buffer.putReturn(1);
+        buffer.putFooter(0, 0, 0, 0);
+        buffer.putFooter(1, 5, 0, 1);
+        TestFiles.write(new File(dir, "MethodCalls.bin"), buffer);
+
+        TraceConverter.convert(dir);
+
+        Assert.assertEquals(Arrays.asList("1 3 9 A.java A main L V 0000000000000abc",
+                "2 11 12 A.java A run - V 0000000000000def"),
+                TestFiles.readLines(new File(dir, "MethodIDs.txt")));
+        Assert.assertEquals(Arrays.asList("1 [] ", "@1:3 ", "- 1 "),
+                TestFiles.readLines(new File(dir, "MethodCalls.txt")));
+        Assert.assertEquals(Arrays.asList("2 ", "- 2 "),
+                TestFiles.readLines(new File(dir, "MethodCalls-1.txt")));
+        Assert.assertEquals(Arrays.asList("1 12 worker"),
+                TestFiles.readLines(new File(dir, "Threads.txt")));
+        Assert.assertEquals(Arrays.asList("0 0 0 0", "1 5 0 1"),
+                TestFiles.readLines(new File(dir, "Footer.txt")));
+    }
+}
@@ -0,0 +1,157 @@
+package vedebug.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class TraceSegmentsTest {
+
+    private File dir;
+    private File segmentDir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createDir();
+        segmentDir = new File(dir, Names.SEGMENT_DIR.getName());
+        Assert.assertTrue(segmentDir.mkdir());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.delete(dir);
+    }
+
+    private static void append(TraceSegments segments, EventBuffer records) throws IOException {
+        if (records.length() > segments.remaining()) {
+            segments.next(records.length());
+        }
+        segments.append(records);
+        records.clear();
+    }
+
+    private void writeMethods() throws IOException {
+        TraceSegments methods = new TraceSegments(segmentDir, "methods");
+        EventBuffer records = new EventBuffer(16);
+        records.putMethod(1, 3, 9, "A.java A main L V", 1L);
+        append(methods, records);
+    }
+
+    // Appends bytes past what was committed, like a record the process
+    // was killed in the middle of
+    private void writeUncommitted(String segment, byte... bytes) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(segmentDir, segment), "rw")) {
+            file.seek(TraceFormat.SEGMENT_COMMITTED_OFFSET);
+            int committed = file.readInt();
+            file.seek(TraceFormat.SEGMENT_HEADER_SIZE + committed);
+            file.write(bytes);
+        }
+    }
+
+    @Test
+    public void testSegmentHeader() throws IOException {
+        TraceSegments segments = new TraceSegments(segmentDir, "0");
+        Assert.assertFalse(segments.isOpen());
+        Assert.assertEquals(0, segments.remaining());
+        EventBuffer records = new EventBuffer(16);
+        records.putReturn(1);
+        append(segments, records);
+        Assert.assertTrue(segments.isOpen());
+        Assert.assertEquals(Names.SEGMENT_SIZE - TraceFormat.SEGMENT_HEADER_SIZE - 2, segments.remaining());
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(segmentDir, "0-0.seg"), "r")) {
+            byte[] magic = new byte[TraceFormat.SEGMENT_MAGIC.length];
+            file.readFully(magic);
+            Assert.assertTrue(Arrays.equals(TraceFormat.SEGMENT_MAGIC, magic));
+            Assert.assertEquals(TraceFormat.VERSION, file.readInt());
+            Assert.assertEquals(2, file.readInt());
+        }
+    }
+
+    // Only the committed records of each segment are converted, the
+    // rest of a record that was being written is left out
+    @Test
+    public void testRecoversCommittedRecords() throws IOException {
+        writeMethods();
+        TraceSegments segments = new TraceSegments(segmentDir, "0");
+        EventBuffer records = new EventBuffer(16);
+        records.putThread(0, 1, "main");
+        records.putChunk(0, 0, 0);
+        records.putCall(0, 1);
+        records.putBlock(1, 3);
+        append(segments, records);
+        records.putReturn(1);
+        append(segments, records);
+        segments.force();
+        // Half of a CALL record
+        writeUncommitted("0-0.seg", (byte) TraceFormat.CALL);
+
+        TraceConverter.convert(dir);
+
+        Assert.assertEquals(Arrays.asList("1 3 9 A.java A main L V 0000000000000001"),
+                TestFiles.readLines(new File(dir, "MethodIDs.txt")));
+        Assert.assertEquals(Arrays.asList("1 ", "@1:3 ", "- 1 "),
+                TestFiles.readLines(new File(dir, "MethodCalls.txt")));
+    }
+
+    // A segment file that is shorter than its committed length, e.g.
+    // because it was copied while being written, is read up to its end
+    @Test
+    public void testRecoversTruncatedSegment() throws IOException {
+        writeMethods();
+        TraceSegments segments = new TraceSegments(segmentDir, "0");
+        EventBuffer records = new EventBuffer(16);
+        records.putThread(0, 1, "main");
+        records.putChunk(0, 0, 0);
+        records.putCall(0, 1);
+        append(segments, records);
+        int kept = Names.SEGMENT_SIZE - TraceFormat.SEGMENT_HEADER_SIZE - segments.remaining();
+        records.putBlock(1, 3);
+        append(segments, records);
+        segments.force();
+        try (RandomAccessFile file = new RandomAccessFile(new File(segmentDir, "0-0.seg"), "rw")) {
+            file.setLength(TraceFormat.SEGMENT_HEADER_SIZE + kept);
+        }
+
+        TraceConverter.convert(dir);
+
+        Assert.assertEquals(Arrays.asList("1 "), TestFiles.readLines(new File(dir, "MethodCalls.txt")));
+    }
+
+    // Every stream's segments are read in the order of their index
+    @Test
+    public void testJoinsSegmentsInOrder() throws IOException {
+        writeMethods();
+        TraceSegments segments = new TraceSegments(segmentDir, "1");
+        EventBuffer records = new EventBuffer(16);
+        for (int i = 0; i < 12; i++) {
+            if (i == 0) {
+                records.putThread(1, 2, "worker");
+            }
+            records.putChunk(1, i, i);
+            records.putBlock(1, i);
+            segments.next(records.length());
+            segments.append(records);
+            records.clear();
+        }
+
+        TraceConverter.convert(dir);
+
+        String[] expected = new String[12];
+        for (int i = 0; i < 12; i++) {
+            expected[i] = "@1:" + i + " ";
+        }
+        Assert.assertEquals(Arrays.asList(expected), TestFiles.readLines(new File(dir, "MethodCalls-1.txt")));
+        Assert.assertEquals(Arrays.asList("1 2 worker"), TestFiles.readLines(new File(dir, "Threads.txt")));
+    }
+}
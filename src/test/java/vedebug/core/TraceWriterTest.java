@@ -0,0 +1,196 @@
+package vedebug.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class TraceWriterTest {
+
+    // A batch of the given number of bytes whose events start with its
+    // number
+    private static TraceWriter.Batch batch(int number, int bytes) {
+        EventBuffer events = new EventBuffer(16);
+        events.putByte(number);
+        while (events.length() < bytes) {
+            events.putByte(0);
+        }
+        return new TraceWriter.Batch(null, events, Collections.<String>emptyList(), null, 0,
+                null, null, null);
+    }
+
+    private static int numberOf(TraceWriter.Batch batch) {
+        return batch.events.data()[0];
+    }
+
+    // Batches are written on the writer thread in the order they were
+    // handed off, and drain() waits for all of them
+    @Test
+    public void testWritesInOrderOnItsOwnThread() {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        TraceWriter writer = new TraceWriter(4, 1 << 20, b -> {
+            written.add(numberOf(b));
+            threads.add(Thread.currentThread());
+        });
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            writer.submit(batch(i, 8));
+            expected.add(i);
+        }
+        writer.drain();
+        Assert.assertEquals(expected, written);
+        for (Thread thread : threads) {
+            Assert.assertNotSame(Thread.currentThread(), thread);
+        }
+    }
+
+    // Once drained the writer thread is never started again, batches
+    // are written right away on the thread handing them off
+    @Test
+    public void testWritesSynchronouslyAfterDrain() {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        TraceWriter writer = new TraceWriter(4, 1 << 20, b -> {
+            written.add(numberOf(b));
+            threads.add(Thread.currentThread());
+        });
+        writer.submit(batch(1, 8));
+        writer.drain();
+        writer.submit(batch(2, 8));
+        Assert.assertTrue(writer.trySubmit(batch(3, 8)));
+        writer.drain();
+        Assert.assertEquals(Arrays.asList(1, 2, 3), written);
+        Assert.assertSame(Thread.currentThread(), threads.get(1));
+        Assert.assertSame(Thread.currentThread(), threads.get(2));
+    }
+
+    // Nothing to wait for if nothing was handed off
+    @Test
+    public void testDrainWithoutBatches() {
+        TraceWriter writer = new TraceWriter(4, 1 << 20, b -> Assert.fail());
+        writer.drain();
+    }
+
+    // A sink that throws doesn't stop the batches after it
+    @Test
+    public void testKeepsWritingAfterAFailure() {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        TraceWriter writer = new TraceWriter(4, 1 << 20, b -> {
+            if (numberOf(b) == 1) {
+                throw new IllegalStateException("Expected by the test");
+            }
+            written.add(numberOf(b));
+        });
+        writer.submit(batch(1, 8));
+        writer.submit(batch(2, 8));
+        writer.drain();
+        Assert.assertEquals(Collections.singletonList(2), written);
+        Assert.assertFalse(writer.isOverBudget());
+    }
+
+    // A writer whose sink holds every batch until the latch is opened
+    private static TraceWriter blockedWriter(int capacity, long budget, CountDownLatch open) {
+        return new TraceWriter(capacity, budget, b -> {
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    // With the block policy a thread waits until the batches before
+    // its own are written
+    @Test
+    public void testSubmitWaitsForRoom() throws Exception {
+        CountDownLatch open = new CountDownLatch(1);
+        TraceWriter writer = blockedWriter(4, 100, open);
+        writer.submit(batch(1, 60));
+        Thread submitter = new Thread(() -> writer.submit(batch(2, 60)));
+        submitter.start();
+        submitter.join(100);
+        Assert.assertTrue(submitter.isAlive());
+        open.countDown();
+        submitter.join();
+        writer.drain();
+        Assert.assertFalse(writer.isOverBudget());
+    }
+
+    // The spill and drop policies try first and don't wait
+    @Test
+    public void testTrySubmitOnlyTakesWhatFits() {
+        CountDownLatch open = new CountDownLatch(1);
+        TraceWriter writer = blockedWriter(4, 100, open);
+        Assert.assertTrue(writer.trySubmit(batch(1, 60)));
+        Assert.assertFalse(writer.trySubmit(batch(2, 60)));
+        Assert.assertTrue(writer.trySubmit(batch(3, 30)));
+        Assert.assertFalse(writer.isOverBudget());
+        Assert.assertFalse(writer.trySubmit(batch(4, 20)));
+        open.countDown();
+        writer.drain();
+    }
+
+    // Spilled batches hold nothing in memory so they always fit
+    @Test
+    public void testSpilledBatchesAlwaysFit() {
+        CountDownLatch open = new CountDownLatch(1);
+        TraceWriter writer = blockedWriter(1, 100, open);
+        Assert.assertTrue(writer.trySubmit(batch(1, 60)));
+        TraceWriter.Batch spilled = batch(2, 60);
+        spilled.spill = new File("spilled");
+        Assert.assertTrue(writer.trySubmit(spilled));
+        open.countDown();
+        writer.drain();
+    }
+
+    // Only capacity batches may wait, however small they are
+    @Test
+    public void testCapacityLimitsTheBatches() {
+        CountDownLatch open = new CountDownLatch(1);
+        TraceWriter writer = blockedWriter(2, 1 << 20, open);
+        Assert.assertTrue(writer.trySubmit(batch(1, 1)));
+        Assert.assertTrue(writer.trySubmit(batch(2, 1)));
+        Assert.assertFalse(writer.trySubmit(batch(3, 1)));
+        open.countDown();
+        writer.drain();
+    }
+
+    // A batch bigger than the whole budget is taken when nothing else
+    // waits, so it can't block forever
+    @Test
+    public void testOneBatchAlwaysFits() {
+        TraceWriter writer = new TraceWriter(4, 10, b -> {
+        });
+        writer.submit(batch(1, 100));
+        writer.drain();
+    }
+
+    // The buffers threads are still filling count in the budget
+    @Test
+    public void testLiveBuffersCount() {
+        CountDownLatch open = new CountDownLatch(1);
+        TraceWriter writer = blockedWriter(4, 100, open);
+        writer.charge(90);
+        Assert.assertFalse(writer.isOverBudget());
+        Assert.assertTrue(writer.trySubmit(batch(1, 5)));
+        Assert.assertFalse(writer.trySubmit(batch(2, 10)));
+        writer.charge(10);
+        Assert.assertTrue(writer.isOverBudget());
+        writer.charge(-100);
+        Assert.assertFalse(writer.isOverBudget());
+        Assert.assertTrue(writer.trySubmit(batch(3, 10)));
+        open.countDown();
+        writer.drain();
+    }
+}
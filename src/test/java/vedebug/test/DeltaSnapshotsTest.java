@@ -0,0 +1,172 @@
+package vedebug.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import vedebug.core.Names;
+import vedebug.core.SaveUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class DeltaSnapshotsTest {
+
+    @SuppressWarnings("unused")
+    static class Node {
+        int value;
+        String name;
+        Node next;
+
+        Node(int value, String name, Node next) {
+            this.value = value;
+            this.name = name;
+            this.next = next;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.traverse = true;
+        Names.delta = false;
+    }
+
+    @After
+    public void tearDown() {
+        Names.traverse = false;
+        Names.delta = false;
+        SaveUtil.clear();
+    }
+
+    // Traverses the object once as usual and once in delta mode, and
+    // returns the two traversals
+    private static String[] traverseBoth(Object object) {
+        Names.delta = false;
+        SaveUtil.save(object, 0);
+        Names.delta = true;
+        SaveUtil.save(object, 0);
+        Names.delta = false;
+        List<String> traversals = SaveUtil.getTraversals();
+        return new String[]{traversals.get(traversals.size() - 2), traversals.get(traversals.size() - 1)};
+    }
+
+    // Turns delta traversals of one thread back into the usual format
+    // the same way snapshots.py does
+    private static final class Rebuilder {
+        // Header and field lines last saved of every object by id
+        private final Map<String, List<String>> objects = new HashMap<>();
+
+        String rebuild(String traversal) {
+            String[] lines = traversal.split("\n");
+            String[] header = lines[0].split(" ");
+            if (header.length > 2) {
+                objects.clear();
+            }
+            if (lines.length == 2 && lines[1].equals("null")) {
+                return header[0] + "O#1\nnull";
+            }
+            List<String> order = new ArrayList<>();
+            boolean cutShort = false;
+            boolean changed = false;
+            List<String> current = null;
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i];
+                if (line.equals("...")) {
+                    cutShort = true;
+                } else if (line.startsWith(Names.SINGLE_INDENTATION + "O#")) {
+                    String[] tokens = line.trim().split(" ");
+                    if (tokens[1].equals("-")) {
+                        objects.put(tokens[0], new ArrayList<>(Arrays.asList(line)));
+                    }
+                    current = objects.get(tokens[0]);
+                    changed = tokens[1].equals("~");
+                    order.add(tokens[0]);
+                } else if (changed) {
+                    String[] parts = line.substring(Names.DOUBLE_INDENTATION.length()).split(":", 2);
+                    current.set(Integer.parseInt(parts[0]) + 1, parts[1]);
+                } else {
+                    current.add(line);
+                }
+            }
+            StringBuilder text = new StringBuilder(header[0]);
+            for (String id : order) {
+                for (String line : objects.get(id)) {
+                    text.append('\n').append(line);
+                }
+            }
+            return text.append(cutShort ? "..." : "").toString();
+        }
+    }
+
+    // The traversal numbers differ between the two modes
+    private static String withoutNumber(String traversal) {
+        return traversal.substring(traversal.indexOf('\n'));
+    }
+
+    @Test
+    public void testOnlyChangesAreSaved() {
+        Node second = new Node(2, "second", null);
+        Node first = new Node(1, "first", second);
+        String full = traverseBoth(first)[1];
+        Assert.assertTrue(full, full.split("\n")[0].endsWith(" 0 checkpoint"));
+        Assert.assertTrue(full, full.contains(" - " + Node.class.getName() + "\n"));
+
+        second.value = 3;
+        String changed = traverseBoth(first)[1];
+        String[] lines = changed.split("\n");
+        Assert.assertEquals(4, lines.length);
+        Assert.assertTrue(changed, lines[0].endsWith(" 0"));
+        Assert.assertTrue(changed, lines[1].endsWith(" ="));
+        Assert.assertTrue(changed, lines[2].endsWith(" ~"));
+        Assert.assertEquals(Names.DOUBLE_INDENTATION + "2:" + Names.DOUBLE_INDENTATION + "3", lines[3]);
+    }
+
+    // Every traversal can be rebuilt from the ones of its thread since
+    // the last checkpoint
+    @Test
+    public void testRebuildsTheUsualTraversals() {
+        Node last = new Node(0, "last", null);
+        for (int i = 0; i < 6; i++) {
+            last = new Node(i, "node" + i, last);
+        }
+        Node head = last;
+        Rebuilder rebuilder = new Rebuilder();
+        int checkpoints = 0;
+        for (int i = 0; i < Names.CHECKPOINT_INTERVAL + 10; i++) {
+            head.value = i % 3;
+            head.next.name = i % 5 == 0 ? null : "name" + (i % 2);
+            head.next.next.next = i % 7 == 0 ? null : head.next.next.next;
+            String[] both = traverseBoth(i % 11 == 10 ? null : head);
+            if (both[1].split("\n")[0].endsWith(" checkpoint")) {
+                checkpoints++;
+            }
+            Assert.assertEquals(withoutNumber(both[0]), withoutNumber(rebuilder.rebuild(both[1])));
+        }
+        Assert.assertEquals(2, checkpoints);
+    }
+
+    // A rebuilt traversal is smaller when little changes
+    @Test
+    public void testDeltasAreSmaller() {
+        Node head = new Node(0, "head", new Node(1, "next", null));
+        int plain = 0;
+        int delta = 0;
+        for (int i = 0; i < Names.CHECKPOINT_INTERVAL; i++) {
+            head.value = i;
+            String[] both = traverseBoth(head);
+            plain += both[0].length();
+            delta += both[1].length();
+        }
+        Assert.assertTrue(plain + " " + delta, delta * 2 < plain);
+    }
+}
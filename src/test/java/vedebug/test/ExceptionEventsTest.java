@@ -0,0 +1,188 @@
+package vedebug.test;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import vedebug.core.Names;
+import vedebug.core.SaveUtil;
+import vedebug.core.VideoMethodVisitor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class ExceptionEventsTest {
+
+    @SuppressWarnings("unused")
+    static class Caught {
+        public static void main(String[] args) {
+            catcher();
+        }
+
+        static void catcher() {
+            try {
+                thrower();
+            } catch (IllegalStateException e) {
+                done();
+            }
+        }
+
+        static void thrower() {
+            throw new IllegalStateException();
+        }
+
+        static void done() {
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static class Uncaught {
+        public static void main(String[] args) {
+            thrower();
+        }
+
+        static void thrower() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // The exception comes from code that isn't instrumented
+    @SuppressWarnings("unused")
+    static class FromLibrary {
+        public static void main(String[] args) {
+            try {
+                parse();
+            } catch (NumberFormatException e) {
+                return;
+            }
+        }
+
+        static int parse() {
+            return Integer.parseInt("x");
+        }
+    }
+
+    // Public since it's loaded by another class loader than Child
+    @SuppressWarnings("unused")
+    public static class Base {
+        public Base(int value) {
+        }
+    }
+
+    // The exception leaves the constructor before it calls super()
+    @SuppressWarnings("unused")
+    static class Child extends Base {
+        Child() {
+            super(check());
+        }
+
+        static int check() {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static class Constructs {
+        public static void main(String[] args) {
+            try {
+                new Child();
+            } catch (IllegalArgumentException e) {
+                return;
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.loops = false;
+        Names.traverse = false;
+        VideoMethodVisitor.isSavingInvocationLineNums = false;
+    }
+
+    // The calls without blocks and values, with the method names
+    // instead of their ids
+    private static List<String> events(Class<?>... classes) {
+        List<String> events = new ArrayList<>();
+        for (String line : SaveUtil.getCalls()) {
+            String[] tokens = line.trim().split(" ");
+            if (tokens[0].startsWith("@")) {
+                continue;
+            }
+            int first = tokens[0].equals("-") || tokens[0].equals("!") || tokens[0].equals("*") ? 1 : 0;
+            StringBuilder event = new StringBuilder(first == 1 ? tokens[0] + " " : "");
+            event.append(nameOf(Integer.parseInt(tokens[first]), classes));
+            if (first == 1 && tokens.length > 2) {
+                event.append(' ').append(tokens[2]);
+            }
+            events.add(event.toString());
+        }
+        return events;
+    }
+
+    private static String nameOf(int id, Class<?>... classes) {
+        String[] split = SaveUtil.getIds().get(id).split(" ");
+        String className = split[1].substring(split[1].lastIndexOf('$') + 1);
+        return classes.length > 1 ? className + "." + split[2] : split[2];
+    }
+
+    @Test
+    public void testThrowCatchAndUnwind() throws Exception {
+        Instrumented.run(Caught.class);
+        Assert.assertEquals(Arrays.asList(
+                "main", "catcher", "thrower",
+                "! thrower java.lang.IllegalStateException",
+                "- thrower Exception",
+                "* catcher java.lang.IllegalStateException",
+                "done", "- done",
+                "- catcher", "- main"), events());
+    }
+
+    @Test
+    public void testUncaughtExceptionsUnwindEveryFrame() throws Exception {
+        try {
+            Instrumented.run(Uncaught.class);
+            Assert.fail();
+        } catch (InvocationTargetException e) {
+            Assert.assertTrue(e.getCause() instanceof UnsupportedOperationException);
+        }
+        Assert.assertEquals(Arrays.asList(
+                "main", "thrower",
+                "! thrower java.lang.UnsupportedOperationException",
+                "- thrower Exception",
+                "- main Exception"), events());
+    }
+
+    // Only the instrumented methods record throws, but any exception
+    // that is caught or unwinds is recorded
+    @Test
+    public void testExceptionsFromLibraries() throws Exception {
+        Instrumented.run(FromLibrary.class);
+        Assert.assertEquals(Arrays.asList(
+                "main", "parse",
+                "- parse Exception",
+                "* main java.lang.NumberFormatException",
+                "- main"), events());
+    }
+
+    // A constructor can't catch what is thrown before its super()
+    // call, so it's unwound when the exception is caught
+    @Test
+    public void testConstructorsLeftBeforeSuper() throws Exception {
+        Instrumented.run(Constructs.class, Child.class);
+        Assert.assertEquals(Arrays.asList(
+                "Constructs.main", "Child.<init>", "Child.check",
+                "! Child.check java.lang.IllegalArgumentException",
+                "- Child.check Exception",
+                "- Child.<init> Exception",
+                "* Constructs.main java.lang.IllegalArgumentException",
+                "- Constructs.main"), events(Constructs.class, Child.class));
+    }
+}
@@ -0,0 +1,135 @@
+package vedebug.test;
+
+import vedebug.asm.ClassReader;
+import vedebug.asm.ClassVisitor;
+import vedebug.asm.MethodVisitor;
+import vedebug.core.Instr;
+import vedebug.core.Names;
+import vedebug.core.SaveUtil;
+import vedebug.core.VideoTransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs classes through the transformer the way the agent does, for
+ * tests of the instrumentation.
+ *
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+final class Instrumented {
+
+    private Instrumented() {
+    }
+
+    // Class loader that defines the transformed classes itself
+    private static final class ByteClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        ByteClassLoader(Map<String, byte[]> classes) {
+            super(Instrumented.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                byte[] bytes = classes.get(name);
+                if (bytes == null) {
+                    return super.loadClass(name, resolve);
+                }
+                Class<?> clz = findLoadedClass(name);
+                return clz != null ? clz : defineClass(name, bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    static byte[] classFile(Class<?> clz) throws IOException {
+        try (InputStream in = clz.getResourceAsStream("/" + clz.getName().replace('.', '/') + ".class")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 12];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    static byte[] transform(VideoTransformer transformer, Class<?> clz) throws IOException {
+        return transformer.transform(null, clz.getName().replace('.', '/'), null, null, classFile(clz));
+    }
+
+    // Transforms the classes, loads them and runs the main method of
+    // the first one.
+    static void run(Class<?>... classes) throws Exception {
+        VideoTransformer transformer = new VideoTransformer();
+        Map<String, byte[]> transformed = new HashMap<>();
+        for (Class<?> clz : classes) {
+            transformed.put(clz.getName(), transform(transformer, clz));
+        }
+        Class<?> main = new ByteClassLoader(transformed).loadClass(classes[0].getName());
+        Method method = main.getDeclaredMethod("main", String[].class);
+        method.setAccessible(true);
+        method.invoke(null, (Object) new String[0]);
+    }
+
+    // Id the transformer gave the method with the given name.
+    static int idOf(String methodName) {
+        for (Map.Entry<Integer, String> entry : SaveUtil.getIds().entrySet()) {
+            if (entry.getValue().split(" ")[2].equals(methodName)) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalArgumentException("No method " + methodName);
+    }
+
+    // The calls to SaveUtil in a class file as name and descriptor.
+    static List<String> probes(byte[] classFile) {
+        List<String> probes = new ArrayList<>();
+        new ClassReader(classFile).accept(new ClassVisitor(Instr.ASM_API_VERSION) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                             String signature, String[] exceptions) {
+                return new MethodVisitor(Instr.ASM_API_VERSION) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name,
+                                                String descriptor, boolean isInterface) {
+                        if (owner.equals(Names.SAVE_UTIL_INTERNAL)) {
+                            probes.add(name + descriptor);
+                        }
+                    }
+                };
+            }
+        }, 0);
+        return probes;
+    }
+
+    // The String constants the code of a class file loads.
+    static List<String> stringConstants(byte[] classFile) {
+        List<String> constants = new ArrayList<>();
+        new ClassReader(classFile).accept(new ClassVisitor(Instr.ASM_API_VERSION) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                             String signature, String[] exceptions) {
+                return new MethodVisitor(Instr.ASM_API_VERSION) {
+                    @Override
+                    public void visitLdcInsn(Object value) {
+                        if (value instanceof String) {
+                            constants.add((String) value);
+                        }
+                    }
+                };
+            }
+        }, 0);
+        return constants;
+    }
+}
@@ -0,0 +1,187 @@
+package vedebug.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import vedebug.asm.ClassReader;
+import vedebug.asm.ClassVisitor;
+import vedebug.asm.MethodVisitor;
+import vedebug.core.Instr;
+import vedebug.core.Names;
+import vedebug.core.SaveUtil;
+import vedebug.core.VideoMethodVisitor;
+import vedebug.core.VideoTransformer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class KeepFramesTest {
+
+    // Code with the frames the probes have to fit in: loops, switches,
+    // handlers, merges of different types and constructors
+    @SuppressWarnings("unused")
+    static class Framed {
+        private final long total;
+
+        Framed() {
+            this(loop(3));
+        }
+
+        Framed(long total) {
+            this.total = total;
+        }
+
+        public static void main(String[] args) {
+            Framed framed = new Framed();
+            choose(framed.total > 2);
+            choose(false);
+            for (int i = 0; i < 4; i++) {
+                dense(i);
+                sparse(i * 1000);
+            }
+            guarded(0);
+            guarded(1);
+            try {
+                rethrow();
+            } catch (IllegalStateException e) {
+                dense(-1);
+            }
+        }
+
+        static long loop(int n) {
+            long total = 0;
+            double scale = 1.5;
+            while (n-- > 0) {
+                total += (long) scale * n;
+            }
+            return total;
+        }
+
+        static Object choose(boolean text) {
+            Object value = text ? "text" : Integer.valueOf(1);
+            return value instanceof String ? ((String) value).length() : value;
+        }
+
+        static int dense(int i) {
+            switch (i) {
+                case 0:
+                    return 10;
+                case 1:
+                    return 11;
+                case 2:
+                    return 12;
+                default:
+                    return -1;
+            }
+        }
+
+        static int sparse(int i) {
+            switch (i) {
+                case 0:
+                    return 0;
+                case 2000:
+                    return 2;
+                default:
+                    return -1;
+            }
+        }
+
+        static int guarded(int divisor) {
+            int result = 0;
+            try {
+                result = 10 / divisor;
+            } catch (ArithmeticException e) {
+                result = -1;
+            } finally {
+                result++;
+            }
+            return result;
+        }
+
+        static void rethrow() {
+            try {
+                guarded(2);
+                throw new IllegalStateException();
+            } finally {
+                loop(1);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.loops = false;
+        Names.traverse = false;
+        Names.keepFrames = false;
+        VideoMethodVisitor.isSavingInvocationLineNums = false;
+    }
+
+    @After
+    public void tearDown() {
+        Names.keepFrames = false;
+    }
+
+    private static List<String> record(boolean keepFrames) throws Exception {
+        SaveUtil.clear();
+        Names.keepFrames = keepFrames;
+        Assert.assertNotNull(Instrumented.transform(new VideoTransformer(), Framed.class));
+        SaveUtil.clear();
+        // Loading the classes verifies their frames
+        Instrumented.run(Framed.class);
+        return SaveUtil.getCalls();
+    }
+
+    // The frames that are kept still verify, and the trace is the same
+    // as when every frame is computed
+    @Test
+    public void testKeptFramesRecordTheSameTrace() throws Exception {
+        List<String> computed = record(false);
+        List<String> kept = record(true);
+        Assert.assertTrue(computed.size() > 50);
+        Assert.assertEquals(computed, kept);
+    }
+
+    // Stack map frames in every method of a class file
+    private static Map<String, Integer> frames(byte[] classFile) {
+        Map<String, Integer> frames = new HashMap<>();
+        new ClassReader(classFile).accept(new ClassVisitor(Instr.ASM_API_VERSION) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                             String signature, String[] exceptions) {
+                String method = name + descriptor;
+                frames.put(method, 0);
+                return new MethodVisitor(Instr.ASM_API_VERSION) {
+                    @Override
+                    public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+                        frames.merge(method, 1, Integer::sum);
+                    }
+                };
+            }
+        }, 0);
+        return frames;
+    }
+
+    // The only frame added is the one of the unwind handler, the rest
+    // are the ones the class was compiled with
+    @Test
+    public void testFramesOfTheClassAreKept() throws Exception {
+        Names.keepFrames = true;
+        byte[] kept = Instrumented.transform(new VideoTransformer(), Framed.class);
+        Assert.assertNotNull(kept);
+        Map<String, Integer> original = frames(Instrumented.classFile(Framed.class));
+        Map<String, Integer> instrumented = frames(kept);
+        Assert.assertEquals(original.keySet(), instrumented.keySet());
+        for (Map.Entry<String, Integer> method : original.entrySet()) {
+            Assert.assertEquals(method.getKey(), method.getValue() + 1, (int) instrumented.get(method.getKey()));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package vedebug.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import vedebug.core.Names;
+import vedebug.core.SaveUtil;
+import vedebug.core.VideoMethodVisitor;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class StatsFileTest {
+
+    @SuppressWarnings("unused")
+    static class Counted {
+        public static void main(String[] args) {
+            int sum = 0;
+            for (int i = 0; i < 3; i++) {
+                sum = add(sum, i);
+            }
+            try {
+                check(sum);
+            } catch (IllegalStateException e) {
+                sum = 0;
+            }
+        }
+
+        static int add(int a, int b) {
+            return a + b;
+        }
+
+        static void check(int sum) {
+            if (sum > 0) {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.loops = false;
+        Names.traverse = false;
+        VideoMethodVisitor.isSavingInvocationLineNums = false;
+    }
+
+    @After
+    public void tearDown() {
+        SaveUtil.clear();
+        //noinspection ResultOfMethodCallIgnored
+        Names.STATS_FILE.delete();
+    }
+
+    // The numbers of a summary by name
+    private static Map<String, String> parse(List<String> lines) {
+        Map<String, String> numbers = new HashMap<>();
+        for (String line : lines) {
+            String[] split = line.split(" ");
+            numbers.put(split[0], split[1]);
+        }
+        return numbers;
+    }
+
+    private static long count(String prefix) {
+        return SaveUtil.getCalls().stream().filter(line -> line.startsWith(prefix)).count();
+    }
+
+    // The counts are the events of the trace
+    @Test
+    public void testCountsTheTrace() throws Exception {
+        Instrumented.run(Counted.class);
+        long calls = SaveUtil.getCalls().stream().filter(line -> Character.isDigit(line.charAt(0))).count();
+        long blocks = count("@");
+        long unwinds = SaveUtil.getCalls().stream().filter(line -> line.startsWith("- ") && line.contains("Exception")).count();
+        long returns = count("- ") - unwinds;
+        // main, add three times and check
+        Assert.assertEquals(5, calls);
+        Assert.assertEquals(4, returns);
+        Assert.assertEquals(1, unwinds);
+        // The args of main and of every call to add and check, and what
+        // add returned
+        long values = 1 + 3 * 3 + 1;
+
+        Map<String, String> summary = parse(Arrays.asList(SaveUtil.getStats().getSummary().split("\n")));
+        Assert.assertEquals(String.valueOf(calls), summary.get("calls"));
+        Assert.assertEquals(String.valueOf(blocks), summary.get("blocks"));
+        Assert.assertEquals(String.valueOf(returns), summary.get("returns"));
+        Assert.assertEquals("1", summary.get("throws"));
+        Assert.assertEquals("1", summary.get("catches"));
+        Assert.assertEquals(String.valueOf(unwinds), summary.get("unwinds"));
+        Assert.assertEquals(String.valueOf(values), summary.get("values"));
+        Assert.assertEquals(String.valueOf(calls + blocks + returns + 2 + unwinds + values), summary.get("events"));
+        Assert.assertEquals("0", summary.get("droppedValues"));
+
+        // The file has the same numbers, the rate aside since it's
+        // over a longer time
+        SaveUtil.saveStats();
+        Map<String, String> saved = parse(Files.readAllLines(Names.STATS_FILE.toPath()));
+        Assert.assertEquals(summary.keySet(), saved.keySet());
+        summary.remove("eventsPerSecond");
+        for (Map.Entry<String, String> entry : summary.entrySet()) {
+            Assert.assertEquals(entry.getKey(), entry.getValue(), saved.get(entry.getKey()));
+        }
+    }
+}
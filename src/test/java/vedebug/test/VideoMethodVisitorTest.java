@@ -0,0 +1,73 @@
+package vedebug.test;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import vedebug.core.Names;
+import vedebug.core.SaveUtil;
+import vedebug.core.VideoMethodVisitor;
+import vedebug.core.VideoTransformer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Ben Buhse <bwbuhse@utexas.edu>
+ * @author Thomas Wei <thomasw219@gmail.com>
+ * @author Zhiqiang Zang <capapoc@gmail.com>
+ */
+public class VideoMethodVisitorTest {
+
+    @SuppressWarnings("unused")
+    static class Probed {
+        public static void main(String[] args) {
+            abs(-2);
+        }
+
+        static int abs(int x) {
+            if (x > 0) {
+                return x;
+            }
+            return -x;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        SaveUtil.clear();
+        Names.ring = 0;
+        Names.loops = false;
+        Names.traverse = false;
+        VideoMethodVisitor.isSavingInvocationLineNums = false;
+    }
+
+    // The probes take the ids and lines as ints, so no String constant
+    // is added for them
+    @Test
+    public void testProbesTakeInts() throws Exception {
+        byte[] classFile = Instrumented.transform(new VideoTransformer(), Probed.class);
+        List<String> probes = Instrumented.probes(classFile);
+        Assert.assertTrue(probes.contains("enter(I)V"));
+        Assert.assertTrue(probes.contains("block(II)V"));
+        Assert.assertTrue(probes.contains("exit(I)V"));
+        Assert.assertTrue(probes.contains("save(II)V"));
+        for (String probe : probes) {
+            Assert.assertFalse(probe, probe.contains("Ljava/lang/String;"));
+        }
+        Assert.assertEquals(Arrays.asList(), Instrumented.stringConstants(classFile));
+    }
+
+    @Test
+    public void testProbesRecordTheRun() throws Exception {
+        Instrumented.run(Probed.class);
+        int main = Instrumented.idOf("main");
+        int abs = Instrumented.idOf("abs");
+        List<String> calls = SaveUtil.getCalls();
+        Assert.assertEquals(main + " [] \n", calls.get(0));
+        Assert.assertEquals(abs + " -2 \n", calls.get(1));
+        // Only the block of the second return is reached
+        Assert.assertTrue(calls.get(2).startsWith("@" + abs + ":"));
+        Assert.assertEquals("- " + abs + " 2 \n", calls.get(3));
+        Assert.assertEquals("- " + main + " ", calls.get(4));
+    }
+}
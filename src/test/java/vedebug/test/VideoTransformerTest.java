@@ -4,16 +4,25 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import vedebug.asm.ClassWriter;
+import vedebug.asm.Label;
+import vedebug.asm.MethodVisitor;
+import vedebug.asm.Opcodes;
 import vedebug.core.Names;
 import vedebug.core.SaveUtil;
 import vedebug.core.VideoMethodVisitor;
 import vedebug.core.VideoTransformer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -23,6 +32,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 /**
@@ -692,6 +705,149 @@ public class VideoTransformerTest {
         Assert.assertEquals("\"\\nWorld!\"", calls.get(2).split(" ")[2]);
     }
 
+    // One transformer instruments classes from many threads at once,
+    // like the JVM does when a program loads classes on several
+    // threads.  Every method still gets an id of its own and is in
+    // MethodIDs.txt with its key.
+    @Test
+    public void testConcurrentTransforms() throws Exception {
+        int classes = 40;
+        VideoTransformer transformer = new VideoTransformer();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<byte[]>> transformed = new ArrayList<>();
+        try {
+            for (int i = 0; i < classes; i++) {
+                String name = GENERATED + i;
+                byte[] original = generate(name);
+                transformed.add(executor.submit(() -> {
+                    start.await();
+                    return transformer.transform(null, name, null, null, original);
+                }));
+            }
+            start.countDown();
+            for (Future<byte[]> instrumented : transformed) {
+                Assert.assertNotNull(instrumented.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // An id given out twice would leave one method out of the map,
+        // and none are skipped
+        Map<Integer, String> ids = SaveUtil.getIds();
+        Assert.assertEquals(classes * METHODS, ids.size());
+        Assert.assertEquals(1, (int) Collections.min(ids.keySet()));
+        Assert.assertEquals(classes * METHODS, (int) Collections.max(ids.keySet()));
+
+        // Every class has all of its methods, which got their ids in
+        // the order they're in.  Classes transformed at the same time
+        // take turns, so their ids are only in a row if nothing else
+        // was transformed in between (see the next test).
+        List<String> methods = new ArrayList<>();
+        methods.add("<init>");
+        for (int i = 0; i < METHODS - 1; i++) {
+            methods.add("m" + i);
+        }
+        for (int i = 0; i < classes; i++) {
+            String name = GENERATED + i;
+            List<String> inOrder = idsOf(name)
+                    .stream()
+                    .map(id -> ids.get(id).split(" ")[2])
+                    .collect(Collectors.toList());
+            Assert.assertEquals(name, methods, inOrder);
+        }
+
+        // dump() writes MethodIDs.txt the same way the end of a run
+        // does, with the ids of every thread
+        Names.ring = 8;
+        try {
+            SaveUtil.getCalls();
+            SaveUtil.dump();
+            Map<Integer, String> keys = new HashMap<>();
+            for (String line : Files.readAllLines(Names.METHOD_ID_FILE.toPath())) {
+                String[] split = line.split(" ");
+                keys.put(Integer.parseInt(split[0]), split[split.length - 1]);
+            }
+            Assert.assertEquals(ids.keySet(), keys.keySet());
+            for (int id : ids.keySet()) {
+                String[] method = ids.get(id).split(" ");
+                String desc = method[2].equals("<init>") ? "()V" : "(I)I";
+                Assert.assertEquals(ids.get(id), keyOf(method[1], method[2], desc), keys.get(id));
+            }
+        } finally {
+            Names.ring = 0;
+            SaveUtil.clear();
+        }
+    }
+
+    // A class that's being instrumented while another one takes some
+    // of the ids after its own doesn't have the ids it would get when
+    // loaded from the cache, so it isn't cached and is instrumented
+    // again the next time.
+    @Test
+    public void testCacheSkipsInterruptedClasses() throws Exception {
+        deleteCache();
+        Names.cache = true;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Computing the frames of Picker.pick() reads PickedA and
+            // PickedB through the loader, which waits there until
+            // another class was instrumented
+            CountDownLatch reading = new CountDownLatch(1);
+            CountDownLatch instrumented = new CountDownLatch(1);
+            Map<String, byte[]> picked = new HashMap<>();
+            picked.put("vedebug/test/PickedA.class", generate("vedebug/test/PickedA"));
+            picked.put("vedebug/test/PickedB.class", generate("vedebug/test/PickedB"));
+            ClassLoader loader = new ClassLoader(getClass().getClassLoader()) {
+                @Override
+                public InputStream getResourceAsStream(String name) {
+                    reading.countDown();
+                    try {
+                        instrumented.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    byte[] bytes = picked.get(name);
+                    return bytes == null ? super.getResourceAsStream(name) : new ByteArrayInputStream(bytes);
+                }
+            };
+            byte[] picker = generatePicker();
+
+            VideoTransformer transformer = new VideoTransformer();
+            Future<byte[]> interrupted = executor.submit(() ->
+                    transformer.transform(loader, PICKER, null, null, picker));
+            reading.await();
+            Assert.assertNotNull(transformer.transform(null, GENERATED + 0, null, null, generate(GENERATED + 0)));
+            instrumented.countDown();
+            Assert.assertNotNull(interrupted.get());
+
+            // Generated0 got the ids in the middle of Picker's
+            List<Integer> pickerIds = idsOf(PICKER);
+            Assert.assertEquals(4, pickerIds.size());
+            Assert.assertEquals(4 + METHODS - 1, Collections.max(pickerIds) - Collections.min(pickerIds));
+            Assert.assertEquals(1, cacheEntries());
+
+            // The next run instruments Picker again and caches it now
+            // that it has the ids in a row
+            SaveUtil.clear();
+            byte[] again = new VideoTransformer().transform(loader, PICKER, null, null, picker);
+            Assert.assertNotNull(again);
+            Assert.assertEquals(Arrays.asList(1, 2, 3, 4), idsOf(PICKER));
+            Assert.assertEquals(2, cacheEntries());
+
+            // After which it is loaded from the cache
+            SaveUtil.clear();
+            Assert.assertArrayEquals(again, new VideoTransformer().transform(loader, PICKER, null, null, picker));
+            Assert.assertEquals(Arrays.asList(1, 2, 3, 4), idsOf(PICKER));
+            Assert.assertEquals(2, cacheEntries());
+        } finally {
+            executor.shutdown();
+            Names.cache = false;
+            deleteCache();
+        }
+    }
+
     // Other methods needed for testing ***********
 
     // Self-explantory; used like String's endsWith method but for
@@ -779,4 +935,134 @@ public class VideoTransformerTest {
         main.setAccessible(true);
         main.invoke(null, (Object) new String[0]);
     }
+
+    // Generated classes **************************
+
+    private static final String GENERATED = "vedebug/test/Generated";
+    private static final String PICKER = "vedebug/test/Picker";
+    // The constructor and static methods of a generated class
+    private static final int METHODS = 6;
+
+    // A class with a constructor and static methods m0, m1, ... that
+    // return their int argument, every method on its own line
+    private static byte[] generate(String name) {
+        ClassWriter writer = newClass(name);
+        for (int i = 0; i < METHODS - 1; i++) {
+            MethodVisitor mv = newMethod(writer, "m" + i, "(I)I", i + 2);
+            mv.visitVarInsn(Opcodes.ILOAD, 0);
+            mv.visitInsn(Opcodes.IRETURN);
+            endMethod(mv);
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    // Picker's pick() returns either a PickedA or a PickedB, so the
+    // frames after the branch need their common super class
+    private static byte[] generatePicker() {
+        ClassWriter writer = newClass(PICKER);
+        MethodVisitor mv = newMethod(writer, "first", "()V", 2);
+        mv.visitInsn(Opcodes.RETURN);
+        endMethod(mv);
+
+        mv = newMethod(writer, "pick", "(Z)Ljava/lang/Object;", 3);
+        Label b = new Label();
+        Label end = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IFEQ, b);
+        newPicked(mv, "vedebug/test/PickedA");
+        mv.visitJumpInsn(Opcodes.GOTO, end);
+        mv.visitLabel(b);
+        newPicked(mv, "vedebug/test/PickedB");
+        mv.visitLabel(end);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitInsn(Opcodes.ARETURN);
+        endMethod(mv);
+
+        mv = newMethod(writer, "last", "()V", 4);
+        mv.visitInsn(Opcodes.RETURN);
+        endMethod(mv);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void newPicked(MethodVisitor mv, String type) {
+        mv.visitTypeInsn(Opcodes.NEW, type);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, type, "<init>", "()V", false);
+        mv.visitVarInsn(Opcodes.ASTORE, 1);
+    }
+
+    // A public class with a constructor on line 1
+    private static ClassWriter newClass(String name) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES) {
+            // None of the generated classes can be loaded here
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return "java/lang/Object";
+            }
+        };
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+        writer.visitSource(name.substring(name.lastIndexOf('/') + 1) + ".java", null);
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        Label start = new Label();
+        mv.visitLabel(start);
+        mv.visitLineNumber(1, start);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        endMethod(mv);
+        return writer;
+    }
+
+    private static MethodVisitor newMethod(ClassWriter writer, String name, String desc, int line) {
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, name, desc, null, null);
+        mv.visitCode();
+        Label start = new Label();
+        mv.visitLabel(start);
+        mv.visitLineNumber(line, start);
+        return mv;
+    }
+
+    private static void endMethod(MethodVisitor mv) {
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    // MethodKeys.keyOf() as it's written to MethodIDs.txt: FNV-1a of
+    // the class, name and descriptor of the method
+    private static String keyOf(String className, String methodName, String desc) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : (className + "." + methodName + desc).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return String.format("%016x", hash);
+    }
+
+    // The sorted ids of the methods of a class
+    private static List<Integer> idsOf(String className) {
+        return SaveUtil.getIds().entrySet()
+                .stream()
+                .filter(entry -> entry.getValue().split(" ")[1].equals(className))
+                .map(Map.Entry::getKey)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static int cacheEntries() {
+        String[] entries = Names.CACHE_DIR.list();
+        return entries == null ? 0 : entries.length;
+    }
+
+    private static void deleteCache() {
+        File[] entries = Names.CACHE_DIR.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                //noinspection ResultOfMethodCallIgnored
+                entry.delete();
+            }
+        }
+    }
 }